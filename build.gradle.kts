@@ -5,6 +5,12 @@ plugins {
 group = "org.example"
 version = "1.0-SNAPSHOT"
 
+java {
+    toolchain {
+        languageVersion = JavaLanguageVersion.of(21)
+    }
+}
+
 repositories {
     mavenCentral()
 }
@@ -19,4 +25,42 @@ dependencies {
 
 tasks.test {
     useJUnitPlatform()
-}
\ No newline at end of file
+}
+
+val jmh: SourceSet by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+}
+
+dependencies {
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.37")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.37")
+}
+
+tasks.register<JavaExec>("loadTest") {
+    description = "Drives a file server with many clients, arguments are passed with --args"
+    group = "verification"
+    classpath = sourceSets.main.get().runtimeClasspath
+    mainClass.set("filesystem.LoadGenerator")
+}
+
+val jmhResults = layout.buildDirectory.file("reports/jmh/results.json")
+
+tasks.register<JavaExec>("jmh") {
+    description = "Runs the JMH benchmarks, arguments are passed with --args. " +
+            "Results are written as JSON to build/reports/jmh/results.json unless -rf is given"
+    group = "verification"
+    classpath = jmh.runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    doFirst {
+        if ("-rf" !in args.orEmpty()) {
+            val results = jmhResults.get().asFile
+            results.parentFile.mkdirs()
+            args("-rf", "json", "-rff", results.path)
+        }
+    }
+}
+
+tasks.check {
+    dependsOn(jmh.classesTaskName)
+}
@@ -0,0 +1,90 @@
+package filesystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/***
+ * Measures the block allocator on a list that is <code>fill</code>
+ * percent allocated.  With <code>fragmented</code> false the allocated
+ * blocks are the first ones of the disk, so the free space is a single
+ * run; otherwise they are scattered at random, which leaves holes of a
+ * few blocks.
+ *
+ * Each invocation allocates, a block or a run of <code>RUN_LENGTH</code>
+ * blocks, and frees what it allocated, so the fill level stays the same
+ * from one invocation to the next.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AllocationBenchmark {
+    /**
+     * Number of blocks in the run allocated, 64 KB of a file
+     */
+    private static final int RUN_LENGTH = 128;
+
+    @Param({"0", "50", "90", "99"})
+    public int fill;
+
+    @Param({"false", "true"})
+    public boolean fragmented;
+
+    private FreeBlockList freeBlockList;
+    private int[] run;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        freeBlockList = new FreeBlockList(Disk.NUM_BLOCKS);
+        run = new int[RUN_LENGTH];
+
+        int allocated = (int) ((long) Disk.NUM_BLOCKS * fill / 100);
+        if (fragmented) {
+            Random random = new Random(42);
+            while (Disk.NUM_BLOCKS - freeBlockList.getFreeCount() < allocated) {
+                freeBlockList.allocateBlock(random.nextInt(Disk.NUM_BLOCKS));
+            }
+        } else {
+            for (int i = 0; i < allocated; i++) {
+                freeBlockList.allocateBlock(i);
+            }
+        }
+    }
+
+    @Benchmark
+    public int allocateBlock() {
+        int block = freeBlockList.allocate();
+        freeBlockList.deallocateBlock(block);
+
+        return block;
+    }
+
+    @Benchmark
+    public int allocateRun() {
+        int count = 0;
+        while (count < RUN_LENGTH) {
+            count += freeBlockList.allocateRun(run, count, RUN_LENGTH - count);
+        }
+        for (int block : run) {
+            freeBlockList.deallocateBlock(block);
+        }
+
+        return count;
+    }
+}
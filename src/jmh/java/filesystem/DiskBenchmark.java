@@ -0,0 +1,114 @@
+package filesystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/***
+ * Measures single inode and single block transfers of a device, a raw
+ * disk file or a disk in memory, with the default geometry.
+ *
+ * Each invocation moves to the next inode or block, spread over the
+ * whole device, so that the reads are not all of one cached page.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DiskBenchmark {
+    /**
+     * Step between consecutive inodes and blocks, odd so that every one
+     * is visited
+     */
+    private static final int STRIDE = 97;
+
+    @Param({"file", "ram"})
+    public String device;
+
+    private File diskFile;
+    private BlockDevice disk;
+    private INode inode;
+    private byte[] block;
+    private int whichInode;
+    private int whichBlock;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if (device.equals("file")) {
+            diskFile = File.createTempFile("disk-benchmark", ".dsk");
+            disk = new Disk(diskFile.getPath());
+        } else {
+            disk = new RamDisk();
+        }
+        disk.format();
+
+        inode = new INode();
+        inode.setFileName("benchmark-file-name.dat");
+        inode.setSize(12345);
+        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+            inode.setBlockPointer(i, 1000 + i);
+        }
+        block = new byte[Disk.BLOCK_SIZE];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (byte) i;
+        }
+
+        for (int i = 0; i < Disk.NUM_INODES; i++) {
+            disk.writeInode(inode, i);
+        }
+        for (int i = 0; i < Disk.NUM_BLOCKS; i++) {
+            disk.writeDataBlock(block, i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        disk.close();
+        if (diskFile != null) {
+            diskFile.delete();
+        }
+    }
+
+    @Benchmark
+    public INode readInode() throws IOException {
+        whichInode = (whichInode + STRIDE) % Disk.NUM_INODES;
+
+        return disk.readInode(whichInode);
+    }
+
+    @Benchmark
+    public void writeInode() throws IOException {
+        whichInode = (whichInode + STRIDE) % Disk.NUM_INODES;
+        disk.writeInode(inode, whichInode);
+    }
+
+    @Benchmark
+    public byte[] readDataBlock() throws IOException {
+        whichBlock = (whichBlock + STRIDE) % Disk.NUM_BLOCKS;
+
+        return disk.readDataBlock(whichBlock);
+    }
+
+    @Benchmark
+    public void writeDataBlock() throws IOException {
+        whichBlock = (whichBlock + STRIDE) % Disk.NUM_BLOCKS;
+        disk.writeDataBlock(block, whichBlock);
+    }
+}
@@ -0,0 +1,122 @@
+package filesystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+
+/***
+ * Measures the calls of <code>FileSystem</code> on a freshly formatted
+ * volume, on a raw disk file or a disk in memory.
+ *
+ * <code>createDelete</code> creates a file and deletes it again, since
+ * creating alone would run out of inodes.  <code>open</code> opens and
+ * closes a file that exists.  <code>read</code> and <code>write</code>
+ * transfer <code>size</code> bytes at the start of a file whose blocks
+ * are already allocated, so they measure the data path and not the
+ * allocator, which <code>AllocationBenchmark</code> covers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FileSystemBenchmark {
+    private static final String FILE_NAME = "/benchmark/data.bin";
+
+    @Param({"file", "ram"})
+    public String device;
+
+    private File diskFile;
+    private BlockDevice disk;
+    private FileSystem fs;
+    private int fileDescriptor;
+
+    /***
+     * The buffer moved by <code>read</code> and <code>write</code>, kept
+     * apart so that its size does not multiply the other benchmarks
+     */
+    @State(Scope.Thread)
+    public static class Transfer {
+        @Param({"64", "4096", "65536"})
+        public int size;
+
+        private ByteBuffer buffer;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            buffer = ByteBuffer.allocate(size);
+            while (buffer.hasRemaining()) {
+                buffer.put((byte) buffer.position());
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if (device.equals("file")) {
+            diskFile = File.createTempFile("filesystem-benchmark", ".dsk");
+            disk = new Disk(diskFile.getPath());
+        } else {
+            disk = new RamDisk();
+        }
+        fs = new FileSystem(disk);
+
+        fs.mkdir("/benchmark");
+        fileDescriptor = fs.create(FILE_NAME);
+        fs.pwrite(fileDescriptor, 0, ByteBuffer.allocate(65536));
+        fs.sync();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fs.unmount();
+        if (diskFile != null) {
+            diskFile.delete();
+        }
+    }
+
+    @Benchmark
+    public void createDelete() throws IOException {
+        fs.close(fs.create("/benchmark/new.bin"));
+        fs.delete("/benchmark/new.bin");
+    }
+
+    @Benchmark
+    public int open() throws IOException {
+        int fd = fs.open(FILE_NAME);
+        fs.close(fd);
+
+        return fd;
+    }
+
+    @Benchmark
+    public int read(Transfer transfer) throws IOException {
+        transfer.buffer.clear();
+
+        return fs.pread(fileDescriptor, 0, transfer.buffer);
+    }
+
+    @Benchmark
+    public int write(Transfer transfer) throws IOException {
+        transfer.buffer.clear();
+
+        return fs.pwrite(fileDescriptor, 0, transfer.buffer);
+    }
+}
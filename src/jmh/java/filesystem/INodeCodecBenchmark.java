@@ -0,0 +1,220 @@
+package filesystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+
+/***
+ * Compares the inode codec with the encoding it replaced, which built a
+ * fresh heap buffer and name array for every inode and told a free inode
+ * apart by adding up the bytes of its name.
+ *
+ * The <code>encodeDecode</code> pair measures the encoding alone.  The
+ * codec is no faster there, as each access to its direct buffer is
+ * checked, but the direct buffer saves a copy on every transfer.  The
+ * <code>writeRead</code> pair writes and reads back an inode record on a
+ * raw disk file: the legacy one as the original disk did, seeking a
+ * <code>RandomAccessFile</code> and moving every field with a call of
+ * its own, the codec one with one positional write and one positional
+ * read.  The <code>inodeTable</code> pair reads the whole inode table of
+ * a raw disk file an inode at a time and with
+ * <code>readInodeTable()</code>.
+ *
+ * Run with <code>gradle jmh --args="INodeCodecBenchmark -prof gc"</code>
+ * to see the allocation rate as well.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class INodeCodecBenchmark {
+    private INode inode;
+    private File diskFile;
+    private Disk disk;
+    private RandomAccessFile rawDisk;
+    private int whichInode;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        inode = new INode();
+        inode.setFileName("benchmark-file-name.dat");
+        inode.setSize(12345);
+        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+            inode.setBlockPointer(i, 1000 + i);
+        }
+        inode.setSingleIndirectPointer(2000);
+
+        diskFile = File.createTempFile("inode-codec", ".dsk");
+        disk = new Disk(diskFile.getPath());
+        disk.format();
+        rawDisk = new RandomAccessFile(diskFile, "rw");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        rawDisk.close();
+        disk.close();
+        diskFile.delete();
+    }
+
+    @Benchmark
+    public INode encodeDecodeLegacy() {
+        ByteBuffer fields = ByteBuffer.allocate(Disk.INODE_FIELDS_SIZE);
+
+        legacyPut(inode, fields);
+
+        return legacyGet(fields);
+    }
+
+    @Benchmark
+    public INode encodeDecodeCodec() {
+        INodeCodec codec = INodeCodec.get();
+
+        codec.encode(inode);
+
+        return codec.decode();
+    }
+
+    @Benchmark
+    public INode writeReadLegacy() throws IOException {
+        long offset = Geometry.DEFAULT.getInodeOffset(nextInode());
+
+        legacyWrite(inode, rawDisk, offset);
+
+        return legacyRead(rawDisk, offset);
+    }
+
+    @Benchmark
+    public INode writeReadCodec() throws IOException {
+        int which = nextInode();
+
+        disk.writeInode(inode, which);
+
+        return disk.readInode(which);
+    }
+
+    @Benchmark
+    public INode[] inodeTableOneByOne() throws IOException {
+        INode[] inodes = new INode[Disk.NUM_INODES];
+
+        for (int i = 0; i < inodes.length; i++) {
+            inodes[i] = disk.readInode(i);
+        }
+
+        return inodes;
+    }
+
+    @Benchmark
+    public INode[] inodeTableBulk() throws IOException {
+        return disk.readInodeTable();
+    }
+
+    private int nextInode() {
+        whichInode = (whichInode + 1) % Disk.NUM_INODES;
+
+        return whichInode;
+    }
+
+    private static void legacyPut(INode inode, ByteBuffer buffer) {
+        buffer.put(inode.getFileNameBytes());
+        buffer.putInt(inode.getSize());
+        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+            buffer.putInt(inode.getBlockPointer(i));
+        }
+        buffer.putInt(inode.getSingleIndirectPointer());
+        buffer.putInt(inode.getDoubleIndirectPointer());
+        buffer.flip();
+    }
+
+    /***
+     * Writes an inode the way the original disk did: the name, the size
+     * and then each block pointer with a write of its own
+     */
+    private static void legacyWrite(INode inode, RandomAccessFile rawDisk, long offset) throws IOException {
+        byte[] name = inode.getFileNameBytes();
+        byte[] size = inode.getSizeBytes();
+        byte[][] blockPointers = new byte[INode.NUM_BLOCK_POINTERS][];
+
+        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+            blockPointers[i] = inode.getBlockPointerBytes(i);
+        }
+
+        rawDisk.seek(offset);
+        rawDisk.write(name);
+        rawDisk.write(size);
+        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+            rawDisk.write(blockPointers[i]);
+        }
+    }
+
+    /***
+     * Reads an inode the way the original disk did: the name and then the
+     * size and each block pointer with <code>readInt()</code>
+     */
+    private static INode legacyRead(RandomAccessFile rawDisk, long offset) throws IOException {
+        INode inode = new INode();
+        byte[] fileNameBytes = new byte[INode.FILE_NAME_SIZE];
+
+        rawDisk.seek(offset);
+        rawDisk.readFully(fileNameBytes);
+        int size = rawDisk.readInt();
+        int[] blockPointers = new int[INode.NUM_BLOCK_POINTERS];
+        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+            blockPointers[i] = rawDisk.readInt();
+        }
+
+        int nameSum = 0;
+        for (byte b : fileNameBytes) {
+            nameSum += b;
+        }
+        inode.setFileName(nameSum <= 0 ? null : new String(fileNameBytes));
+        inode.setSize(size);
+        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+            inode.setBlockPointer(i, blockPointers[i]);
+        }
+
+        return inode;
+    }
+
+    private static INode legacyGet(ByteBuffer buffer) {
+        INode inode = new INode();
+        byte[] fileNameBytes = new byte[INode.FILE_NAME_SIZE];
+
+        buffer.get(0, fileNameBytes);
+        int nameSum = 0;
+        for (byte b : fileNameBytes) {
+            nameSum += b;
+        }
+        inode.setFileName(nameSum <= 0 ? null : new String(fileNameBytes));
+
+        int index = INode.FILE_NAME_SIZE;
+        inode.setSize(buffer.getInt(index));
+        index += Integer.BYTES;
+        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+            inode.setBlockPointer(i, buffer.getInt(index));
+            index += Integer.BYTES;
+        }
+        inode.setSingleIndirectPointer(buffer.getInt(index));
+        inode.setDoubleIndirectPointer(buffer.getInt(index + Integer.BYTES));
+
+        return inode;
+    }
+}
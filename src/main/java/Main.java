@@ -13,6 +13,7 @@ public class Main {
 
         try {
           FileSystem fs = new FileSystem();
+          fs.setDelayedAllocation(true);
           String fileNameBase = "file";
           String fileName = null;
           String theMessage = null;
@@ -49,6 +50,12 @@ public class Main {
             fs.close(fd);
           }
 
+          /**
+           * write out the files still waiting in memory and mark the
+           * volume cleanly shut down
+           */
+          fs.unmount();
+
         } catch (IOException e) {
            System.err.println(e.getMessage());
            e.printStackTrace();
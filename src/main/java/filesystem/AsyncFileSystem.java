@@ -0,0 +1,366 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/***
+ * Calls a <code>FileSystem</code> from a small, fixed pool of I/O threads
+ * so that callers are handed a <code>CompletableFuture</code> instead of
+ * waiting for the device.  Many requests can be outstanding while only
+ * the I/O threads ever block.
+ *
+ * Requests wait in a bounded queue.  Those that name no place on the
+ * device, such as opening, creating or deleting a file, are served first
+ * and in the order they arrived.  Reads and writes are served in order of
+ * the block they start at, sweeping up the device and then starting over
+ * from the lowest block (C-SCAN), so a burst of requests is served with
+ * as little seeking as possible.  Requests starting at the same block are
+ * served in the order they arrived.  An append is placed at the last
+ * block of its file, and a write to a place that has no block yet is
+ * placed before the lowest block.
+ *
+ * Requests on different blocks may complete in any order and, with more
+ * than one I/O thread, run at the same time, just as calls to the file
+ * system from several threads would.  A caller that needs one request
+ * done before the next chains them on the future.  Futures are completed
+ * on an I/O thread, so lengthy work that depends on them should use the
+ * <code>...Async</code> methods of <code>CompletableFuture</code>.
+ */
+public class AsyncFileSystem implements AutoCloseable {
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /**
+     * Block of a request that names no place on the device
+     */
+    private static final int NO_BLOCK = Integer.MIN_VALUE;
+
+    private final FileSystem fs;
+    private final int capacity;
+    private final Thread[] workers;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<Request> metadataRequests = new ArrayDeque<>();
+    private final TreeSet<Request> dataRequests = new TreeSet<>();
+    private long nextSequence;
+    private int head = Integer.MIN_VALUE;
+    private boolean closed;
+
+    /**
+     * A call on the file system that may fail with an IOException
+     */
+    private interface Call<T> {
+        T call() throws IOException;
+    }
+
+    private static class Request implements Comparable<Request> {
+        private final int block;
+        private final long sequence;
+        private final Call<?> call;
+        private final CompletableFuture<Object> future;
+
+        private Request(int block, long sequence, Call<?> call, CompletableFuture<Object> future) {
+            this.block = block;
+            this.sequence = sequence;
+            this.call = call;
+            this.future = future;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            int order = Integer.compare(block, other.block);
+
+            return order != 0 ? order : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    public AsyncFileSystem(FileSystem fs) {
+        this(fs, Math.min(4, Runtime.getRuntime().availableProcessors()), DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /***
+     * Create a facade serving requests on <code>fs</code>
+     *
+     * @param fs The file system to call
+     * @param threads Number of I/O threads
+     * @param capacity Most requests waiting to be served
+     * @throws IllegalArgumentException If <code>threads</code> or
+     *                                  <code>capacity</code> is not positive
+     */
+    public AsyncFileSystem(FileSystem fs, int threads, int capacity) {
+        if (threads <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("AsyncFileSystem::AsyncFileSystem: " +
+                    threads + " threads and a capacity of " + capacity + " but both must be at least 1");
+        }
+        this.fs = fs;
+        this.capacity = capacity;
+
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(this::serve, "filesystem-io-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /***
+     * Creates a file and opens it, see <code>FileSystem.create()</code>
+     *
+     * @param fileName Path of the file
+     * @return A future of the new file descriptor
+     */
+    public CompletableFuture<Integer> createAsync(String fileName) {
+        return submit(NO_BLOCK, () -> fs.create(fileName));
+    }
+
+    /***
+     * Opens a file, see <code>FileSystem.open()</code>
+     *
+     * @param fileName Path of the file
+     * @return A future of the file descriptor, or of -1 if there is no such file
+     */
+    public CompletableFuture<Integer> openAsync(String fileName) {
+        return submit(NO_BLOCK, () -> fs.open(fileName));
+    }
+
+    /***
+     * Closes a file descriptor, see <code>FileSystem.close()</code>
+     *
+     * @param fileDescriptor An open file descriptor
+     * @return A future completed once the descriptor is closed
+     */
+    public CompletableFuture<Void> closeAsync(int fileDescriptor) {
+        return submit(NO_BLOCK, () -> {
+            fs.close(fileDescriptor);
+            return null;
+        });
+    }
+
+    /***
+     * Removes a file, see <code>FileSystem.delete()</code>
+     *
+     * @param fileName Path of the file
+     * @return A future completed once the file is gone
+     */
+    public CompletableFuture<Void> deleteAsync(String fileName) {
+        return submit(NO_BLOCK, () -> {
+            fs.delete(fileName);
+            return null;
+        });
+    }
+
+    /***
+     * Creates a directory, see <code>FileSystem.mkdir()</code>
+     *
+     * @param directoryName Path of the directory
+     * @return A future completed once the directory exists
+     */
+    public CompletableFuture<Void> mkdirAsync(String directoryName) {
+        return submit(NO_BLOCK, () -> {
+            fs.mkdir(directoryName);
+            return null;
+        });
+    }
+
+    /***
+     * Lists a directory, see <code>FileSystem.list()</code>
+     *
+     * @param directoryName Path of the directory
+     * @return A future of the names in the directory
+     */
+    public CompletableFuture<List<String>> listAsync(String directoryName) {
+        return submit(NO_BLOCK, () -> fs.list(directoryName));
+    }
+
+    /***
+     * Reads the whole of a file, see <code>FileSystem.read()</code>
+     *
+     * @param fileDescriptor An open file descriptor
+     * @return A future of the contents of the file
+     */
+    public CompletableFuture<String> readAsync(int fileDescriptor) {
+        return submit(fs.blockNear(fileDescriptor, 0), () -> fs.read(fileDescriptor));
+    }
+
+    /***
+     * Replaces the contents of a file, see <code>FileSystem.write()</code>
+     *
+     * @param fileDescriptor An open file descriptor
+     * @param data The new contents of the file
+     * @return A future completed once the file is written
+     */
+    public CompletableFuture<Void> writeAsync(int fileDescriptor, String data) {
+        return submit(fs.blockNear(fileDescriptor, 0), () -> {
+            fs.write(fileDescriptor, data);
+            return null;
+        });
+    }
+
+    /***
+     * Reads part of a file, see <code>FileSystem.pread()</code>.  The
+     * buffer belongs to the request until the future completes.
+     *
+     * @param fileDescriptor An open file descriptor
+     * @param offset Position in the file of the first byte to read
+     * @param dst Buffer receiving the bytes
+     * @return A future of the number of bytes read, or of -1 at the end of the file
+     */
+    public CompletableFuture<Integer> preadAsync(int fileDescriptor, long offset, ByteBuffer dst) {
+        return submit(fs.blockNear(fileDescriptor, offset), () -> fs.pread(fileDescriptor, offset, dst));
+    }
+
+    /***
+     * Writes part of a file, see <code>FileSystem.pwrite()</code>.  The
+     * buffer belongs to the request until the future completes.
+     *
+     * @param fileDescriptor An open file descriptor
+     * @param offset Position in the file of the first byte to write
+     * @param src Buffer holding the bytes
+     * @return A future of the number of bytes written
+     */
+    public CompletableFuture<Integer> pwriteAsync(int fileDescriptor, long offset, ByteBuffer src) {
+        return submit(fs.blockNear(fileDescriptor, offset), () -> fs.pwrite(fileDescriptor, offset, src));
+    }
+
+    /***
+     * Writes to the end of a file, see <code>FileSystem.append()</code>.
+     * The buffer belongs to the request until the future completes.
+     *
+     * @param fileDescriptor An open file descriptor
+     * @param src Buffer holding the bytes
+     * @return A future of the number of bytes written
+     */
+    public CompletableFuture<Integer> appendAsync(int fileDescriptor, ByteBuffer src) {
+        return submit(fs.blockNearEnd(fileDescriptor), () -> fs.append(fileDescriptor, src));
+    }
+
+    /***
+     * Forces everything written out to the device, see
+     * <code>FileSystem.sync()</code>.  Only requests completed before this
+     * one is served are covered.
+     *
+     * @return A future completed once the device is synchronized
+     */
+    public CompletableFuture<Void> syncAsync() {
+        return submit(NO_BLOCK, () -> {
+            fs.sync();
+            return null;
+        });
+    }
+
+    /***
+     * Stops taking requests, serves those already queued and waits for
+     * the I/O threads to finish.  The file system is left mounted.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /***
+     * Queues a call, failing its future straight away if the queue is
+     * full or the facade is closed, so that the caller never blocks
+     *
+     * @param block The block the call starts at, -1 if it is not known
+     *              yet, or <code>NO_BLOCK</code> for a call on metadata
+     */
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> submit(int block, Call<T> call) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+
+        lock.lock();
+        try {
+            if (closed) {
+                future.completeExceptionally(new RejectedExecutionException("AsyncFileSystem::submit: closed"));
+            } else if (metadataRequests.size() + dataRequests.size() >= capacity) {
+                future.completeExceptionally(new RejectedExecutionException("AsyncFileSystem::submit: " +
+                        capacity + " requests are already waiting"));
+            } else {
+                Request request = new Request(block, nextSequence++, call, future);
+                if (block == NO_BLOCK) {
+                    metadataRequests.add(request);
+                } else {
+                    dataRequests.add(request);
+                }
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return (CompletableFuture<T>) future;
+    }
+
+    /***
+     * Takes the next request to serve, waiting for one if there is none
+     *
+     * @return The request, or null once the facade is closed and drained
+     */
+    private Request take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (metadataRequests.isEmpty() && dataRequests.isEmpty()) {
+                if (closed) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+
+            Request request = metadataRequests.poll();
+            if (request == null) {
+                /**
+                 * The first request at or past the block last served,
+                 * or back to the lowest block once the sweep is done
+                 */
+                request = dataRequests.ceiling(new Request(head, Long.MIN_VALUE, null, null));
+                if (request == null) {
+                    request = dataRequests.first();
+                }
+                dataRequests.remove(request);
+                head = request.block;
+            }
+
+            return request;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void serve() {
+        try {
+            Request request;
+            while ((request = take()) != null) {
+                try {
+                    request.future.complete(request.call.call());
+                } catch (Throwable t) {
+                    request.future.completeExceptionally(t);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/***
+ * A write-back cache of data blocks in front of another
+ * <code>BlockDevice</code>.  Up to <code>capacity</code> blocks are kept
+ * in memory and the least recently used block is evicted when room is
+ * needed.  Writes only mark the cached block dirty; dirty blocks reach
+ * the device when they are evicted, on <code>sync()</code> and on
+ * <code>close()</code>; adjacent dirty blocks are written back together.
+ * A multi-block write larger than the whole cache bypasses it.
+ * Everything other than data blocks is passed straight through.
+ * Access to the cached blocks is serialized, so the cache may be shared
+ * by several threads.
+ */
+public class BlockCache implements BlockDevice {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private BlockDevice device;
+    private int capacity;
+    private LinkedHashMap<Integer, CachedBlock> blocks;
+
+    private long hits;
+    private long misses;
+
+    private static class CachedBlock {
+        private byte[] data;
+        private boolean dirty;
+
+        private CachedBlock(byte[] data, boolean dirty) {
+            this.data = data;
+            this.dirty = dirty;
+        }
+    }
+
+    public BlockCache(BlockDevice device) {
+        this(device, DEFAULT_CAPACITY);
+    }
+
+    /***
+     * Create a cache in front of <code>device</code>
+     *
+     * @param device The device holding the blocks
+     * @param capacity The number of blocks to keep in memory
+     * @throws IllegalArgumentException If <code>capacity</code> is not positive
+     */
+    public BlockCache(BlockDevice device, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("BlockCache::BlockCache: " +
+                    "capacity is " + capacity + " but must be at least 1");
+        }
+        this.device = device;
+        this.capacity = capacity;
+
+        /**
+         * An access ordered map keeps the least recently used
+         * block at the head of the iteration order.
+         */
+        this.blocks = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /***
+     * Returns the number of block reads served from memory
+     * @return Returns the number of block reads served from memory
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /***
+     * Returns the number of block reads that had to go to the device
+     * @return Returns the number of block reads that had to go to the device
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized void format(Geometry geometry) throws IOException {
+        blocks.clear();
+        device.format(geometry);
+    }
+
+    @Override
+    public synchronized void mount() throws IOException {
+        blocks.clear();
+        device.mount();
+    }
+
+    @Override
+    public Geometry getGeometry() {
+        return device.getGeometry();
+    }
+
+    @Override
+    public SuperBlock readSuperBlock() throws IOException {
+        return device.readSuperBlock();
+    }
+
+    @Override
+    public void writeSuperBlock(SuperBlock superBlock) throws IOException {
+        device.writeSuperBlock(superBlock);
+    }
+
+    @Override
+    public byte[] readFreeBlockList() throws IOException {
+        return device.readFreeBlockList();
+    }
+
+    @Override
+    public void writeFreeBlockList(byte[] freeBlockList) throws IOException {
+        device.writeFreeBlockList(freeBlockList);
+    }
+
+    @Override
+    public void writeFreeBlockList(byte[] bytes, int offset) throws IOException {
+        device.writeFreeBlockList(bytes, offset);
+    }
+
+    @Override
+    public void writeInode(INode inode, int whichInode) throws IOException {
+        device.writeInode(inode, whichInode);
+    }
+
+    @Override
+    public INode readInode(int whichInode) throws IOException {
+        return device.readInode(whichInode);
+    }
+
+    @Override
+    public INode[] readInodes(int firstInode, int count) throws IOException {
+        return device.readInodes(firstInode, count);
+    }
+
+    @Override
+    public void readJournal(long offset, ByteBuffer dst) throws IOException {
+        device.readJournal(offset, dst);
+    }
+
+    @Override
+    public void writeJournal(long offset, ByteBuffer src) throws IOException {
+        device.writeJournal(offset, src);
+    }
+
+    @Override
+    public synchronized byte[] readDataBlock(int whichBlock) throws IOException {
+        CachedBlock cached = blocks.get(whichBlock);
+
+        if (cached != null) {
+            hits++;
+        } else {
+            misses++;
+            cached = new CachedBlock(device.readDataBlock(whichBlock), false);
+            blocks.put(whichBlock, cached);
+            evict();
+        }
+
+        return cached.data.clone();
+    }
+
+    @Override
+    public synchronized void writeDataBlock(byte[] blockData, int whichBlock) throws IOException, IllegalArgumentException {
+        if (blockData.length != blockSize()) {
+            throw new IllegalArgumentException("BlockCache::writeDataBlock:  "  +
+                    "storing block of size " + blockData.length  +
+                    "when it should be of size "  + blockSize());
+        }
+
+        blocks.put(whichBlock, new CachedBlock(blockData.clone(), true));
+        evict();
+    }
+
+    @Override
+    public synchronized void readBlocks(int firstBlock, int count, ByteBuffer dst) throws IOException {
+        int i = 0;
+
+        while (i < count && dst.hasRemaining()) {
+            CachedBlock cached = blocks.get(firstBlock + i);
+            if (cached != null) {
+                hits++;
+                dst.put(cached.data, 0, Math.min(blockSize(), dst.remaining()));
+                i++;
+                continue;
+            }
+
+            /**
+             * Read the whole run of missing blocks in one transfer
+             */
+            int runLength = 1;
+            while (i + runLength < count && !blocks.containsKey(firstBlock + i + runLength)) {
+                runLength++;
+            }
+            byte[] run = new byte[blockSize() * runLength];
+            device.readBlocks(firstBlock + i, runLength, ByteBuffer.wrap(run));
+            dst.put(run, 0, Math.min(run.length, dst.remaining()));
+
+            for (int j = 0; j < runLength; j++) {
+                byte[] data = new byte[blockSize()];
+                System.arraycopy(run, blockSize() * j, data, 0, blockSize());
+                blocks.put(firstBlock + i + j, new CachedBlock(data, false));
+            }
+            misses += runLength;
+            i += runLength;
+        }
+        evict();
+    }
+
+    @Override
+    public synchronized void writeBlocks(int firstBlock, int count, ByteBuffer src) throws IOException, IllegalArgumentException {
+        if (count > capacity) {
+            for (int i = 0; i < count; i++) {
+                blocks.remove(firstBlock + i);
+            }
+            device.writeBlocks(firstBlock, count, src);
+            return;
+        }
+
+        ByteBuffer data = Disk.blockRun(count, src, blockSize())[0];
+        for (int i = 0; i < count; i++) {
+            byte[] block = new byte[blockSize()];
+            data.get(block, 0, Math.min(blockSize(), data.remaining()));
+            blocks.put(firstBlock + i, new CachedBlock(block, true));
+        }
+        evict();
+    }
+
+    /***
+     * Writes every dirty block to the device, in block order, and then
+     * synchronizes the device
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    @Override
+    public synchronized void sync() throws IOException {
+        /**
+         * Iterating the entry set does not count as an access, so
+         * flushing leaves the LRU order untouched.
+         */
+        List<Map.Entry<Integer, CachedBlock>> dirtyBlocks = new ArrayList<>();
+        for (Map.Entry<Integer, CachedBlock> entry : blocks.entrySet()) {
+            if (entry.getValue().dirty) {
+                dirtyBlocks.add(entry);
+            }
+        }
+        dirtyBlocks.sort(Map.Entry.comparingByKey());
+
+        int i = 0;
+        while (i < dirtyBlocks.size()) {
+            int firstBlock = dirtyBlocks.get(i).getKey();
+            int runLength = 1;
+            while (i + runLength < dirtyBlocks.size() &&
+                    dirtyBlocks.get(i + runLength).getKey() == firstBlock + runLength) {
+                runLength++;
+            }
+
+            byte[] run = new byte[blockSize() * runLength];
+            for (int j = 0; j < runLength; j++) {
+                CachedBlock cached = dirtyBlocks.get(i + j).getValue();
+                System.arraycopy(cached.data, 0, run, blockSize() * j, blockSize());
+                cached.dirty = false;
+            }
+            device.writeBlocks(firstBlock, runLength, ByteBuffer.wrap(run));
+            i += runLength;
+        }
+
+        device.sync();
+    }
+
+    /***
+     * Writes back every dirty block and closes the device
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        sync();
+        blocks.clear();
+        device.close();
+    }
+
+    private int blockSize() {
+        return device.getGeometry().getBlockSize();
+    }
+
+    /***
+     * Drops least recently used blocks until the cache is within its
+     * capacity, writing back the dirty ones
+     *
+     * @throws IOException If a dirty block cannot be written
+     */
+    private void evict() throws IOException {
+        Iterator<Map.Entry<Integer, CachedBlock>> eldest = blocks.entrySet().iterator();
+
+        while (blocks.size() > capacity && eldest.hasNext()) {
+            Map.Entry<Integer, CachedBlock> entry = eldest.next();
+            if (entry.getValue().dirty) {
+                device.writeDataBlock(entry.getValue().data, entry.getKey());
+            }
+            eldest.remove();
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package filesystem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/***
+ * A device laid out as a superblock, a free block list, an inode table
+ * and a list of data blocks as described by its <code>Geometry</code>.
+ * <code>FileSystem</code> performs all of its I/O through this interface,
+ * so it can run on a raw disk file, a memory mapping or plain memory.
+ */
+public interface BlockDevice extends Closeable {
+
+    /***
+     * Initialize a new, empty device with the default geometry
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    default void format() throws IOException {
+        format(Geometry.DEFAULT);
+    }
+
+    /***
+     * Initialize a new, empty device with the given geometry, which is
+     * recorded in its superblock
+     *
+     * @param geometry The number and size of the blocks and inodes
+     * @throws IOException If an I/O error occurs
+     */
+    void format(Geometry geometry) throws IOException;
+
+    /***
+     * Open a device that has already been formatted without changing
+     * its contents.  The geometry is taken from its superblock.
+     *
+     * @throws IOException If the device does not exist, cannot be opened
+     *                     or does not hold a valid superblock
+     */
+    void mount() throws IOException;
+
+    /***
+     * Returns the geometry the device was last formatted or mounted with
+     *
+     * @return The geometry of the device
+     */
+    Geometry getGeometry();
+
+    /***
+     * Retrieve the superblock
+     *
+     * @return The superblock stored at the start of the device
+     * @throws IOException If an I/O error occurs
+     */
+    SuperBlock readSuperBlock() throws IOException;
+
+    /***
+     * Writes the superblock to the start of the device
+     *
+     * @param superBlock The superblock to be written
+     * @throws IOException If an I/O error occurs
+     */
+    void writeSuperBlock(SuperBlock superBlock) throws IOException;
+
+    /***
+     * Retrieve the free block list
+     *
+     * @return Returns an array of bytes representing the free block list
+     * @throws IOException If an I/O error occurs
+     */
+    byte[] readFreeBlockList() throws IOException;
+
+    /***
+     * Writes the free block list to the device
+     *
+     * @param freeBlockList Array of bytes representing an updated free
+     *                      byte list
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If the length of the free block list is
+     *                                  not <code>getGeometry().getFreeListSize()</code>
+     */
+    void writeFreeBlockList(byte[] freeBlockList) throws IOException;
+
+    /***
+     * Writes part of the free block list to the device
+     *
+     * @param bytes The bytes of the free block list to be written
+     * @param offset Position of the first of <code>bytes</code> within the
+     *               free block list
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If the bytes do not fall within the
+     *                                  free block list
+     */
+    void writeFreeBlockList(byte[] bytes, int offset) throws IOException;
+
+    /***
+     * Write an <code>INode</code> instance to the appropriate position
+     *
+     * @param inode The Inode to be written
+     * @param whichInode  The position to which the inode is to be written
+     * @throws IOException If an I/O error occurs
+     */
+    void writeInode(INode inode, int whichInode) throws IOException;
+
+    /***
+     * Read an <code>INode</code> instance from the appropriate position
+     *
+     * @param whichInode The <code>INode</code> position to be read
+     * @return An instance of INode read from the device
+     * @throws IOException If an I/O error occurs
+     */
+    INode readInode(int whichInode) throws IOException;
+
+    /***
+     * Reads <code>count</code> adjacent inodes.  Devices read the inode
+     * table region with as few transfers as they can rather than once
+     * per inode.
+     *
+     * @param firstInode The position of the first inode to be read
+     * @param count The number of inodes to read
+     * @return The inodes, <code>firstInode</code> first
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If the inodes do not fall within
+     *                                  the inode table
+     */
+    default INode[] readInodes(int firstInode, int count) throws IOException {
+        Disk.checkInodeRange(firstInode, count, getGeometry());
+
+        INode[] inodes = new INode[count];
+        for (int i = 0; i < count; i++) {
+            inodes[i] = readInode(firstInode + i);
+        }
+
+        return inodes;
+    }
+
+    /***
+     * Reads the whole inode table
+     *
+     * @return Every inode of the device, indexed by inode number
+     * @throws IOException If an I/O error occurs
+     */
+    default INode[] readInodeTable() throws IOException {
+        return readInodes(0, getGeometry().getNumInodes());
+    }
+
+    /***
+     * Reads part of the journal region
+     *
+     * @param offset Position within the journal of the first byte to read
+     * @param dst Buffer receiving the bytes, its position is advanced past them
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If the bytes do not fall within the journal
+     */
+    void readJournal(long offset, ByteBuffer dst) throws IOException;
+
+    /***
+     * Writes part of the journal region
+     *
+     * @param offset Position within the journal of the first byte to write
+     * @param src Buffer holding the bytes, its position is advanced past them
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If the bytes do not fall within the journal
+     */
+    void writeJournal(long offset, ByteBuffer src) throws IOException;
+
+    /***
+     * Reads a data block
+     *
+     * @param whichBlock The position of the data block to be read
+     * @return A block of data at position <code>whichBlock</code>
+     * @throws IOException If an I/O error occurs
+     */
+    byte[] readDataBlock(int whichBlock) throws IOException;
+
+    /***
+     * Writes a data block
+     *
+     * @param blockData Array of bytes to be written to <code>whichBlock</code>
+     * @param whichBlock Block position on the device
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If the length of <code>blockData</code> is not equal
+     *                                  to the length of a data block size
+     */
+    void writeDataBlock(byte[] blockData, int whichBlock) throws IOException, IllegalArgumentException;
+
+    /***
+     * Writes a data block holding block pointers of a file, which a
+     * journaling device logs along with the inodes and free block list.
+     * Other devices write it like any other data block.
+     *
+     * @param blockData Array of bytes to be written to <code>whichBlock</code>
+     * @param whichBlock Block position on the device
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If the length of <code>blockData</code> is not equal
+     *                                  to the length of a data block size
+     */
+    default void writeIndexBlock(byte[] blockData, int whichBlock) throws IOException, IllegalArgumentException {
+        writeDataBlock(blockData, whichBlock);
+    }
+
+    /***
+     * Reads a run of adjacent data blocks with a single transfer into
+     * <code>dst</code>.  At most <code>dst.remaining()</code> bytes are
+     * transferred, so the end of the last block may be left unread.
+     *
+     * @param firstBlock The position of the first data block to be read
+     * @param count The number of blocks to read
+     * @param dst Buffer receiving the data, its position is advanced past it
+     * @throws IOException If an I/O error occurs
+     */
+    void readBlocks(int firstBlock, int count, ByteBuffer dst) throws IOException;
+
+    /***
+     * Writes a run of adjacent data blocks with a single transfer from
+     * <code>src</code>.  All of <code>src.remaining()</code> is written and
+     * the rest of the last block is filled with zeros.
+     *
+     * @param firstBlock Position of the first block on the device
+     * @param count The number of blocks to write
+     * @param src Buffer holding the data, its position is advanced past it
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If <code>src</code> holds more than
+     *                                  <code>count</code> blocks of data
+     */
+    void writeBlocks(int firstBlock, int count, ByteBuffer src) throws IOException, IllegalArgumentException;
+
+    /***
+     * Reads the data blocks listed in <code>blocks</code>, in order, into
+     * <code>dst</code>.  Each run of adjacent block numbers is read with a
+     * single transfer.
+     *
+     * @param blocks Block numbers to read
+     * @param offset Position in <code>blocks</code> of the first block
+     * @param count Number of blocks to read
+     * @param dst Buffer receiving the data, its position is advanced past it
+     * @throws IOException If an I/O error occurs
+     */
+    default void readBlocks(int[] blocks, int offset, int count, ByteBuffer dst) throws IOException {
+        int end = offset + count;
+
+        for (int i = offset; i < end && dst.hasRemaining(); ) {
+            int runLength = runLength(blocks, i, end);
+            readBlocks(blocks[i], runLength, dst);
+            i += runLength;
+        }
+    }
+
+    /***
+     * Writes the data blocks listed in <code>blocks</code>, in order, from
+     * <code>src</code>.  Each run of adjacent block numbers is written with
+     * a single transfer.
+     *
+     * @param blocks Block numbers to write
+     * @param offset Position in <code>blocks</code> of the first block
+     * @param count Number of blocks to write
+     * @param src Buffer holding the data, its position is advanced past it
+     * @throws IOException If an I/O error occurs
+     */
+    default void writeBlocks(int[] blocks, int offset, int count, ByteBuffer src) throws IOException {
+        int end = offset + count;
+
+        for (int i = offset; i < end; ) {
+            int runLength = runLength(blocks, i, end);
+            ByteBuffer run = src.slice(src.position(),
+                    Math.min(src.remaining(), getGeometry().getBlockSize() * runLength));
+
+            writeBlocks(blocks[i], runLength, run);
+            src.position(src.position() + run.capacity());
+            i += runLength;
+        }
+    }
+
+    /***
+     * Forces everything written so far out to durable storage
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    void sync() throws IOException;
+
+    /***
+     * Returns the length of the run of adjacent block numbers that starts
+     * at <code>blocks[from]</code>
+     *
+     * @param blocks Block numbers
+     * @param from Position in <code>blocks</code> at which the run starts
+     * @param end Position in <code>blocks</code> past the last block number
+     * @return The number of blocks in the run
+     */
+    static int runLength(int[] blocks, int from, int end) {
+        int length = 1;
+
+        while (from + length < end && blocks[from + length] == blocks[from] + length) {
+            length++;
+        }
+
+        return length;
+    }
+}
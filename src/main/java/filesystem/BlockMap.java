@@ -0,0 +1,375 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+
+/***
+ * Maps the blocks of a file, in file order, to blocks of the device.
+ *
+ * The first <code>INode.NUM_BLOCK_POINTERS</code> blocks of a file are
+ * held in the inode itself.  The next block's worth of pointers are
+ * listed in a single indirect block, and the rest in the blocks listed by
+ * the double indirect block.  Unused pointers are -1, and a file's blocks
+ * end at the first unused pointer.
+ *
+ * Index blocks are kept decoded in a small LRU cache, so walking a large
+ * file reads each of them from the device once rather than once per data
+ * block.  Changed index blocks are written through to the device, those
+ * the file already had as index blocks, so that a journaling device can
+ * log them, and new ones as plain data blocks.
+ */
+public class BlockMap {
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final int SINGLE_INDIRECT_START = INode.NUM_BLOCK_POINTERS;
+
+    private BlockDevice device;
+    private int blockSize;
+    private int pointersPerBlock;
+    private int doubleIndirectStart;
+    private int capacity;
+    private LinkedHashMap<Integer, int[]> indexBlocks;
+
+    public BlockMap(BlockDevice device) {
+        this(device, DEFAULT_CAPACITY);
+    }
+
+    /***
+     * Create a map reading index blocks from <code>device</code>, which
+     * has already been formatted or mounted
+     *
+     * @param device The device holding the index blocks
+     * @param capacity The number of index blocks to keep in memory
+     */
+    public BlockMap(BlockDevice device, int capacity) {
+        this.device = device;
+        this.blockSize = device.getGeometry().getBlockSize();
+        this.pointersPerBlock = blockSize / Integer.BYTES;
+        this.doubleIndirectStart = SINGLE_INDIRECT_START + pointersPerBlock;
+        this.capacity = capacity;
+        this.indexBlocks = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /***
+     * Returns the number of block pointers that fit in an index block
+     *
+     * @return The number of pointers in an index block
+     */
+    public int getPointersPerBlock() {
+        return pointersPerBlock;
+    }
+
+    /***
+     * Returns the largest number of data blocks a file can have
+     *
+     * @return The number of direct, single and double indirect pointers
+     */
+    public long getMaxBlocks() {
+        return doubleIndirectStart + ((long) pointersPerBlock * pointersPerBlock);
+    }
+
+    /***
+     * Returns the number of index blocks a file of <code>numBlocks</code>
+     * data blocks needs
+     *
+     * @param numBlocks Number of data blocks of the file
+     * @return The number of index blocks
+     */
+    public int indexBlocksNeeded(int numBlocks) {
+        if (numBlocks <= SINGLE_INDIRECT_START) {
+            return 0;
+        }
+        if (numBlocks <= doubleIndirectStart) {
+            return 1;
+        }
+
+        return 2 + ((numBlocks - doubleIndirectStart + pointersPerBlock - 1) / pointersPerBlock);
+    }
+
+    /***
+     * Returns the data blocks of a file in file order
+     *
+     * @param inode The inode of the file
+     * @return The data blocks of the file
+     * @throws IOException If an index block cannot be read
+     */
+    public int[] blocksOf(INode inode) throws IOException {
+        int[] blocks = new int[SINGLE_INDIRECT_START];
+        int count = 0;
+
+        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+            if (inode.getBlockPointer(i) == -1) {
+                return Arrays.copyOf(blocks, count);
+            }
+            blocks[count++] = inode.getBlockPointer(i);
+        }
+
+        if (inode.getSingleIndirectPointer() == -1) {
+            return blocks;
+        }
+        blocks = Arrays.copyOf(blocks, doubleIndirectStart);
+        for (int pointer : indexBlock(inode.getSingleIndirectPointer())) {
+            if (pointer == -1) {
+                return Arrays.copyOf(blocks, count);
+            }
+            blocks[count++] = pointer;
+        }
+
+        if (inode.getDoubleIndirectPointer() == -1) {
+            return blocks;
+        }
+        for (int indirect : indexBlock(inode.getDoubleIndirectPointer())) {
+            if (indirect == -1) {
+                break;
+            }
+            blocks = Arrays.copyOf(blocks, count + pointersPerBlock);
+            for (int pointer : indexBlock(indirect)) {
+                if (pointer == -1) {
+                    return Arrays.copyOf(blocks, count);
+                }
+                blocks[count++] = pointer;
+            }
+        }
+
+        return Arrays.copyOf(blocks, count);
+    }
+
+    /***
+     * Returns the index blocks of a file
+     *
+     * @param inode The inode of the file
+     * @return The index blocks of the file
+     * @throws IOException If an index block cannot be read
+     */
+    public int[] indexBlocksOf(INode inode) throws IOException {
+        if (inode.getSingleIndirectPointer() == -1) {
+            return new int[0];
+        }
+        if (inode.getDoubleIndirectPointer() == -1) {
+            return new int[]{inode.getSingleIndirectPointer()};
+        }
+
+        int[] result = new int[2 + pointersPerBlock];
+        int count = 0;
+        result[count++] = inode.getSingleIndirectPointer();
+        result[count++] = inode.getDoubleIndirectPointer();
+        for (int indirect : indexBlock(inode.getDoubleIndirectPointer())) {
+            if (indirect == -1) {
+                break;
+            }
+            result[count++] = indirect;
+        }
+
+        return Arrays.copyOf(result, count);
+    }
+
+    /***
+     * Points the file at <code>blocks[from..]</code>, which follow the
+     * blocks it already has, taking new index blocks from
+     * <code>newIndexBlocks</code> as they are needed
+     *
+     * @param inode The inode of the file, it has <code>from</code> blocks
+     * @param blocks Every data block of the file, in file order
+     * @param from Number of blocks the file has already
+     * @param newIndexBlocks Free blocks to use as index blocks, at least
+     *                       <code>indexBlocksNeeded(blocks.length) - indexBlocksNeeded(from)</code>
+     * @throws IOException If an index block cannot be read or written
+     */
+    public void extend(INode inode, int[] blocks, int from, int[] newIndexBlocks) throws IOException {
+        Map<Integer, int[]> changed = new LinkedHashMap<>();
+        Set<Integer> fresh = new HashSet<>();
+        int nextIndexBlock = 0;
+
+        for (int i = from; i < blocks.length; i++) {
+            if (i < SINGLE_INDIRECT_START) {
+                inode.setBlockPointer(i, blocks[i]);
+                continue;
+            }
+
+            int[] pointers;
+            int slot;
+            if (i < doubleIndirectStart) {
+                if (inode.getSingleIndirectPointer() == -1) {
+                    inode.setSingleIndirectPointer(newIndexBlocks[nextIndexBlock++]);
+                    changed.put(inode.getSingleIndirectPointer(), emptyIndexBlock());
+                    fresh.add(inode.getSingleIndirectPointer());
+                }
+                pointers = changedIndexBlock(inode.getSingleIndirectPointer(), changed);
+                slot = i - SINGLE_INDIRECT_START;
+            } else {
+                if (inode.getDoubleIndirectPointer() == -1) {
+                    inode.setDoubleIndirectPointer(newIndexBlocks[nextIndexBlock++]);
+                    changed.put(inode.getDoubleIndirectPointer(), emptyIndexBlock());
+                    fresh.add(inode.getDoubleIndirectPointer());
+                }
+                int[] indirects = changedIndexBlock(inode.getDoubleIndirectPointer(), changed);
+                int outer = (i - doubleIndirectStart) / pointersPerBlock;
+                if (indirects[outer] == -1) {
+                    indirects[outer] = newIndexBlocks[nextIndexBlock++];
+                    changed.put(indirects[outer], emptyIndexBlock());
+                    fresh.add(indirects[outer]);
+                }
+                pointers = changedIndexBlock(indirects[outer], changed);
+                slot = (i - doubleIndirectStart) % pointersPerBlock;
+            }
+            pointers[slot] = blocks[i];
+        }
+
+        writeIndexBlocks(changed, fresh);
+    }
+
+    /***
+     * Removes the blocks of a file from <code>keptBlocks</code> on, along
+     * with the index blocks no longer needed, clearing their pointers
+     *
+     * @param inode The inode of the file
+     * @param keptBlocks Number of data blocks the file keeps
+     * @return The data and index blocks removed, to be freed by the caller
+     * @throws IOException If an index block cannot be read or written
+     */
+    public int[] truncate(INode inode, int keptBlocks) throws IOException {
+        int[] blocks = blocksOf(inode);
+        int[] indexBlocks = indexBlocksOf(inode);
+
+        if (keptBlocks >= blocks.length) {
+            return new int[0];
+        }
+
+        int[] freed = Arrays.copyOfRange(blocks, keptBlocks,
+                blocks.length + indexBlocks.length - indexBlocksNeeded(keptBlocks));
+        int count = blocks.length - keptBlocks;
+        Map<Integer, int[]> changed = new LinkedHashMap<>();
+
+        for (int i = keptBlocks; i < Math.min(blocks.length, SINGLE_INDIRECT_START); i++) {
+            inode.setBlockPointer(i, -1);
+        }
+
+        if (blocks.length > SINGLE_INDIRECT_START) {
+            if (keptBlocks <= SINGLE_INDIRECT_START) {
+                freed[count++] = release(inode.getSingleIndirectPointer());
+                inode.setSingleIndirectPointer(-1);
+            } else if (keptBlocks < doubleIndirectStart) {
+                int[] pointers = changedIndexBlock(inode.getSingleIndirectPointer(), changed);
+                Arrays.fill(pointers, keptBlocks - SINGLE_INDIRECT_START, pointersPerBlock, -1);
+            }
+        }
+
+        if (blocks.length > doubleIndirectStart) {
+            int keptIndirects = keptBlocks <= doubleIndirectStart ? 0 :
+                    (keptBlocks - doubleIndirectStart + pointersPerBlock - 1) / pointersPerBlock;
+            int[] indirects = changedIndexBlock(inode.getDoubleIndirectPointer(), changed);
+
+            for (int outer = keptIndirects; outer < pointersPerBlock && indirects[outer] != -1; outer++) {
+                freed[count++] = release(indirects[outer]);
+                indirects[outer] = -1;
+            }
+            if (keptIndirects == 0) {
+                changed.remove(inode.getDoubleIndirectPointer());
+                freed[count++] = release(inode.getDoubleIndirectPointer());
+                inode.setDoubleIndirectPointer(-1);
+            } else {
+                int slot = (keptBlocks - doubleIndirectStart) % pointersPerBlock;
+                if (slot != 0) {
+                    int[] pointers = changedIndexBlock(indirects[keptIndirects - 1], changed);
+                    Arrays.fill(pointers, slot, pointersPerBlock, -1);
+                }
+            }
+        }
+
+        writeIndexBlocks(changed, Collections.emptySet());
+
+        return freed;
+    }
+
+    /***
+     * Drops every cached index block
+     */
+    public synchronized void clear() {
+        indexBlocks.clear();
+    }
+
+    /***
+     * Returns the pointers held in an index block, from the cache if it
+     * is there
+     */
+    private synchronized int[] indexBlock(int whichBlock) throws IOException {
+        int[] pointers = indexBlocks.get(whichBlock);
+
+        if (pointers == null) {
+            pointers = new int[pointersPerBlock];
+            ByteBuffer.wrap(device.readDataBlock(whichBlock)).asIntBuffer().get(pointers);
+            indexBlocks.put(whichBlock, pointers);
+            evict();
+        }
+
+        return pointers;
+    }
+
+    /***
+     * Returns a private copy of an index block to change, remembering it
+     * in <code>changed</code> so that it is written back
+     */
+    private int[] changedIndexBlock(int whichBlock, Map<Integer, int[]> changed) throws IOException {
+        int[] pointers = changed.get(whichBlock);
+
+        if (pointers == null) {
+            pointers = indexBlock(whichBlock).clone();
+            changed.put(whichBlock, pointers);
+        }
+
+        return pointers;
+    }
+
+    /***
+     * Writes changed index blocks to the device and the cache.  The
+     * blocks in <code>fresh</code> were free until now, so nothing on the
+     * device refers to them yet.
+     */
+    private void writeIndexBlocks(Map<Integer, int[]> changed, Set<Integer> fresh) throws IOException {
+        for (Map.Entry<Integer, int[]> entry : changed.entrySet()) {
+            byte[] block = new byte[blockSize];
+            ByteBuffer.wrap(block).asIntBuffer().put(entry.getValue());
+            if (fresh.contains(entry.getKey())) {
+                device.writeDataBlock(block, entry.getKey());
+            } else {
+                device.writeIndexBlock(block, entry.getKey());
+            }
+
+            synchronized (this) {
+                indexBlocks.put(entry.getKey(), entry.getValue());
+                evict();
+            }
+        }
+    }
+
+    /***
+     * Forgets an index block that is being freed and returns its number
+     */
+    private synchronized int release(int whichBlock) {
+        indexBlocks.remove(whichBlock);
+        return whichBlock;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Integer, int[]>> eldest = indexBlocks.entrySet().iterator();
+
+        while (indexBlocks.size() > capacity && eldest.hasNext()) {
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    private int[] emptyIndexBlock() {
+        int[] pointers = new int[pointersPerBlock];
+        Arrays.fill(pointers, -1);
+        return pointers;
+    }
+}
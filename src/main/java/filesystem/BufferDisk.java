@@ -0,0 +1,236 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/***
+ * A <code>BlockDevice</code> whose whole contents live in a single
+ * <code>ByteBuffer</code>.  The free block list, inode table and data
+ * blocks are read and written with absolute bulk gets and puts, so no
+ * operation needs a system call.  Absolute operations never touch the
+ * buffer's position, so threads working on different parts of the device
+ * do not interfere.  Subclasses decide where the buffer comes from.
+ */
+public abstract class BufferDisk implements BlockDevice {
+    private ByteBuffer disk;
+    private Geometry geometry = Geometry.DEFAULT;
+
+    /***
+     * Returns a zero filled buffer of <code>size</code> bytes to hold the
+     * device
+     *
+     * @param size The size of the device in bytes
+     * @return The buffer holding the device
+     * @throws IOException If the buffer cannot be obtained
+     */
+    protected abstract ByteBuffer allocate(int size) throws IOException;
+
+    /***
+     * Returns the buffer holding an already formatted device, at least as
+     * large as the geometry recorded in its superblock says.  By default
+     * this is the buffer handed out by the last <code>format()</code>.
+     *
+     * @return The buffer holding the device
+     * @throws IOException If the device has never been formatted
+     */
+    protected ByteBuffer reopen() throws IOException {
+        if (disk == null) {
+            throw new IOException("BufferDisk::mount: device has never been formatted");
+        }
+        return disk;
+    }
+
+    /***
+     * Initialize a new disk in a freshly allocated buffer
+     *
+     * @param geometry The number and size of the blocks and inodes
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If the device would be too large
+     *                                  to fit in a buffer
+     */
+    @Override
+    public void format(Geometry geometry) throws IOException {
+        if (geometry.getDiskSize() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("BufferDisk::format: " + geometry +
+                    " is " + geometry.getDiskSize() + " bytes, too large for a buffer");
+        }
+        disk = allocate((int) geometry.getDiskSize());
+        this.geometry = geometry;
+
+        /**
+         * The buffer starts out zeroed, so the free block list, the
+         * inode table and the data blocks are already empty.
+         */
+        writeSuperBlock(new SuperBlock(geometry));
+
+        sync();
+    }
+
+    /***
+     * Reopens the buffer holding the device and takes its geometry from
+     * the superblock
+     *
+     * @throws IOException If the device has not been formatted or is
+     *                     smaller than its geometry says
+     */
+    @Override
+    public void mount() throws IOException {
+        disk = reopen();
+
+        SuperBlock superBlock = readSuperBlock();
+        superBlock.validate();
+        Geometry mounted = superBlock.getGeometry();
+        if (disk.capacity() < mounted.getDiskSize()) {
+            throw new IOException("BufferDisk::mount: device is " + disk.capacity() +
+                    " bytes long instead of " + mounted.getDiskSize() + " bytes long");
+        }
+        geometry = mounted;
+    }
+
+    @Override
+    public Geometry getGeometry() {
+        return geometry;
+    }
+
+    @Override
+    public SuperBlock readSuperBlock() throws IOException {
+        byte[] superBlockBytes = new byte[Disk.SUPERBLOCK_SIZE];
+        SuperBlock superBlock = new SuperBlock();
+
+        disk.get(0, superBlockBytes);
+        superBlock.setBytes(superBlockBytes);
+
+        return superBlock;
+    }
+
+    @Override
+    public void writeSuperBlock(SuperBlock superBlock) throws IOException {
+        disk.put(0, superBlock.getBytes());
+    }
+
+    @Override
+    public byte[] readFreeBlockList() throws IOException {
+        byte[] freeList = new byte[geometry.getFreeListSize()];
+
+        disk.get((int) geometry.getFreeListOffset(), freeList);
+
+        return freeList;
+    }
+
+    @Override
+    public void writeFreeBlockList(byte[] freeBlockList) throws IOException {
+        if (freeBlockList.length != geometry.getFreeListSize()) {
+            throw new IllegalArgumentException("BufferDisk::writeFreeBlockList:  " +
+                    "is "  +  freeBlockList.length +
+                    "bytes long  instead of "  +
+                    geometry.getFreeListSize() +
+                    " bytes long");
+        }
+
+        disk.put((int) geometry.getFreeListOffset(), freeBlockList);
+    }
+
+    @Override
+    public void writeFreeBlockList(byte[] bytes, int offset) throws IOException {
+        Disk.checkFreeBlockListRange(bytes, offset, geometry);
+
+        disk.put((int) geometry.getFreeListOffset() + offset, bytes);
+    }
+
+    @Override
+    public void writeInode(INode inode, int whichInode) throws IOException {
+        INodeCodec.get().put(inode, disk, (int) geometry.getInodeOffset(whichInode));
+    }
+
+    @Override
+    public INode readInode(int whichInode) throws IOException {
+        return INodeCodec.get().get(disk, (int) geometry.getInodeOffset(whichInode));
+    }
+
+    @Override
+    public INode[] readInodes(int firstInode, int count) throws IOException {
+        Disk.checkInodeRange(firstInode, count, geometry);
+
+        INodeCodec codec = INodeCodec.get();
+        INode[] inodes = new INode[count];
+        for (int i = 0; i < count; i++) {
+            inodes[i] = codec.get(disk, (int) geometry.getInodeOffset(firstInode + i));
+        }
+
+        return inodes;
+    }
+
+    @Override
+    public void readJournal(long offset, ByteBuffer dst) throws IOException {
+        Disk.checkJournalRange(offset, dst.remaining(), geometry);
+
+        int length = dst.remaining();
+        dst.put(disk.slice((int) (geometry.getJournalOffset() + offset), length));
+    }
+
+    @Override
+    public void writeJournal(long offset, ByteBuffer src) throws IOException {
+        Disk.checkJournalRange(offset, src.remaining(), geometry);
+
+        disk.put((int) (geometry.getJournalOffset() + offset), src, src.position(), src.remaining());
+        src.position(src.limit());
+    }
+
+    @Override
+    public byte[] readDataBlock(int whichBlock) throws IOException {
+        byte[] blockData = new byte[geometry.getBlockSize()];
+
+        disk.get((int) geometry.getBlockOffset(whichBlock), blockData);
+
+        return blockData;
+    }
+
+    @Override
+    public void writeDataBlock(byte[] blockData, int whichBlock) throws IOException, IllegalArgumentException {
+        if (blockData.length != geometry.getBlockSize()) {
+            throw new IllegalArgumentException("BufferDisk::writeDataBlock:  "  +
+                    "storing block of size " + blockData.length  +
+                    "when it should be of size "  + geometry.getBlockSize());
+        }
+
+        disk.put((int) geometry.getBlockOffset(whichBlock), blockData);
+    }
+
+    @Override
+    public void readBlocks(int firstBlock, int count, ByteBuffer dst) throws IOException {
+        int length = Math.min(dst.remaining(), geometry.getBlockSize() * count);
+
+        dst.put(dst.position(), disk, (int) geometry.getBlockOffset(firstBlock), length);
+        dst.position(dst.position() + length);
+    }
+
+    @Override
+    public void writeBlocks(int firstBlock, int count, ByteBuffer src) throws IOException, IllegalArgumentException {
+        int cursor = (int) geometry.getBlockOffset(firstBlock);
+
+        for (ByteBuffer part : Disk.blockRun(count, src, geometry.getBlockSize())) {
+            disk.put(cursor, part, 0, part.remaining());
+            cursor += part.remaining();
+        }
+    }
+
+    /***
+     * Memory is not durable, so by default there is nothing to force out
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    @Override
+    public void sync() throws IOException {
+    }
+
+    /***
+     * Memory holds no resources that need releasing, so by default the
+     * contents stay available for a later <code>mount()</code>
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+    }
+}
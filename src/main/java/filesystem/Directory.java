@@ -0,0 +1,310 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/***
+ * Reads and writes the entries of directories, which are kept in the
+ * data blocks of the directory's inode as a hash table.
+ *
+ * Each block is a bucket.  An entry is the inode number plus one, a type
+ * byte, the length of the name and the name, packed one after another
+ * from the start of the block.  An inode number field of 0 ends the
+ * bucket, so a zero filled block is an empty one.  A name belongs in
+ * bucket <code>hash(name) mod n</code>, where the number of buckets
+ * <code>n</code> is always a power of two, so finding a name reads one
+ * block.
+ *
+ * When the bucket a new name belongs in is full the directory doubles.
+ * Each new bucket <code>i + n</code> is a fresh block receiving the
+ * entries of bucket <code>i</code> that now hash to it, while bucket
+ * <code>i</code> is left as it is, so the directory is whole on the device
+ * whether or not its new size survives a crash.  An entry is therefore
+ * only live in the bucket its name hashes to.  The copies left behind are
+ * skipped by every search and dropped when their bucket is next written.
+ */
+public class Directory {
+    /**
+     * Inode number, type and name length
+     */
+    static final int ENTRY_HEADER_SIZE = Integer.BYTES + 2;
+
+    private static final byte FILE_ENTRY = 1;
+    private static final byte DIRECTORY_ENTRY = 2;
+
+    private final BlockDevice device;
+    private final BlockMap blockMap;
+
+    /***
+     * An entry of a directory
+     */
+    public static class Entry {
+        private final String name;
+        private final int iNodeNumber;
+        private final boolean directory;
+
+        private Entry(String name, int iNodeNumber, boolean directory) {
+            this.name = name;
+            this.iNodeNumber = iNodeNumber;
+            this.directory = directory;
+        }
+
+        /***
+         * Returns the name of the entry
+         * @return Returns the name of the entry
+         */
+        public String getName() {
+            return name;
+        }
+
+        /***
+         * Returns the inode number of the entry
+         * @return Returns the inode number of the entry
+         */
+        public int getINodeNumber() {
+            return iNodeNumber;
+        }
+
+        /***
+         * Returns true if the entry is a directory
+         * @return Returns true if the entry is a directory
+         */
+        public boolean isDirectory() {
+            return directory;
+        }
+    }
+
+    /***
+     * Create a reader and writer of the directories on <code>device</code>
+     *
+     * @param device The device holding the directories
+     * @param blockMap The map from inodes to their blocks on that device
+     */
+    public Directory(BlockDevice device, BlockMap blockMap) {
+        this.device = device;
+        this.blockMap = blockMap;
+    }
+
+    /***
+     * Finds a name in a directory
+     *
+     * @param directory The inode of the directory
+     * @param name The name to find
+     * @return The inode number the name refers to, or -1 if it is not there
+     * @throws IOException If the bucket cannot be read
+     */
+    public int lookup(INode directory, String name) throws IOException {
+        byte[] encoded = name.getBytes();
+        int[] buckets = blockMap.blocksOf(directory);
+        if (buckets.length == 0) {
+            return -1;
+        }
+
+        int bucket = bucketOf(encoded, buckets.length);
+        ByteBuffer block = ByteBuffer.wrap(device.readDataBlock(buckets[bucket]));
+        for (int position = 0; hasEntry(block, position); position = nextEntry(block, position)) {
+            if (isLive(block, position, bucket, buckets.length) && nameEquals(block, position, encoded)) {
+                return block.getInt(position) - 1;
+            }
+        }
+
+        return -1;
+    }
+
+    /***
+     * Adds an entry to a directory, writing the bucket it belongs in.  The
+     * name must not already be in the directory.
+     *
+     * @param directory The inode of the directory
+     * @param name The name of the entry
+     * @param iNodeNumber The inode number the name refers to
+     * @param isDirectory true if the entry is a directory
+     * @return false if the bucket is full, or there are no buckets, and the
+     *         directory has to grow first
+     * @throws IOException If the bucket cannot be read or written
+     */
+    public boolean add(INode directory, String name, int iNodeNumber, boolean isDirectory) throws IOException {
+        byte[] encoded = name.getBytes();
+        int[] buckets = blockMap.blocksOf(directory);
+        if (buckets.length == 0) {
+            return false;
+        }
+
+        int bucket = bucketOf(encoded, buckets.length);
+        ByteBuffer block = liveEntries(device.readDataBlock(buckets[bucket]), bucket, buckets.length, null);
+        if (block.remaining() < ENTRY_HEADER_SIZE + encoded.length) {
+            return false;
+        }
+
+        block.putInt(iNodeNumber + 1)
+                .put(isDirectory ? DIRECTORY_ENTRY : FILE_ENTRY)
+                .put((byte) encoded.length)
+                .put(encoded);
+        device.writeIndexBlock(block.array(), buckets[bucket]);
+
+        return true;
+    }
+
+    /***
+     * Removes an entry from a directory, writing the bucket it was in
+     *
+     * @param directory The inode of the directory
+     * @param name The name of the entry
+     * @return true if the entry was there
+     * @throws IOException If the bucket cannot be read or written
+     */
+    public boolean remove(INode directory, String name) throws IOException {
+        byte[] encoded = name.getBytes();
+        int[] buckets = blockMap.blocksOf(directory);
+        if (buckets.length == 0) {
+            return false;
+        }
+
+        int bucket = bucketOf(encoded, buckets.length);
+        byte[] data = device.readDataBlock(buckets[bucket]);
+        ByteBuffer block = liveEntries(data, bucket, buckets.length, encoded);
+        if (block == null) {
+            return false;
+        }
+        device.writeIndexBlock(block.array(), buckets[bucket]);
+
+        return true;
+    }
+
+    /***
+     * Returns every entry of a directory, in bucket order
+     *
+     * @param directory The inode of the directory
+     * @return The entries of the directory
+     * @throws IOException If a bucket cannot be read
+     */
+    public List<Entry> list(INode directory) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        int[] buckets = blockMap.blocksOf(directory);
+
+        for (int bucket = 0; bucket < buckets.length; bucket++) {
+            ByteBuffer block = ByteBuffer.wrap(device.readDataBlock(buckets[bucket]));
+            for (int position = 0; hasEntry(block, position); position = nextEntry(block, position)) {
+                if (isLive(block, position, bucket, buckets.length)) {
+                    entries.add(new Entry(new String(name(block, position)), block.getInt(position) - 1,
+                            block.get(position + Integer.BYTES) == DIRECTORY_ENTRY));
+                }
+            }
+        }
+
+        return entries;
+    }
+
+    /***
+     * Fills in the buckets added when a directory doubles.  The caller has
+     * already pointed the directory at twice as many blocks, and changes
+     * its size once the new buckets are written.
+     *
+     * @param buckets The blocks of the directory, old buckets first
+     * @param oldBuckets Number of buckets before the directory doubled
+     * @throws IOException If a bucket cannot be read or written
+     */
+    public void split(int[] buckets, int oldBuckets) throws IOException {
+        int blockSize = device.getGeometry().getBlockSize();
+
+        /**
+         * The new buckets are fresh blocks nothing on the device refers
+         * to yet, so they are written in place
+         */
+        if (oldBuckets == 0) {
+            for (int bucket : buckets) {
+                device.writeDataBlock(new byte[blockSize], bucket);
+            }
+            return;
+        }
+
+        for (int bucket = 0; bucket < oldBuckets; bucket++) {
+            ByteBuffer block = ByteBuffer.wrap(device.readDataBlock(buckets[bucket]));
+            ByteBuffer moved = ByteBuffer.allocate(blockSize);
+
+            for (int position = 0; hasEntry(block, position); position = nextEntry(block, position)) {
+                if (isLive(block, position, bucket, oldBuckets) &&
+                        bucketOf(name(block, position), buckets.length) == bucket + oldBuckets) {
+                    moved.put(block.array(), position, nextEntry(block, position) - position);
+                }
+            }
+            device.writeDataBlock(moved.array(), buckets[bucket + oldBuckets]);
+        }
+    }
+
+    /***
+     * Returns the bucket a name belongs in
+     *
+     * @param name The encoded name
+     * @param buckets The number of buckets, a power of two
+     * @return The bucket number
+     */
+    static int bucketOf(byte[] name, int buckets) {
+        /**
+         * 32 bit FNV-1a, which is cheap and stable from one run to the next
+         */
+        int hash = 0x811c9dc5;
+        for (byte b : name) {
+            hash ^= b & 0xFF;
+            hash *= 0x01000193;
+        }
+
+        return hash & (buckets - 1);
+    }
+
+    /***
+     * Copies the live entries of a bucket, leaving out any named
+     * <code>without</code>, into a new block
+     *
+     * @return The new block positioned after the last entry, or null if
+     *         <code>without</code> was given and not found
+     */
+    private ByteBuffer liveEntries(byte[] data, int bucket, int buckets, byte[] without) {
+        ByteBuffer block = ByteBuffer.wrap(data);
+        ByteBuffer live = ByteBuffer.allocate(data.length);
+        boolean found = false;
+
+        for (int position = 0; hasEntry(block, position); position = nextEntry(block, position)) {
+            if (!isLive(block, position, bucket, buckets)) {
+                continue;
+            }
+            if (without != null && nameEquals(block, position, without)) {
+                found = true;
+                continue;
+            }
+            live.put(data, position, nextEntry(block, position) - position);
+        }
+
+        return without != null && !found ? null : live;
+    }
+
+    private static boolean hasEntry(ByteBuffer block, int position) {
+        return position + ENTRY_HEADER_SIZE <= block.capacity() && block.getInt(position) != 0;
+    }
+
+    private static int nextEntry(ByteBuffer block, int position) {
+        return position + ENTRY_HEADER_SIZE + (block.get(position + Integer.BYTES + 1) & 0xFF);
+    }
+
+    private static byte[] name(ByteBuffer block, int position) {
+        byte[] name = new byte[block.get(position + Integer.BYTES + 1) & 0xFF];
+        block.get(position + ENTRY_HEADER_SIZE, name);
+
+        return name;
+    }
+
+    private static boolean nameEquals(ByteBuffer block, int position, byte[] name) {
+        int length = block.get(position + Integer.BYTES + 1) & 0xFF;
+
+        return length == name.length && Arrays.equals(block.array(), position + ENTRY_HEADER_SIZE,
+                position + ENTRY_HEADER_SIZE + length, name, 0, name.length);
+    }
+
+    private static boolean isLive(ByteBuffer block, int position, int bucket, int buckets) {
+        return bucketOf(name(block, position), buckets) == bucket;
+    }
+}
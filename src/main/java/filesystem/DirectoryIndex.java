@@ -0,0 +1,133 @@
+package filesystem;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+
+/***
+ * The in-memory state of the namespace: which inodes are free, and a
+ * cache of recently used directory entries (dentries) so that resolving
+ * a hot path does not read the directories along it.  The cache holds up
+ * to <code>capacity</code> entries and drops the least recently used.
+ */
+public class DirectoryIndex {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private TreeSet<Integer> freeINodes;
+    private LinkedHashMap<String, Integer> dentries;
+    private int capacity;
+
+    public DirectoryIndex() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /***
+     * Create an index caching up to <code>capacity</code> directory entries
+     *
+     * @param capacity The number of directory entries to cache
+     */
+    public DirectoryIndex(int capacity) {
+        this.freeINodes = new TreeSet<>();
+        this.capacity = capacity;
+
+        /**
+         * An access ordered map keeps the least recently used
+         * entry at the head of the iteration order.
+         */
+        this.dentries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /***
+     * Rebuilds the index from the inode table of <code>disk</code>, which
+     * is read in one go
+     *
+     * @param disk The disk holding the inode table
+     * @throws IOException If the inode table cannot be read
+     */
+    public void load(BlockDevice disk) throws IOException {
+        load(disk.readInodeTable());
+    }
+
+    /***
+     * Rebuilds the index from an inode table already in memory.  Every
+     * unnamed inode is added to the free set and the cache is emptied.
+     *
+     * @param inodeTable Every inode of the disk, indexed by inode number
+     */
+    public synchronized void load(INode[] inodeTable) {
+        freeINodes.clear();
+        dentries.clear();
+
+        for (int i = 0; i < inodeTable.length; i++) {
+            if (inodeTable[i].getFileName() == null) {
+                freeINodes.add(i);
+            }
+        }
+    }
+
+    /***
+     * Finds a cached entry of a directory
+     *
+     * @param directory The inode number of the directory
+     * @param name Name of the entry
+     * @return The inode number of the entry or -1 if it is not cached
+     */
+    public synchronized int lookup(int directory, String name) {
+        Integer iNodeNumber = dentries.get(key(directory, name));
+
+        return iNodeNumber == null ? -1 : iNodeNumber;
+    }
+
+    /***
+     * Caches an entry of a directory
+     *
+     * @param directory The inode number of the directory
+     * @param name Name of the entry
+     * @param iNodeNumber The inode number of the entry
+     */
+    public synchronized void cache(int directory, String name, int iNodeNumber) {
+        dentries.put(key(directory, name), iNodeNumber);
+        if (dentries.size() > capacity) {
+            dentries.remove(dentries.keySet().iterator().next());
+        }
+    }
+
+    /***
+     * Drops an entry of a directory from the cache
+     *
+     * @param directory The inode number of the directory
+     * @param name Name of the entry
+     */
+    public synchronized void evict(int directory, String name) {
+        dentries.remove(key(directory, name));
+    }
+
+    /***
+     * Reserves the lowest numbered free inode
+     *
+     * @return The reserved inode number or -1 if every inode is in use
+     */
+    public synchronized int allocate() {
+        Integer iNodeNumber = freeINodes.pollFirst();
+
+        return iNodeNumber == null ? -1 : iNodeNumber;
+    }
+
+    /***
+     * Returns an inode to the free set
+     *
+     * @param iNodeNumber The inode number released
+     */
+    public synchronized void release(int iNodeNumber) {
+        freeINodes.add(iNodeNumber);
+    }
+
+    /**
+     * Names never hold a '/', so it separates the directory from the name
+     */
+    private static String key(int directory, String name) {
+        return directory + "/" + name;
+    }
+}
@@ -1,10 +1,24 @@
 package filesystem;
 
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-
-
-public class Disk {
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/***
+ * A <code>BlockDevice</code> stored in a raw disk file.  All I/O goes
+ * through positional reads and writes on the file's channel, so no
+ * operation depends on a shared file pointer and the disk can be used by
+ * several threads at once.
+ *
+ * The constants below describe the default geometry, used when a disk is
+ * formatted without one being given; <code>Geometry</code> works out the
+ * layout of any other.
+ */
+public class Disk implements BlockDevice {
     public static final  String RAW_DISK_NAME = "RawDevice.dsk";
     public static final int NUM_BLOCKS = 16384;
     public static final int NUM_INODES = 1024;
@@ -16,52 +30,154 @@ public class Disk {
             INode.SIZE_FIELD_SIZE +
             (INode.NUM_BLOCK_POINTERS * INode.BLOCK_POINTER_SIZE);
 
+    /**
+     * The superblock takes the same number of bytes whatever the block size
+     */
+    public static final int SUPERBLOCK_SIZE = 512;
+
+    /**
+     * Number of bytes of an inode record holding its flag byte and fields,
+     * the rest of the record is unused
+     */
+    public static final int INODE_FIELDS_SIZE = 1 +
+            INode.FILE_NAME_SIZE +
+            Integer.BYTES +
+            (INode.NUM_BLOCK_POINTERS * Integer.BYTES) +
+            (2 * Integer.BYTES);
+
+    /**
+     * Byte offset of the data blocks of a disk with the default geometry
+     */
+    public static final int DATA_BLOCKS_OFFSET = (int) Geometry.DEFAULT.getDataBlocksOffset();
+    public static final long DISK_SIZE = DATA_BLOCKS_OFFSET + ((long) BLOCK_SIZE * NUM_BLOCKS);
+
+    /**
+     * Most bytes of the inode table read by a single transfer
+     */
+    private static final int INODE_TABLE_READ_BYTES = 16 << 20;
+
+    /**
+     * Longest run whose partly filled last block is padded by copying, so
+     * that it is written with one system call
+     */
+    private static final int PADDED_COPY_LIMIT = 64 << 10;
+
     private static String RAW_DISK_MODE = "rw";
 
     private String diskFileName;
     private RandomAccessFile rawDisk;
+    private FileChannel channel;
+    private Geometry geometry = Geometry.DEFAULT;
 
     public Disk() {
-        this.diskFileName = RAW_DISK_NAME;
+        this(RAW_DISK_NAME);
+    }
+
+    /***
+     * Create a disk stored in the file <code>diskFileName</code>
+     *
+     * @param diskFileName Path of the raw disk file
+     */
+    public Disk(String diskFileName) {
+        this.diskFileName = diskFileName;
     }
 
     /***
      * Initialize a new disk
      *
+     * The raw disk file is truncated and then extended to its full size,
+     * which leaves the free block list and every data block reading as
+     * zeros without writing them (the file is sparse where the file
+     * system supports it).  A zeroed inode record is a free one, so the
+     * inode table is empty too and only the superblock is written.
+     *
+     * @param geometry The number and size of the blocks and inodes
      * @throws IOException If an I/O error occurs
      */
-    public void format() throws IOException {
+    public void format(Geometry geometry) throws IOException {
+        close();
         rawDisk = new RandomAccessFile(diskFileName, RAW_DISK_MODE);
-        byte[] freeListBytes = new byte[BYTES_IN_FREE_SPACE_LIST];
+        channel = rawDisk.getChannel();
+        this.geometry = geometry;
 
-        INode emptyINode = new INode();
+        rawDisk.setLength(0);
+        rawDisk.setLength(geometry.getDiskSize());
 
-        byte[] emptyDiskBlock = new byte[BLOCK_SIZE];
+        writeSuperBlock(new SuperBlock(geometry));
+    }
 
-        /**
-         * write an empty free block list
-         */
-        rawDisk.write(freeListBytes);
+    /***
+     * Open the existing raw disk file without formatting it, taking the
+     * geometry from its superblock
+     *
+     * @throws IOException If the raw disk file does not exist, does not
+     *                     hold a valid superblock or is too small to hold
+     *                     the disk its superblock describes
+     */
+    public void mount() throws IOException {
+        close();
+        if (!new File(diskFileName).isFile()) {
+            throw new IOException("Disk::mount: " + diskFileName + " does not exist");
+        }
 
-        /**
-         * write empty inodes
-         */
-        for(int i= 0; i < NUM_INODES; i++) {
-            rawDisk.write(emptyINode.getFileNameBytes());
-            rawDisk.write(emptyINode.getSizeBytes());
+        rawDisk = new RandomAccessFile(diskFileName, RAW_DISK_MODE);
+        channel = rawDisk.getChannel();
 
-            for (int blkPtrIndex= 0; blkPtrIndex < INode.NUM_BLOCK_POINTERS; blkPtrIndex++) {
-                byte[] blockPtr = emptyINode.getBlockPointerBytes(blkPtrIndex);
-                rawDisk.write(blockPtr);
+        Geometry mounted;
+        try {
+            if (rawDisk.length() < SUPERBLOCK_SIZE) {
+                throw new IOException("Disk::mount: " + diskFileName + " is too short to hold a superblock");
             }
+            SuperBlock superBlock = readSuperBlock();
+            superBlock.validate();
+            mounted = superBlock.getGeometry();
+        } catch (IOException e) {
+            close();
+            throw e;
         }
 
-        /**
-         * write empty disk data blocks
-         */
-        for (int blkCount= 0; blkCount < NUM_BLOCKS; blkCount++) {
-            rawDisk.write(emptyDiskBlock);
+        if (rawDisk.length() < mounted.getDiskSize()) {
+            long length = rawDisk.length();
+            close();
+            throw new IOException("Disk::mount: " + diskFileName + " is " + length +
+                    " bytes long instead of " + mounted.getDiskSize() + " bytes long");
         }
+        geometry = mounted;
+    }
+
+    /***
+     * Returns the geometry the disk was last formatted or mounted with
+     *
+     * @return The geometry of the disk
+     */
+    public Geometry getGeometry() {
+        return geometry;
+    }
+
+    /***
+     * Retrieve the superblock
+     *
+     * @return The superblock stored at the start of the disk
+     * @throws IOException If an I/O error occurs
+     */
+    public SuperBlock readSuperBlock() throws IOException {
+        byte[] superBlockBytes = new byte[SUPERBLOCK_SIZE];
+        SuperBlock superBlock = new SuperBlock();
+
+        readFully(ByteBuffer.wrap(superBlockBytes), 0);
+        superBlock.setBytes(superBlockBytes);
+
+        return superBlock;
+    }
+
+    /***
+     * Writes the superblock to the start of the disk
+     *
+     * @param superBlock The superblock to be written
+     * @throws IOException If an I/O error occurs
+     */
+    public void writeSuperBlock(SuperBlock superBlock) throws IOException {
+        writeFully(ByteBuffer.wrap(superBlock.getBytes()), 0);
     }
 
     /***
@@ -72,10 +188,9 @@ public class Disk {
      *                     the random access file has been closed, or if some other I/O error occurs
      */
     public byte[] readFreeBlockList() throws IOException {
-        byte[] freeList = new byte[BYTES_IN_FREE_SPACE_LIST];
+        byte[] freeList = new byte[geometry.getFreeListSize()];
 
-        rawDisk.seek((long)0);
-        rawDisk.read(freeList);
+        readFully(ByteBuffer.wrap(freeList), geometry.getFreeListOffset());
 
         return freeList;
     }
@@ -90,16 +205,32 @@ public class Disk {
      *                      the same as the free byte list on the disk.
      */
     public void writeFreeBlockList(byte[] freeBlockList) throws IOException {
-        if (freeBlockList.length != BYTES_IN_FREE_SPACE_LIST) {
+        if (freeBlockList.length != geometry.getFreeListSize()) {
             throw new IllegalArgumentException("Disk::writeFreeBlockList:  " +
                     "is "  +  freeBlockList.length +
                     "bytes long  instead of "  +
-                    BYTES_IN_FREE_SPACE_LIST +
+                    geometry.getFreeListSize() +
                     " bytes long");
         }
 
-        rawDisk.seek((long)0);
-        rawDisk.write(freeBlockList);
+        writeFully(ByteBuffer.wrap(freeBlockList), geometry.getFreeListOffset());
+    }
+
+
+    /***
+     * Writes part of the free space list to raw disk
+     *
+     * @param bytes The bytes of the free block list to be written
+     * @param offset Position of the first of <code>bytes</code> within the
+     *               free block list
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If the bytes do not fall within the
+     *                                  free block list
+     */
+    public void writeFreeBlockList(byte[] bytes, int offset) throws IOException {
+        checkFreeBlockListRange(bytes, offset, geometry);
+
+        writeFully(ByteBuffer.wrap(bytes), geometry.getFreeListOffset() + offset);
     }
 
 
@@ -111,26 +242,7 @@ public class Disk {
      * @throws IOException If an I/O error occurs
      */
     public void writeInode(INode inode, int whichInode) throws IOException {
-        byte[] name = inode.getFileNameBytes();
-        byte[] size = inode.getSizeBytes();
-        byte[][] blockPointers = new byte[INode.NUM_BLOCK_POINTERS][];
-
-        for (int i= 0; i < INode.NUM_BLOCK_POINTERS; i++) {
-            blockPointers[i] = inode.getBlockPointerBytes(i);
-        }
-
-        int cursor = BYTES_IN_FREE_SPACE_LIST + (INODE_SIZE * whichInode);
-
-        /**
-         * Seek to correct position in the raw file
-         */
-        rawDisk.seek((long)cursor);
-
-        rawDisk.write(name);
-        rawDisk.write(size);
-        for (int j= 0; j < INode.NUM_BLOCK_POINTERS; j++) {
-            rawDisk.write(blockPointers[j]);
-        }
+        writeFully(INodeCodec.get().encode(inode), geometry.getInodeOffset(whichInode));
     }
 
     /***
@@ -142,48 +254,60 @@ public class Disk {
      *    *                the random access file has been closed, or if some other I/O error occurs
      */
     public INode readInode(int whichInode) throws IOException {
-        INode inode = new INode();
-        int cursor = BYTES_IN_FREE_SPACE_LIST + (INODE_SIZE * whichInode);
-
-        rawDisk.seek((long)cursor);
+        INodeCodec codec = INodeCodec.get();
 
-        byte[] fileNameBytes = new byte[INode.FILE_NAME_SIZE];
-        int nameReadLen = rawDisk.read(fileNameBytes);
+        readFully(codec.recordBuffer(), geometry.getInodeOffset(whichInode));
 
-        int fileSizeField = rawDisk.readInt();
-
-        /**
-         * read each block pointer
-         */
-        int[] blockPtrValues = new int[INode.NUM_BLOCK_POINTERS];
+        return codec.decode();
+    }
 
-        for (int i= 0; i < INode.NUM_BLOCK_POINTERS; i++) {
-            blockPtrValues[i]= rawDisk.readInt();
+    /***
+     * Reads <code>count</code> adjacent inodes with one positional read
+     * of their part of the inode table, split only when it is larger than
+     * <code>INODE_TABLE_READ_BYTES</code>
+     *
+     * @param firstInode The position of the first inode to be read
+     * @param count The number of inodes to read
+     * @return The inodes, <code>firstInode</code> first
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If the inodes do not fall within
+     *                                  the inode table
+     */
+    @Override
+    public INode[] readInodes(int firstInode, int count) throws IOException {
+        checkInodeRange(firstInode, count, geometry);
+
+        int inodeSize = geometry.getInodeSize();
+        int chunkInodes = Math.max(1, Math.min(count, INODE_TABLE_READ_BYTES / inodeSize));
+        ByteBuffer table = ByteBuffer.allocate(chunkInodes * inodeSize);
+        INodeCodec codec = INodeCodec.get();
+        INode[] inodes = new INode[count];
+
+        for (int i = 0; i < count; i += chunkInodes) {
+            int chunk = Math.min(chunkInodes, count - i);
+
+            table.clear().limit(chunk * inodeSize);
+            readFully(table, geometry.getInodeOffset(firstInode + i));
+            for (int j = 0; j < chunk; j++) {
+                inodes[i + j] = codec.get(table, j * inodeSize);
+            }
         }
 
-        String fileName = new String(fileNameBytes);
+        return inodes;
+    }
 
-        /**
-         * Null string is all 0's but
-         * the conversion makes it the empty string.
-         */
-        int nameSum = 0;
-        for (int index = 0; index < fileNameBytes.length; index++) {
-            nameSum += fileNameBytes[index];
-        }
+    @Override
+    public void readJournal(long offset, ByteBuffer dst) throws IOException {
+        checkJournalRange(offset, dst.remaining(), geometry);
 
-        if ( nameSum <= 0) {
-            inode.setFileName(null);
-        } else {
-            inode.setFileName(fileName);
-        }
-        inode.setSize(fileSizeField);
+        readFully(dst, geometry.getJournalOffset() + offset);
+    }
 
-        for (int blkPtrIndex= 0; blkPtrIndex < INode.NUM_BLOCK_POINTERS; blkPtrIndex++) {
-            inode.setBlockPointer(blkPtrIndex, blockPtrValues[blkPtrIndex]);
-        }
+    @Override
+    public void writeJournal(long offset, ByteBuffer src) throws IOException {
+        checkJournalRange(offset, src.remaining(), geometry);
 
-        return inode;
+        writeFully(src, geometry.getJournalOffset() + offset);
     }
 
     /***
@@ -194,11 +318,10 @@ public class Disk {
      * @throws IOException If an I/O error occurs
      */
     public byte[] readDataBlock(int whichBlock) throws IOException {
-        int cursor = BYTES_IN_FREE_SPACE_LIST + (INODE_SIZE * NUM_INODES) + (BLOCK_SIZE * whichBlock);
-        byte[] blockData = new byte[BLOCK_SIZE];
+        long cursor = geometry.getBlockOffset(whichBlock);
+        byte[] blockData = new byte[geometry.getBlockSize()];
 
-        rawDisk.seek(cursor);
-        rawDisk.read(blockData);
+        readFully(ByteBuffer.wrap(blockData), cursor);
 
         return blockData;
     }
@@ -214,16 +337,191 @@ public class Disk {
      *                                  to the length of a data block size
      */
     public void writeDataBlock(byte[] blockData, int whichBlock) throws IOException, IllegalArgumentException {
-        int cursor = BYTES_IN_FREE_SPACE_LIST + (INODE_SIZE * NUM_INODES) + (BLOCK_SIZE *whichBlock);
+        long cursor = geometry.getBlockOffset(whichBlock);
 
-        if (blockData.length != BLOCK_SIZE) {
+        if (blockData.length != geometry.getBlockSize()) {
             throw new IllegalArgumentException("Disk::writeDataBlock:  "  +
                     "storing block of size " + blockData.length  +
-                    "when it should be of size "  + BLOCK_SIZE);
+                    "when it should be of size "  + geometry.getBlockSize());
+        }
+
+        writeFully(ByteBuffer.wrap(blockData), cursor);
+    }
+
+    /***
+     * Reads a run of adjacent data blocks with a positional read
+     *
+     * @param firstBlock The position of the first data block to be read
+     * @param count The number of blocks to read
+     * @param dst Buffer receiving the data, its position is advanced past it
+     * @throws IOException If an I/O error occurs
+     */
+    public void readBlocks(int firstBlock, int count, ByteBuffer dst) throws IOException {
+        long cursor = geometry.getBlockOffset(firstBlock);
+        int length = Math.min(dst.remaining(), geometry.getBlockSize() * count);
+
+        readFully(dst.slice(dst.position(), length), cursor);
+        dst.position(dst.position() + length);
+    }
+
+    /***
+     * Writes a run of adjacent data blocks with one positional write.  If
+     * the last block is only partly filled, a run of up to
+     * <code>PADDED_COPY_LIMIT</code> bytes is copied into a zero filled
+     * buffer first.  A longer run is written with the data followed by the
+     * zeros that fill out the last block, since a second system call costs
+     * less than copying it.
+     *
+     * @param firstBlock Position of the first block in the file system
+     * @param count The number of blocks to write
+     * @param src Buffer holding the data, its position is advanced past it
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If <code>src</code> holds more than
+     *                                  <code>count</code> blocks of data
+     */
+    public void writeBlocks(int firstBlock, int count, ByteBuffer src) throws IOException, IllegalArgumentException {
+        long cursor = geometry.getBlockOffset(firstBlock);
+
+        ByteBuffer[] parts = blockRun(count, src, geometry.getBlockSize());
+
+        if (parts[1].hasRemaining() && parts[0].remaining() + parts[1].remaining() <= PADDED_COPY_LIMIT) {
+            ByteBuffer run = ByteBuffer.allocate(parts[0].remaining() + parts[1].remaining());
+            run.put(parts[0]).clear();
+            writeFully(run, cursor);
+            return;
+        }
+
+        for (ByteBuffer part : parts) {
+            int length = part.remaining();
+            writeFully(part, cursor);
+            cursor += length;
+        }
+    }
+
+    /***
+     * Forces any buffered writes out to the underlying storage device
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    public void sync() throws IOException {
+        rawDisk.getFD().sync();
+    }
+
+    /***
+     * Closes the raw disk file
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    public void close() throws IOException {
+        if (rawDisk != null) {
+            rawDisk.close();
+            rawDisk = null;
+            channel = null;
         }
+    }
+
+    /***
+     * Fills <code>dst</code> from the raw disk file, starting at
+     * <code>position</code>, without moving the file pointer
+     *
+     * @throws IOException If the end of the file is reached or an I/O error occurs
+     */
+    private void readFully(ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int bytesRead = channel.read(dst, position);
+            if (bytesRead < 0) {
+                throw new EOFException("Disk::readFully: end of " + diskFileName +
+                        " reached at " + position);
+            }
+            position += bytesRead;
+        }
+    }
+
+    /***
+     * Writes all of <code>src</code> to the raw disk file, starting at
+     * <code>position</code>, without moving the file pointer
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    private void writeFully(ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    /***
+     * Checks that <code>bytes</code> written at <code>offset</code> stays
+     * within the free block list of a disk with <code>geometry</code>
+     *
+     * @throws IllegalArgumentException If the bytes do not fall within the
+     *                                  free block list
+     */
+    static void checkFreeBlockListRange(byte[] bytes, int offset, Geometry geometry) {
+        if (offset < 0 || offset + bytes.length > geometry.getFreeListSize()) {
+            throw new IllegalArgumentException("Disk::writeFreeBlockList:  " +
+                    bytes.length + " bytes at offset " + offset +
+                    " do not fit in a free block list of " +
+                    geometry.getFreeListSize() + " bytes");
+        }
+    }
+
+    /***
+     * Checks that <code>length</code> bytes at <code>offset</code> stay
+     * within the journal of a disk with <code>geometry</code>
+     *
+     * @throws IllegalArgumentException If the bytes do not fall within the journal
+     */
+    static void checkJournalRange(long offset, int length, Geometry geometry) {
+        if (offset < 0 || offset + length > geometry.getJournalSize()) {
+            throw new IllegalArgumentException("Disk::writeJournal:  " +
+                    length + " bytes at offset " + offset +
+                    " do not fit in a journal of " +
+                    geometry.getJournalSize() + " bytes");
+        }
+    }
+
+    /***
+     * Checks that the <code>count</code> inodes starting at
+     * <code>firstInode</code> are all in the inode table of a disk with
+     * <code>geometry</code>
+     *
+     * @throws IllegalArgumentException If the inodes do not fall within
+     *                                  the inode table
+     */
+    static void checkInodeRange(int firstInode, int count, Geometry geometry) {
+        if (firstInode < 0 || count < 0 || (long) firstInode + count > geometry.getNumInodes()) {
+            throw new IllegalArgumentException("Disk::readInodes:  " +
+                    count + " inodes from inode " + firstInode +
+                    " do not fit in an inode table of " +
+                    geometry.getNumInodes() + " inodes");
+        }
+    }
+
+    /***
+     * Splits the data for a run of <code>count</code> blocks into the data
+     * itself and the zeros that fill out the last block
+     *
+     * @param count Number of blocks in the run
+     * @param src Buffer holding the data, its position is advanced past it
+     * @param blockSize Size of a block in bytes
+     * @return The data followed by the zero padding
+     * @throws IllegalArgumentException If <code>src</code> holds more than
+     *                                  <code>count</code> blocks of data
+     */
+    static ByteBuffer[] blockRun(int count, ByteBuffer src, int blockSize) {
+        int length = blockSize * count;
+
+        if (src.remaining() > length) {
+            throw new IllegalArgumentException("Disk::writeBlocks:  " +
+                    "storing " + src.remaining() + " bytes " +
+                    "in " + count + " blocks of size " + blockSize);
+        }
+
+        ByteBuffer data = src.slice();
+        ByteBuffer padding = ByteBuffer.allocate(length - data.remaining());
+        src.position(src.limit());
 
-        rawDisk.seek(cursor);
-        rawDisk.write(blockData);
+        return new ByteBuffer[]{data, padding};
     }
 
     /***
@@ -0,0 +1,114 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+
+/***
+ * A <code>SeekableByteChannel</code> over a file descriptor.  Every read
+ * and write is a positional transfer through <code>FileSystem.pread</code>
+ * and <code>FileSystem.pwrite</code>, so only the blocks it covers are
+ * touched and the data never passes through a <code>String</code>.  The
+ * channel owns the descriptor and closes it when it is closed.
+ */
+public class FileByteChannel implements SeekableByteChannel {
+    private FileSystem fileSystem;
+    private int fileDescriptor;
+    private long position;
+    private boolean open;
+
+    FileByteChannel(FileSystem fileSystem, int fileDescriptor) {
+        this.fileSystem = fileSystem;
+        this.fileDescriptor = fileDescriptor;
+        this.position = 0;
+        this.open = true;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+
+        int bytesRead = fileSystem.pread(fileDescriptor, position, dst);
+        if (bytesRead > 0) {
+            position += bytesRead;
+        }
+
+        return bytesRead;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+
+        int bytesWritten = fileSystem.pwrite(fileDescriptor, position, src);
+        position += bytesWritten;
+
+        return bytesWritten;
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    /***
+     * Moves the channel to <code>newPosition</code>.  Moving past the end of
+     * the file is allowed; a later write fills the gap with zeros.
+     *
+     * @param newPosition Offset in bytes from the start of the file
+     * @return This channel
+     * @throws IllegalArgumentException If <code>newPosition</code> is negative
+     */
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("FileByteChannel::position: negative position " + newPosition);
+        }
+        position = newPosition;
+
+        return this;
+    }
+
+    @Override
+    public synchronized long size() throws IOException {
+        ensureOpen();
+        return fileSystem.size(fileDescriptor);
+    }
+
+    @Override
+    public synchronized SeekableByteChannel truncate(long size) throws IOException {
+        ensureOpen();
+        fileSystem.truncate(fileDescriptor, size);
+        position = Math.min(position, size);
+
+        return this;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    /***
+     * Closes the channel and the file descriptor it was opened on
+     *
+     * @throws IOException If the inode cannot be written back
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (open) {
+            open = false;
+            fileSystem.close(fileDescriptor);
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package filesystem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/***
+ * A connection to a <code>FileServer</code>.  Each call sends one request
+ * and waits for its reply, so a client is used by one thread at a time;
+ * concurrent callers each open a client of their own.
+ */
+public class FileClient implements AutoCloseable {
+    private final SocketChannel channel;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    /***
+     * Connects to the server at <code>address</code>
+     *
+     * @param address A <code>UnixDomainSocketAddress</code> or an
+     *                <code>InetSocketAddress</code>
+     * @throws IOException If the server cannot be reached
+     */
+    public FileClient(SocketAddress address) throws IOException {
+        channel = address instanceof UnixDomainSocketAddress
+                ? SocketChannel.open(StandardProtocolFamily.UNIX)
+                : SocketChannel.open();
+        channel.connect(address);
+        in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+    }
+
+    /***
+     * Creates a file and opens it
+     *
+     * @param path Path of the file
+     * @return A file descriptor for the new file
+     * @throws IOException If the server refuses or cannot be reached
+     */
+    public int create(String path) throws IOException {
+        out.writeByte(FileProtocol.CREATE);
+        out.writeUTF(path);
+        reply();
+
+        return in.readInt();
+    }
+
+    /***
+     * Opens a file
+     *
+     * @param path Path of the file
+     * @return A file descriptor, or -1 if there is no such file
+     * @throws IOException If the server refuses or cannot be reached
+     */
+    public int open(String path) throws IOException {
+        out.writeByte(FileProtocol.OPEN);
+        out.writeUTF(path);
+        reply();
+
+        return in.readInt();
+    }
+
+    /***
+     * Reads up to <code>length</code> bytes of a file
+     *
+     * @param fileDescriptor A file descriptor opened by this client
+     * @param offset Position in the file of the first byte to read
+     * @param length Most bytes to read, at most <code>FileProtocol.MAX_TRANSFER</code>
+     * @return The bytes read, none at the end of the file
+     * @throws IOException If the server refuses or cannot be reached
+     */
+    public byte[] read(int fileDescriptor, long offset, int length) throws IOException {
+        out.writeByte(FileProtocol.READ);
+        out.writeInt(fileDescriptor);
+        out.writeLong(offset);
+        out.writeInt(length);
+        reply();
+
+        return FileProtocol.readBytes(in);
+    }
+
+    /***
+     * Writes bytes to a file
+     *
+     * @param fileDescriptor A file descriptor opened by this client
+     * @param offset Position in the file of the first byte to write
+     * @param data The bytes, at most <code>FileProtocol.MAX_TRANSFER</code>
+     * @return The number of bytes written
+     * @throws IOException If the server refuses or cannot be reached
+     */
+    public int write(int fileDescriptor, long offset, byte[] data) throws IOException {
+        out.writeByte(FileProtocol.WRITE);
+        out.writeInt(fileDescriptor);
+        out.writeLong(offset);
+        FileProtocol.writeBytes(out, data, data.length);
+        reply();
+
+        return in.readInt();
+    }
+
+    /***
+     * Closes a file descriptor
+     *
+     * @param fileDescriptor A file descriptor opened by this client
+     * @throws IOException If the server refuses or cannot be reached
+     */
+    public void close(int fileDescriptor) throws IOException {
+        out.writeByte(FileProtocol.CLOSE);
+        out.writeInt(fileDescriptor);
+        reply();
+    }
+
+    /***
+     * Removes a file
+     *
+     * @param path Path of the file
+     * @throws IOException If the server refuses or cannot be reached
+     */
+    public void delete(String path) throws IOException {
+        out.writeByte(FileProtocol.DELETE);
+        out.writeUTF(path);
+        reply();
+    }
+
+    /***
+     * Lists a directory
+     *
+     * @param path Path of the directory
+     * @return The names in the directory, directories ending in '/'
+     * @throws IOException If the server refuses or cannot be reached
+     */
+    public List<String> list(String path) throws IOException {
+        out.writeByte(FileProtocol.LIST);
+        out.writeUTF(path);
+        reply();
+
+        int count = in.readInt();
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(in.readUTF());
+        }
+
+        return names;
+    }
+
+    /***
+     * Disconnects from the server, which closes every file descriptor
+     * this client left open
+     *
+     * @throws IOException If the connection cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /***
+     * Sends the request written so far and reads the status of the reply
+     *
+     * @throws IOException With the server's message if the request failed
+     */
+    private void reply() throws IOException {
+        out.flush();
+        if (in.readByte() != FileProtocol.OK) {
+            throw new IOException(in.readUTF());
+        }
+    }
+}
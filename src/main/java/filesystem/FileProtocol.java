@@ -0,0 +1,101 @@
+package filesystem;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+
+
+/***
+ * The binary protocol spoken between <code>FileServer</code> and
+ * <code>FileClient</code>.
+ *
+ * A request is an operation byte followed by its arguments and a reply
+ * is a status byte followed by its results, or by a message if the
+ * status is <code>ERROR</code>.  Integers are big-endian, strings are in
+ * the modified UTF-8 of <code>DataOutput.writeUTF()</code> and byte
+ * arrays are an int length and the bytes.
+ *
+ * <pre>
+ * CREATE path           -> int fileDescriptor
+ * OPEN   path           -> int fileDescriptor, -1 if there is no such file
+ * READ   int fd, long offset, int length -> bytes, empty at the end of the file
+ * WRITE  int fd, long offset, bytes      -> int bytesWritten
+ * CLOSE  int fd         -> nothing
+ * DELETE path           -> nothing
+ * LIST   path           -> int count, count strings
+ * </pre>
+ */
+public final class FileProtocol {
+    public static final byte CREATE = 1;
+    public static final byte OPEN = 2;
+    public static final byte READ = 3;
+    public static final byte WRITE = 4;
+    public static final byte CLOSE = 5;
+    public static final byte DELETE = 6;
+    public static final byte LIST = 7;
+
+    public static final byte OK = 0;
+    public static final byte ERROR = 1;
+
+    /**
+     * Most bytes moved by one READ or WRITE
+     */
+    public static final int MAX_TRANSFER = 1 << 20;
+
+    private FileProtocol() {
+    }
+
+    /***
+     * Parses an address given as <code>unix:path</code> for a Unix-domain
+     * socket or <code>host:port</code> for a TCP socket
+     *
+     * @param address The address
+     * @return The socket address
+     * @throws IllegalArgumentException If the address is not in either form
+     */
+    public static SocketAddress parseAddress(String address) {
+        if (address.startsWith("unix:")) {
+            return UnixDomainSocketAddress.of(address.substring("unix:".length()));
+        }
+
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("FileProtocol::parseAddress: " +
+                    address + " is neither unix:path nor host:port");
+        }
+        try {
+            return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("FileProtocol::parseAddress: bad port in " + address);
+        }
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes, int length) throws IOException {
+        out.writeInt(length);
+        out.write(bytes, 0, length);
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        return readFully(in, readLength(in));
+    }
+
+    static int readLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_TRANSFER) {
+            throw new IOException("FileProtocol::readLength: length " + length +
+                    " is not between 0 and " + MAX_TRANSFER);
+        }
+
+        return length;
+    }
+
+    static byte[] readFully(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+
+        return bytes;
+    }
+}
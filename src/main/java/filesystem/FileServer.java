@@ -0,0 +1,293 @@
+package filesystem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/***
+ * Serves a <code>FileSystem</code> to clients speaking
+ * <code>FileProtocol</code> over a Unix-domain or TCP socket.
+ *
+ * Every connection is handled by a virtual thread of its own, which
+ * blocks on the socket and on the file system as a plain thread would,
+ * so thousands of clients cost thousands of small stacks rather than
+ * thousands of platform threads.  Requests of different clients run
+ * concurrently up to the locks of the file system: calls on the
+ * namespace are serialized, and a virtual thread doing I/O while it
+ * holds one of the file system's monitors keeps its carrier thread, so
+ * the server shows where the file system itself stops scaling.
+ *
+ * A client may only use the file descriptors it opened, and those still
+ * open when it disconnects are closed.
+ */
+public class FileServer implements AutoCloseable {
+    /**
+     * Pauses after a failed accept, doubling from the first to the second
+     */
+    private static final long MIN_ACCEPT_BACKOFF_MILLIS = 10;
+    private static final long MAX_ACCEPT_BACKOFF_MILLIS = 1000;
+
+    private final FileSystem fs;
+    private final ServerSocketChannel serverChannel;
+    private final SocketAddress address;
+    private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+    private final Thread acceptor;
+
+    /***
+     * Starts serving <code>fs</code> on <code>address</code>
+     *
+     * @param fs The file system to serve
+     * @param address A <code>UnixDomainSocketAddress</code>, whose socket
+     *                file is replaced if it exists, or an
+     *                <code>InetSocketAddress</code>, port 0 for any free port
+     * @throws IOException If the socket cannot be bound
+     */
+    public FileServer(FileSystem fs, SocketAddress address) throws IOException {
+        this.fs = fs;
+
+        if (address instanceof UnixDomainSocketAddress unixAddress) {
+            Files.deleteIfExists(unixAddress.getPath());
+            serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            serverChannel = ServerSocketChannel.open();
+        }
+        serverChannel.bind(address, 4096);
+        this.address = serverChannel.getLocalAddress();
+
+        acceptor = Thread.ofVirtual().name("filesystem-server").start(this::accept);
+    }
+
+    /***
+     * Returns the address the server is listening on
+     * @return Returns the address, with the port chosen if port 0 was asked for
+     */
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    /***
+     * Returns the number of clients connected
+     * @return Returns the number of clients connected
+     */
+    public int getConnections() {
+        return connections.size();
+    }
+
+    /***
+     * Stops accepting clients and disconnects those connected.  The file
+     * system is left mounted.
+     *
+     * @throws IOException If the socket cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+        for (SocketChannel connection : connections) {
+            connection.close();
+        }
+        try {
+            acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (address instanceof UnixDomainSocketAddress unixAddress) {
+            Files.deleteIfExists(unixAddress.getPath());
+        }
+    }
+
+    /***
+     * Accepts clients until the server socket is closed.  A failure to
+     * accept, such as running out of file descriptors under many clients,
+     * is logged and retried after a pause that doubles while the failures
+     * go on, so the server recovers once connections are closed.
+     */
+    private void accept() {
+        long backoffMillis = 0;
+
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel connection = serverChannel.accept();
+                connections.add(connection);
+                Thread.ofVirtual().name("filesystem-client").start(() -> serve(connection));
+                backoffMillis = 0;
+            } catch (ClosedChannelException e) {
+                // The server was closed
+                return;
+            } catch (IOException e) {
+                backoffMillis = Math.min(Math.max(2 * backoffMillis, MIN_ACCEPT_BACKOFF_MILLIS),
+                        MAX_ACCEPT_BACKOFF_MILLIS);
+                System.err.println("FileServer::accept: " + e.getMessage() +
+                        ", retrying in " + backoffMillis + " ms");
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void serve(SocketChannel connection) {
+        Set<Integer> fileDescriptors = new HashSet<>();
+
+        try (connection) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(connection)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(connection)));
+
+            while (true) {
+                byte operation;
+                try {
+                    operation = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                handle(operation, in, out, fileDescriptors);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client went away or broke the protocol, drop it
+        } finally {
+            connections.remove(connection);
+            for (int fileDescriptor : fileDescriptors) {
+                try {
+                    fs.close(fileDescriptor);
+                } catch (IOException e) {
+                    // Already closed, for example by a delete
+                }
+            }
+        }
+    }
+
+    /***
+     * Reads the arguments of one request, carries it out and writes the
+     * reply.  A failing call is reported to the client; only a broken
+     * connection or a malformed request is thrown.
+     */
+    private void handle(byte operation, DataInputStream in, DataOutputStream out,
+                        Set<Integer> fileDescriptors) throws IOException {
+        switch (operation) {
+            case FileProtocol.CREATE, FileProtocol.OPEN, FileProtocol.DELETE, FileProtocol.LIST -> {
+                String path = in.readUTF();
+                try {
+                    if (operation == FileProtocol.DELETE) {
+                        fs.delete(path);
+                        out.writeByte(FileProtocol.OK);
+                    } else if (operation == FileProtocol.LIST) {
+                        List<String> names = fs.list(path);
+                        out.writeByte(FileProtocol.OK);
+                        out.writeInt(names.size());
+                        for (String name : names) {
+                            out.writeUTF(name);
+                        }
+                    } else {
+                        int fileDescriptor = operation == FileProtocol.CREATE ? fs.create(path) : fs.open(path);
+                        if (fileDescriptor != -1) {
+                            fileDescriptors.add(fileDescriptor);
+                        }
+                        out.writeByte(FileProtocol.OK);
+                        out.writeInt(fileDescriptor);
+                    }
+                } catch (IOException | IllegalArgumentException e) {
+                    error(out, e);
+                }
+            }
+            case FileProtocol.READ -> {
+                int fileDescriptor = in.readInt();
+                long offset = in.readLong();
+                int length = FileProtocol.readLength(in);
+                try {
+                    checkOwned(fileDescriptors, fileDescriptor);
+                    ByteBuffer buffer = ByteBuffer.allocate(length);
+                    int read = fs.pread(fileDescriptor, offset, buffer);
+                    out.writeByte(FileProtocol.OK);
+                    FileProtocol.writeBytes(out, buffer.array(), Math.max(read, 0));
+                } catch (IOException | IllegalArgumentException e) {
+                    error(out, e);
+                }
+            }
+            case FileProtocol.WRITE -> {
+                int fileDescriptor = in.readInt();
+                long offset = in.readLong();
+                byte[] data = FileProtocol.readBytes(in);
+                try {
+                    checkOwned(fileDescriptors, fileDescriptor);
+                    int written = fs.pwrite(fileDescriptor, offset, ByteBuffer.wrap(data));
+                    out.writeByte(FileProtocol.OK);
+                    out.writeInt(written);
+                } catch (IOException | IllegalArgumentException e) {
+                    error(out, e);
+                }
+            }
+            case FileProtocol.CLOSE -> {
+                int fileDescriptor = in.readInt();
+                try {
+                    checkOwned(fileDescriptors, fileDescriptor);
+                    fileDescriptors.remove(fileDescriptor);
+                    fs.close(fileDescriptor);
+                    out.writeByte(FileProtocol.OK);
+                } catch (IOException e) {
+                    error(out, e);
+                }
+            }
+            default -> throw new IOException("FileServer::handle: unknown operation " + operation);
+        }
+    }
+
+    private static void checkOwned(Set<Integer> fileDescriptors, int fileDescriptor) throws IOException {
+        if (!fileDescriptors.contains(fileDescriptor)) {
+            throw new IOException("FileServer::handle: file descriptor " + fileDescriptor +
+                    " is not open on this connection");
+        }
+    }
+
+    private static void error(DataOutputStream out, Exception e) throws IOException {
+        out.writeByte(FileProtocol.ERROR);
+        out.writeUTF(String.valueOf(e.getMessage()));
+    }
+
+    /***
+     * Serves the volume on the raw disk file, formatting it first if it
+     * does not exist, until the process is stopped
+     *
+     * @param args The address to listen on, <code>unix:path</code> or
+     *             <code>host:port</code>, by default localhost:7070
+     * @throws IOException If the volume cannot be mounted or the socket bound
+     * @throws InterruptedException If the main thread is interrupted
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        SocketAddress address = FileProtocol.parseAddress(args.length > 0 ? args[0] : "localhost:7070");
+        boolean format = !new File(Disk.RAW_DISK_NAME).exists();
+        FileSystem fs = new FileSystem(new Disk(), format);
+
+        FileServer server = new FileServer(fs, address);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+                fs.unmount();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }));
+        System.out.println("Serving " + Disk.RAW_DISK_NAME + " on " + server.getAddress());
+        Thread.currentThread().join();
+    }
+}
@@ -1,148 +1,611 @@
 package filesystem;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
+/***
+ * A hierarchical file system on a <code>BlockDevice</code>.
+ *
+ * Files are named by paths of names separated by '/', looked up from the
+ * root directory, inode <code>ROOT_INODE</code>; a leading '/' is
+ * optional.  Each directory keeps its entries in its own data blocks as a
+ * hash table (see <code>Directory</code>), and recently resolved entries
+ * are cached, so a lookup reads at most one block per uncached name.
+ *
+ * Every method may be called from several threads at once.  Three kinds
+ * of lock are used, always taken in this order:
+ * <ul>
+ * <li>the namespace lock, held while names are looked up, added or
+ *     removed, so that a name and its inode change together;</li>
+ * <li>one of <code>NUM_LOCK_STRIPES</code> read/write locks, chosen by
+ *     inode number, held shared while a file is read and exclusive while
+ *     its inode or data change;</li>
+ * <li>the allocator lock, held only while the free block list is
+ *     searched, changed or written back.</li>
+ * </ul>
+ * Reads of different files therefore run in parallel, and writers only
+ * contend for as long as it takes to allocate their blocks.  Writing out
+ * delayed writes is the one place several stripes are held at once; they
+ * are taken in ascending order with no other lock held.
+ *
+ * Every method that changes metadata is one operation of the volume's
+ * <code>Journal</code>, begun before any of these locks is taken, so a
+ * crash leaves it either applied as a whole or not at all.  Blocks freed
+ * by an operation are not reused until the journal has committed it.
+ */
 public class FileSystem {
-    private Disk diskDevice;
+    /**
+     * Number of read/write locks shared out between the inodes
+     */
+    public static final int NUM_LOCK_STRIPES = 64;
+
+    /**
+     * Number of blocks buffered by the streams handed out by the file
+     * system, each transfer to or from the device covers this many blocks
+     */
+    public static final int STREAM_BUFFER_BLOCKS = 16;
+
+    /**
+     * Number of blocks of delayed writes kept in memory before they are
+     * all allocated and written out
+     */
+    public static final int DELAYED_WRITE_BLOCKS = 256;
+
+    /**
+     * Inode of the root directory
+     */
+    public static final int ROOT_INODE = 0;
+
+    private BlockDevice diskDevice;
+    private Journal journal;
+
+    private OpenFileTable openFiles;
+
+    private DirectoryIndex directoryIndex;
+    private Directory directories;
+    private FreeBlockList freeBlocks;
+    private BlockMap blockMap;
+    private SuperBlock superBlock;
+    private Geometry geometry;
+    private int blockSize;
+
+    private final Object namespaceLock = new Object();
+    private final Object allocatorLock = new Object();
+    private final ReentrantReadWriteLock[] iNodeLocks = new ReentrantReadWriteLock[NUM_LOCK_STRIPES];
 
-    private int iNodeNumber;
-    private int fileDescriptor;
-    private INode iNodeForFile;
+    private final Metrics metrics = new Metrics();
+
+    private volatile boolean delayedAllocation;
+    private final TreeMap<Integer, byte[]> delayedWrites = new TreeMap<>();
+    private long delayedBlocks;
 
     public FileSystem() throws IOException {
-        diskDevice = new Disk();
-        diskDevice.format();
+        this(new Disk());
     }
 
     /***
-     * Create a file with the name <code>fileName</code>
+     * Create a file system on <code>diskDevice</code>, for example a
+     * <code>MappedDisk</code> to serve all I/O from a memory mapping or
+     * a <code>RamDisk</code> to keep the whole volume in memory
      *
-     * @param fileName - name of the file to create
-     * @throws IOException
+     * @param diskDevice The device to format and use
+     * @throws IOException If the device cannot be formatted
      */
-    public int create(String fileName) throws IOException {
-        INode tmpINode = null;
+    public FileSystem(BlockDevice diskDevice) throws IOException {
+        this(diskDevice, true);
+    }
+
+    /***
+     * Create a file system on <code>diskDevice</code>, formatting it with
+     * <code>geometry</code>.  Large blocks suit volumes of large files
+     * read and written in bulk, many inodes suit volumes of small files.
+     *
+     * @param diskDevice The device to format and use
+     * @param geometry The number and size of the blocks and inodes
+     * @throws IOException If the device cannot be formatted
+     */
+    public FileSystem(BlockDevice diskDevice, Geometry geometry) throws IOException {
+        this(diskDevice, geometry, true);
+    }
+
+    /***
+     * Create a file system on <code>diskDevice</code>, either by formatting
+     * it or by mounting the volume already stored on it.  Mounting checks
+     * the superblock and loads the free block list and the names of the
+     * files into memory, so the contents of the device survive from one
+     * run to the next.  If the volume was not unmounted cleanly the free
+     * block list is rebuilt from the inodes.
+     *
+     * @param diskDevice The device to use
+     * @param formatDevice true to format the device with the default
+     *                     geometry, false to mount it
+     * @throws IOException If the device cannot be formatted, or if it does
+     *                     not hold a valid volume
+     */
+    public FileSystem(BlockDevice diskDevice, boolean formatDevice) throws IOException {
+        this(diskDevice, Geometry.DEFAULT, formatDevice);
+    }
+
+    private FileSystem(BlockDevice diskDevice, Geometry formatGeometry, boolean formatDevice) throws IOException {
+        this.journal = new Journal(new MeteredDevice(diskDevice, metrics));
+        this.diskDevice = journal;
+        for (int i = 0; i < iNodeLocks.length; i++) {
+            iNodeLocks[i] = new ReentrantReadWriteLock();
+        }
+
+        /**
+         * Mounting through the journal replays whatever it holds, so
+         * everything read below is as of the last complete operation.
+         */
+        long start = metrics.start();
+        if (formatDevice) {
+            this.diskDevice.format(formatGeometry);
+        } else {
+            this.diskDevice.mount();
+        }
 
-        boolean isCreated = false;
+        superBlock = this.diskDevice.readSuperBlock();
+        superBlock.validate();
+        geometry = superBlock.getGeometry();
+        blockSize = geometry.getBlockSize();
 
-        for (int i = 0; i < Disk.NUM_INODES && !isCreated; i++) {
-            tmpINode = diskDevice.readInode(i);
-            String name = tmpINode.getFileName();
+        blockMap = new BlockMap(this.diskDevice);
+        directories = new Directory(this.diskDevice, blockMap);
 
-            // The Fix: Add a null check before calling trim()
-            if (name != null && name.trim().equals(fileName)) {
-                throw new IOException("FileSystem::create: " + fileName + " already exists");
-            } else if (tmpINode.getFileName() == null) { // No need for trim() here since we already checked for null
-                this.iNodeForFile = new INode();
-                this.iNodeForFile.setFileName(fileName);
-                this.iNodeNumber = i;
-                this.fileDescriptor = i;
-                isCreated = true;
+        freeBlocks = new FreeBlockList(geometry.getNumBlocks());
+        freeBlocks.setFreeBlockList(this.diskDevice.readFreeBlockList());
+        freeBlocks.setHoldFreedBlocks(journal.isEnabled());
+        journal.setCommitListener(() -> {
+            synchronized (allocatorLock) {
+                freeBlocks.releaseHeldBlocks();
             }
+        });
+
+        /**
+         * The inode table is read once and shared by the directory
+         * index and, after an unclean shutdown, the free list rebuild.
+         */
+        INode[] inodeTable = this.diskDevice.readInodeTable();
+        directoryIndex = new DirectoryIndex();
+        directoryIndex.load(inodeTable);
+
+        openFiles = new OpenFileTable();
+
+        if (formatDevice) {
+            INode root = new INode();
+            root.setFileName("/");
+            root.setDirectory(true);
+            root.setSize(0);
+            this.diskDevice.writeInode(root, directoryIndex.allocate());
+        } else if (!inodeTable[ROOT_INODE].isDirectory()) {
+            throw new IOException("FileSystem::FileSystem: the volume has no root directory");
         }
-        if (!isCreated) {
-            throw new IOException("FileSystem::create: Unable to create file");
+
+        if (!superBlock.isClean()) {
+            rebuildFreeBlockList(inodeTable);
         }
 
-        return fileDescriptor;
+        /**
+         * Mark the volume as in use until it is unmounted
+         */
+        superBlock.setClean(false);
+        this.diskDevice.writeSuperBlock(superBlock);
+        this.diskDevice.sync();
+        metrics.record(formatDevice ? Metrics.Operation.FORMAT : Metrics.Operation.MOUNT, start);
     }
 
-    /**
-     * Removes the file
+    /***
+     * Create a file with the name <code>fileName</code> and open it
      *
-     * @param fileName
-     * @throws IOException
+     * @param fileName - path of the file to create, in an existing directory
+     * @return A file descriptor for the new file
+     * @throws IOException If the file already exists, its directory does
+     *                     not, or there is no free inode
      */
-    public void delete(String fileName) throws IOException {
-        INode tmpINode = null;
-        boolean isFound = false;
-        int inodeNumForDeletion = -1;
+    public int create(String fileName) throws IOException {
+        long start = metrics.start();
+        journal.begin();
+        try {
+            synchronized (namespaceLock) {
+                String[] path = splitPath(fileName, "create");
+                int parent = lookupDirectory(path, path.length - 1);
+                String name = path[path.length - 1];
+                if (parent == -1) {
+                    throw new IOException("FileSystem::create: no directory to hold " + fileName);
+                }
+                if (lookupEntry(parent, name) != -1) {
+                    throw new IOException("FileSystem::create: " + fileName + " already exists");
+                }
 
-        /**
-         * Find the non-null named inode that matches,
-         * If you find it, set its file name to null
-         * to indicate it is unused
-         */
-        for (int i = 0; i < Disk.NUM_INODES && !isFound; i++) {
-            tmpINode = diskDevice.readInode(i);
+                INode newINode = new INode();
+                newINode.setFileName(name);
+                newINode.setSize(0);
 
-            String fName = tmpINode.getFileName();
+                int freeINode = directoryIndex.allocate();
+                if (freeINode == -1) {
+                    throw new IOException("FileSystem::create: Unable to create file");
+                }
 
-            if (fName != null && fName.trim().compareTo(fileName.trim()) == 0) {
-                isFound = true;
-                inodeNumForDeletion = i;
-                break;
+                /**
+                 * Write the named inode right away so the inode table
+                 * agrees with the directory.
+                 */
+                Lock lock = lockINode(freeINode, true);
+                try {
+                    diskDevice.writeInode(newINode, freeINode);
+                    addEntry(parent, name, freeINode, false);
+                    return openFiles.open(freeINode, newINode);
+                } finally {
+                    lock.unlock();
+                }
             }
+        } finally {
+            journal.end();
+            metrics.record(Metrics.Operation.CREATE, start);
         }
+    }
 
-        /***
-         * If file found, go ahead and deallocate its
-         * blocks and null out the filename.
-         */
-        if (isFound) {
-            deallocateBlocksForFile(inodeNumForDeletion);
-            tmpINode.setFileName(null);
-            diskDevice.writeInode(tmpINode, inodeNumForDeletion);
-            this.iNodeForFile = null;
-            this.fileDescriptor = -1;
-            this.iNodeNumber = -1;
+    /**
+     * Removes the file, closing every descriptor open on it
+     *
+     * @param fileName Path of the file
+     * @throws IOException If the path names a directory or the disk cannot
+     *                     be written
+     */
+    public void delete(String fileName) throws IOException {
+        long start = metrics.start();
+        journal.begin();
+        try {
+            synchronized (namespaceLock) {
+                String[] path = splitPath(fileName, "delete");
+                int parent = lookupDirectory(path, path.length - 1);
+                String name = path[path.length - 1];
+                int inodeNumForDeletion = parent == -1 ? -1 : lookupEntry(parent, name);
+
+                /***
+                 * If file found, go ahead and deallocate its
+                 * blocks and write back an empty inode to
+                 * indicate it is unused.
+                 */
+                if (inodeNumForDeletion != -1) {
+                    Lock lock = lockINode(inodeNumForDeletion, true);
+                    try {
+                        INode inode = openFiles.getINode(inodeNumForDeletion);
+                        if (inode == null) {
+                            inode = diskDevice.readInode(inodeNumForDeletion);
+                        }
+                        if (inode.isDirectory()) {
+                            throw new IOException("FileSystem::delete: " + fileName + " is a directory");
+                        }
+                        openFiles.closeAll(inodeNumForDeletion);
+
+                        deallocateBlocksForFile(inode, inodeNumForDeletion);
+                        diskDevice.writeInode(new INode(), inodeNumForDeletion);
+                    } finally {
+                        lock.unlock();
+                    }
+                    removeEntry(parent, name, inodeNumForDeletion);
+                }
+            }
+        } finally {
+            journal.end();
+            metrics.record(Metrics.Operation.DELETE, start);
         }
     }
 
 
     /***
-     * Makes the file available for reading/writing
+     * Makes the file available for reading/writing.  A file may be opened
+     * any number of times; each descriptor has its own offset.
      *
-     * @return
-     * @throws IOException
+     * @param fileName Path of the file
+     * @return A new file descriptor, or -1 if there is no such file
+     * @throws IOException If the path names a directory
      */
     public int open(String fileName) throws IOException {
-        this.fileDescriptor = -1;
-        this.iNodeNumber = -1;
-        INode tmpINode = null;
-        boolean isFound = false;
-        int iNodeContainingName = -1;
-
-        for (int i = 0; i < Disk.NUM_INODES && !isFound; i++) {
-            tmpINode = diskDevice.readInode(i);
-            String fName = tmpINode.getFileName();
-            if (fName != null) {
-                if (fName.trim().compareTo(fileName.trim()) == 0) {
-                    isFound = true;
-                    iNodeContainingName = i;
-                    this.iNodeForFile = tmpINode;
+        long start = metrics.start();
+        synchronized (namespaceLock) {
+            int iNodeContainingName = lookupPath(splitPath(fileName, "open"));
+
+            if (iNodeContainingName == -1) {
+                metrics.record(Metrics.Operation.OPEN, start);
+                return -1;
+            }
+
+            /**
+             * Exclusive, so the inode is not read from the device
+             * while the last descriptor on it is writing it back.
+             */
+            Lock lock = lockINode(iNodeContainingName, true);
+            try {
+                INode inode = openFiles.getINode(iNodeContainingName);
+                if (inode == null) {
+                    inode = diskDevice.readInode(iNodeContainingName);
+                }
+                if (inode.isDirectory()) {
+                    throw new IOException("FileSystem::open: " + fileName + " is a directory");
+                }
+
+                return openFiles.open(iNodeContainingName, inode);
+            } finally {
+                lock.unlock();
+                metrics.record(Metrics.Operation.OPEN, start);
+            }
+        }
+    }
+
+
+    /***
+     * Creates an empty directory
+     *
+     * @param directoryName Path of the directory, in an existing directory
+     * @throws IOException If the path already exists, its parent does not,
+     *                     or there is no free inode
+     */
+    public void mkdir(String directoryName) throws IOException {
+        long start = metrics.start();
+        journal.begin();
+        try {
+            synchronized (namespaceLock) {
+                String[] path = splitPath(directoryName, "mkdir");
+                int parent = lookupDirectory(path, path.length - 1);
+                String name = path[path.length - 1];
+                if (parent == -1) {
+                    throw new IOException("FileSystem::mkdir: no directory to hold " + directoryName);
                 }
+                if (lookupEntry(parent, name) != -1) {
+                    throw new IOException("FileSystem::mkdir: " + directoryName + " already exists");
+                }
+
+                INode newINode = new INode();
+                newINode.setFileName(name);
+                newINode.setDirectory(true);
+                newINode.setSize(0);
+
+                int freeINode = directoryIndex.allocate();
+                if (freeINode == -1) {
+                    throw new IOException("FileSystem::mkdir: Unable to create directory");
+                }
+                diskDevice.writeInode(newINode, freeINode);
+                addEntry(parent, name, freeINode, true);
             }
+        } finally {
+            journal.end();
+            metrics.record(Metrics.Operation.MKDIR, start);
         }
+    }
+
+
+    /***
+     * Removes an empty directory
+     *
+     * @param directoryName Path of the directory
+     * @throws IOException If there is no such directory, it is not empty or
+     *                     it is the root directory
+     */
+    public void rmdir(String directoryName) throws IOException {
+        long start = metrics.start();
+        journal.begin();
+        try {
+            synchronized (namespaceLock) {
+                String[] path = splitPath(directoryName, "rmdir");
+                int parent = lookupDirectory(path, path.length - 1);
+                String name = path[path.length - 1];
+                int iNodeNumber = parent == -1 ? -1 : lookupEntry(parent, name);
+                INode inode = iNodeNumber == -1 ? null : diskDevice.readInode(iNodeNumber);
+
+                if (inode == null || !inode.isDirectory()) {
+                    throw new IOException("FileSystem::rmdir: " + directoryName + " is not a directory");
+                }
+                if (!directories.list(inode).isEmpty()) {
+                    throw new IOException("FileSystem::rmdir: " + directoryName + " is not empty");
+                }
 
-        if (isFound) {
-            this.fileDescriptor = iNodeContainingName;
-            this.iNodeNumber = fileDescriptor;
+                deallocateBlocksForFile(inode, iNodeNumber);
+                diskDevice.writeInode(new INode(), iNodeNumber);
+                removeEntry(parent, name, iNodeNumber);
+            }
+        } finally {
+            journal.end();
+            metrics.record(Metrics.Operation.RMDIR, start);
         }
+    }
 
-        return this.fileDescriptor;
+
+    /***
+     * Returns the names in a directory, sorted, with a '/' after the name
+     * of each directory
+     *
+     * @param directoryName Path of the directory, "/" for the root
+     * @return The names of the entries of the directory
+     * @throws IOException If there is no such directory
+     */
+    public List<String> list(String directoryName) throws IOException {
+        long start = metrics.start();
+        try {
+            synchronized (namespaceLock) {
+                String[] path = splitPath(directoryName, null);
+                int iNodeNumber = lookupDirectory(path, path.length);
+                if (iNodeNumber == -1) {
+                    throw new IOException("FileSystem::list: " + directoryName + " is not a directory");
+                }
+
+                List<String> names = new ArrayList<>();
+                for (Directory.Entry entry : directories.list(diskDevice.readInode(iNodeNumber))) {
+                    names.add(entry.isDirectory() ? entry.getName() + "/" : entry.getName());
+                }
+                names.sort(null);
+
+                return names;
+            }
+        } finally {
+            metrics.record(Metrics.Operation.LIST, start);
+        }
     }
 
 
     /***
-     * Closes the file
+     * Closes the file descriptor and writes back the inode of its file.
+     * A descriptor whose file was deleted while it was open is closed
+     * without writing anything, which frees its number for reuse.
      *
-     * @throws IOException If disk is not accessible for writing
+     * @throws IOException If the descriptor is not open or the disk is not
+     *                     accessible for writing
      */
     public void close(int fileDescriptor) throws IOException {
-        if (fileDescriptor != this.iNodeNumber){
+        long start = metrics.start();
+        OpenFile openFile = openFiles.get(fileDescriptor);
+
+        if (openFile == null && openFiles.closeRevoked(fileDescriptor)) {
+            return;
+        }
+        if (openFile == null) {
             throw new IOException("FileSystem::close: file descriptor, "+
                     fileDescriptor + " does not match file descriptor " +
                     "of open file");
         }
-        diskDevice.writeInode(this.iNodeForFile, this.iNodeNumber);
-        this.iNodeForFile = null;
-        this.fileDescriptor = -1;
-        this.iNodeNumber = -1;
+
+        journal.begin();
+        Lock lock = lockINode(openFile.getINodeNumber(), false);
+        try {
+            if (openFiles.close(fileDescriptor) != openFile) {
+                throw new IOException("FileSystem::close: file descriptor, "+
+                        fileDescriptor + " was closed by another thread");
+            }
+            diskDevice.writeInode(openFile.getINode(), openFile.getINodeNumber());
+        } finally {
+            lock.unlock();
+            journal.end();
+            metrics.record(Metrics.Operation.CLOSE, start);
+        }
+    }
+
+
+    /***
+     * Returns the geometry of the mounted volume
+     *
+     * @return The geometry recorded in the superblock
+     */
+    public Geometry getGeometry() {
+        return geometry;
+    }
+
+
+    /***
+     * Returns the I/O counters and operation latencies of the file
+     * system, which are only kept while they are enabled
+     *
+     * @return The metrics of the file system
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+
+    /***
+     * Forces everything written so far out to the storage device, writing
+     * out delayed writes and committing the journal
+     *
+     * @throws IOException If the disk cannot be synchronized
+     */
+    public void sync() throws IOException {
+        long start = metrics.start();
+        flushDelayedWrites();
+        diskDevice.sync();
+        metrics.record(Metrics.Operation.SYNC, start);
+    }
+
+
+    /***
+     * Turns delayed allocation on or off.  While it is on, writing the
+     * whole of a file small enough for the direct block pointers only
+     * keeps its contents in memory.  Blocks are allocated and written for
+     * many files at once, one after another on the device and with as few
+     * transfers as possible, when <code>DELAYED_WRITE_BLOCKS</code> blocks
+     * are waiting, on <code>sync()</code> and on <code>unmount()</code>.
+     * A file is also written out on its own before it is changed in place
+     * or truncated.  Until then the file is empty on the device, so a
+     * crash loses its contents.  Turning delayed allocation off writes out
+     * everything waiting.
+     *
+     * @param delayed true to delay allocation
+     * @throws IOException If delayed writes cannot be written out
+     */
+    public void setDelayedAllocation(boolean delayed) throws IOException {
+        delayedAllocation = delayed;
+        if (!delayed) {
+            flushDelayedWrites();
+        }
+    }
+
+
+    /***
+     * Writes back every open file, marks the volume as cleanly shut down
+     * and closes the device.  The file system cannot be used afterwards.
+     *
+     * @throws IOException If the device cannot be written
+     */
+    public void unmount() throws IOException {
+        flushDelayedWrites();
+
+        /**
+         * Each file written back is an operation of its own, so the
+         * journal never has to hold more than one at a time.  Closing
+         * the journal commits it, which waits for running operations,
+         * so no lock is held by then.
+         */
+        List<Integer> openINodes;
+        synchronized (namespaceLock) {
+            openINodes = openFiles.openINodes();
+        }
+        for (int iNodeNumber : openINodes) {
+            journal.begin();
+            try {
+                synchronized (namespaceLock) {
+                    Lock lock = lockINode(iNodeNumber, true);
+                    try {
+                        INode inode = openFiles.getINode(iNodeNumber);
+                        if (inode != null) {
+                            diskDevice.writeInode(inode, iNodeNumber);
+                        }
+                        openFiles.closeAll(iNodeNumber);
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            } finally {
+                journal.end();
+            }
+        }
+
+        journal.begin();
+        try {
+            synchronized (allocatorLock) {
+                superBlock.setClean(true);
+                diskDevice.writeSuperBlock(superBlock);
+            }
+        } finally {
+            journal.end();
+        }
+        diskDevice.close();
+        metrics.unregisterMBean();
     }
 
 
@@ -154,154 +617,1096 @@ public class FileSystem {
      * @throws IOException
      */
     public String read(int fileDescriptor) throws IOException {
-        if (fileDescriptor != this.iNodeNumber || this.iNodeForFile == null) {
+        long start = metrics.start();
+        OpenFile openFile = openFiles.get(fileDescriptor);
+        if (openFile == null) {
             throw new IOException("FileSystem::read: Invalid file descriptor or inode is null.");
         }
 
-        INode inode = this.iNodeForFile;
-        int fileSize = inode.getSize();
-        byte[] fileData = new byte[fileSize];
-        int bytesRead = 0;
-
-
-        for (int i = 0; i < INode.NUM_BLOCK_POINTERS && bytesRead < fileSize; i++) {
-            int blockNumber = inode.getBlockPointer(i);
-            if (blockNumber == -1) break;
-
-            // Read the block data
-            byte[] blockData = diskDevice.readDataBlock(blockNumber);
-
+        byte[] fileData;
+        Lock lock = lockINode(openFile.getINodeNumber(), false);
+        try {
+            if (openFiles.get(fileDescriptor) != openFile) {
+                throw new IOException("FileSystem::read: Invalid file descriptor or inode is null.");
+            }
 
-            int bytesToRead = Math.min(Disk.BLOCK_SIZE, fileSize - bytesRead);
+            fileData = contentsInMemory(openFile);
+            if (fileData == null) {
+                INode inode = openFile.getINode();
+                fileData = new byte[inode.getSize()];
+                int[] blocks = blockMap.blocksOf(inode);
 
-            System.arraycopy(blockData, 0, fileData, bytesRead, bytesToRead);
-            bytesRead += bytesToRead;
+                /**
+                 * Each extent, a run of adjacent blocks, is read with one
+                 * transfer straight into the file's bytes
+                 */
+                diskDevice.readBlocks(blocks, 0, blocks.length, ByteBuffer.wrap(fileData));
+            }
+            openFile.setOffset(fileData.length);
+        } finally {
+            lock.unlock();
+            metrics.record(Metrics.Operation.READ, start);
         }
 
         return new String(fileData);
     }
 
     /**
-     * Add your Javadoc documentation for this method
+     * Replaces the contents of the file with <code>data</code>
+     *
+     * @param fileDescriptor An open file descriptor
+     * @param data The new contents of the file
+     * @throws IOException If the descriptor is not open, the data does not
+     *                     fit in a file or the disk is full
      */
     public void write(int fileDescriptor, String data) throws IOException {
-        if (fileDescriptor != this.iNodeNumber || this.iNodeForFile == null) {
+        long start = metrics.start();
+        OpenFile openFile = openFiles.get(fileDescriptor);
+        if (openFile == null) {
             throw new IOException("FileSystem::write: Invalid file descriptor or inode is null.");
         }
 
+        INode inode = openFile.getINode();
+        int iNodeNumber = openFile.getINodeNumber();
         byte[] dataBytes = data.getBytes();
-        int requiredBlocks = (int) Math.ceil((double) dataBytes.length / Disk.BLOCK_SIZE);
 
-        // First deallocate any existing blocks
-        deallocateBlocksForFile(this.iNodeNumber);
+        boolean flush = false;
+        releaseHeldBlocksFor(dataBytes.length);
+        journal.begin();
+        Lock lock = lockINode(iNodeNumber, true);
+        try {
+            if (openFiles.get(fileDescriptor) != openFile) {
+                throw new IOException("FileSystem::write: Invalid file descriptor or inode is null.");
+            }
 
-        // Allocate new blocks
-        int[] allocatedBlocks = allocateBlocksForFile(this.iNodeNumber, dataBytes.length);
+            // First deallocate any existing blocks
+            deallocateBlocksForFile(inode, iNodeNumber);
 
-        // Write data to blocks
-        int bytesWritten = 0;
-        for (int i = 0; i < allocatedBlocks.length && bytesWritten < dataBytes.length; i++) {
-            byte[] blockData = new byte[Disk.BLOCK_SIZE]; // Create a full-size block
-            int bytesToWrite = Math.min(Disk.BLOCK_SIZE, dataBytes.length - bytesWritten);
+            if (dataBytes.length > 0 && dataBytes.length <= INode.MAX_INLINE_SIZE) {
+                // Tiny files live in the inode
+                inode.setInlineData(dataBytes);
+                diskDevice.writeInode(inode, iNodeNumber);
+            } else if (delayedAllocation && dataBytes.length > 0 &&
+                    dataBytes.length <= (long) INode.NUM_BLOCK_POINTERS * blockSize) {
+                // Small files wait in memory, empty on the device
+                inode.setSize(0);
+                diskDevice.writeInode(inode, iNodeNumber);
+                flush = putDelayedWrite(iNodeNumber, dataBytes);
+            } else {
+                // Allocate new blocks
+                int[] allocatedBlocks = allocateBlocksForFile(inode, iNodeNumber, dataBytes.length);
 
-            // Copy the next chunk of data into the block
-            System.arraycopy(dataBytes, bytesWritten, blockData, 0, bytesToWrite);
+                // Write data to blocks, one transfer per extent
+                diskDevice.writeBlocks(allocatedBlocks, 0, allocatedBlocks.length, ByteBuffer.wrap(dataBytes));
 
-            // Write the block to disk
-            diskDevice.writeDataBlock(blockData, allocatedBlocks[i]);
+                // Update file size and save inode
+                inode.setSize(dataBytes.length);
+                diskDevice.writeInode(inode, iNodeNumber);
+            }
+            openFile.setOffset(dataBytes.length);
+        } finally {
+            lock.unlock();
+            journal.end();
+            metrics.record(Metrics.Operation.WRITE, start);
+        }
+
+        if (flush) {
+            flushDelayedWrites();
+        }
+    }
 
-            // Update inode with block pointer
-            this.iNodeForFile.setBlockPointer(i, allocatedBlocks[i]);
+    /**
+     * Reads bytes of the file starting at <code>offset</code> into
+     * <code>dst</code>, without moving the descriptor's offset.  Only the
+     * blocks covering the bytes read are fetched.
+     *
+     * @param fileDescriptor An open file descriptor
+     * @param offset Position in the file of the first byte to read
+     * @param dst Buffer receiving the bytes, its position is advanced past them
+     * @return The number of bytes read, or -1 if <code>offset</code> is at
+     *         or past the end of the file
+     * @throws IOException If the descriptor is not open or the disk cannot be read
+     * @throws IllegalArgumentException If <code>offset</code> is negative
+     */
+    public int pread(int fileDescriptor, long offset, ByteBuffer dst) throws IOException {
+        long start = metrics.start();
+        if (offset < 0) {
+            throw new IllegalArgumentException("FileSystem::pread: negative offset " + offset);
+        }
 
-            bytesWritten += bytesToWrite;
+        OpenFile openFile = openFiles.get(fileDescriptor);
+        if (openFile == null) {
+            throw new IOException("FileSystem::pread: Invalid file descriptor or inode is null.");
         }
 
-        // Update file size and save inode
-        this.iNodeForFile.setSize(dataBytes.length);
-        diskDevice.writeInode(this.iNodeForFile, this.iNodeNumber);
+        Lock lock = lockINode(openFile.getINodeNumber(), false);
+        try {
+            if (openFiles.get(fileDescriptor) != openFile) {
+                throw new IOException("FileSystem::pread: Invalid file descriptor or inode is null.");
+            }
+
+            byte[] contents = contentsInMemory(openFile);
+            if (contents != null) {
+                if (offset >= contents.length) {
+                    return -1;
+                }
+                int length = (int) Math.min(dst.remaining(), contents.length - offset);
+                dst.put(contents, (int) offset, length);
+                return length;
+            }
+
+            INode inode = openFile.getINode();
+            if (offset >= inode.getSize()) {
+                return -1;
+            }
+
+            int length = (int) Math.min(dst.remaining(), inode.getSize() - offset);
+            ByteBuffer target = dst.slice(dst.position(), length);
+            int[] blocks = blockMap.blocksOf(inode);
+            int index = (int) (offset / blockSize);
+            int head = (int) (offset % blockSize);
+
+            /**
+             * A read starting part way into a block takes what it
+             * needs from that block, the rest of the range is block
+             * aligned and read straight into the caller's buffer
+             */
+            if (head != 0) {
+                byte[] block = diskDevice.readDataBlock(blocks[index]);
+                target.put(block, head, Math.min(blockSize - head, length));
+                index++;
+            }
+            if (target.hasRemaining()) {
+                int count = (target.remaining() + blockSize - 1) / blockSize;
+                diskDevice.readBlocks(blocks, index, count, target);
+            }
+            dst.position(dst.position() + length);
+
+            return length;
+        } finally {
+            lock.unlock();
+            metrics.record(Metrics.Operation.READ, start);
+        }
     }
 
     /**
-     * Add your Javadoc documentation for this method
+     * Writes the bytes remaining in <code>src</code> to the file starting
+     * at <code>offset</code>, without moving the descriptor's offset.  Only
+     * the blocks covering the bytes written are touched and only blocks
+     * past the end of the file are allocated.  Writing past the end of the
+     * file grows it, and any gap is filled with zeros.
+     *
+     * @param fileDescriptor An open file descriptor
+     * @param offset Position in the file of the first byte to write
+     * @param src Buffer holding the bytes, its position is advanced past them
+     * @return The number of bytes written
+     * @throws IOException If the descriptor is not open, the file would
+     *                     become too large or the disk is full
+     * @throws IllegalArgumentException If <code>offset</code> is negative
      */
-    private int[] allocateBlocksForFile(int iNodeNumber, int numBytes) throws IOException {
-        if (iNodeNumber < 0 || iNodeNumber >= Disk.NUM_INODES) {
-            throw new IOException("FileSystem::allocateBlocksForFile: Invalid inode number.");
+    public int pwrite(int fileDescriptor, long offset, ByteBuffer src) throws IOException {
+        long start = metrics.start();
+        if (offset < 0) {
+            throw new IllegalArgumentException("FileSystem::pwrite: negative offset " + offset);
         }
 
-        int requiredBlocks = (int) Math.ceil((double) numBytes / Disk.BLOCK_SIZE);
-        if (requiredBlocks > INode.NUM_BLOCK_POINTERS) {
-            throw new IOException("FileSystem::allocateBlocksForFile: File too large for available block pointers.");
+        OpenFile openFile = openFiles.get(fileDescriptor);
+        if (openFile == null) {
+            throw new IOException("FileSystem::pwrite: Invalid file descriptor or inode is null.");
         }
 
-        byte[] freeBlockList = diskDevice.readFreeBlockList();
-        List<Integer> allocatedBlocks = new ArrayList<>();
+        releaseHeldBlocksFor(src.remaining() + delayedSize(openFile));
+        journal.begin();
+        Lock lock = lockINode(openFile.getINodeNumber(), true);
+        try {
+            if (openFiles.get(fileDescriptor) != openFile) {
+                throw new IOException("FileSystem::pwrite: Invalid file descriptor or inode is null.");
+            }
 
-        // Find free blocks
-        for (int block = 0; block < Disk.NUM_BLOCKS && allocatedBlocks.size() < requiredBlocks; block++) {
-            int byteIndex = block / 8;
-            int bitIndex = block % 8;
-            int mask = 1 << bitIndex;
+            flushDelayedWrite(openFile);
+            return writeRange(openFile, offset, src);
+        } finally {
+            lock.unlock();
+            journal.end();
+            metrics.record(Metrics.Operation.WRITE, start);
+        }
+    }
 
-            // Check if block is free (bit is 0)
-            if ((freeBlockList[byteIndex] & mask) == 0) {
-                // Mark block as allocated
-                freeBlockList[byteIndex] |= mask;
-                allocatedBlocks.add(block);
+    /**
+     * Writes the bytes remaining in <code>src</code> to the end of the file
+     * and moves the descriptor's offset to the new end of the file.  Only
+     * the last block of the file and the new blocks after it are written.
+     *
+     * @param fileDescriptor An open file descriptor
+     * @param src Buffer holding the bytes, its position is advanced past them
+     * @return The number of bytes written
+     * @throws IOException If the descriptor is not open, the file would
+     *                     become too large or the disk is full
+     */
+    public int append(int fileDescriptor, ByteBuffer src) throws IOException {
+        long start = metrics.start();
+        OpenFile openFile = openFiles.get(fileDescriptor);
+        if (openFile == null) {
+            throw new IOException("FileSystem::append: Invalid file descriptor or inode is null.");
+        }
+
+        releaseHeldBlocksFor(src.remaining() + delayedSize(openFile));
+        journal.begin();
+        Lock lock = lockINode(openFile.getINodeNumber(), true);
+        try {
+            if (openFiles.get(fileDescriptor) != openFile) {
+                throw new IOException("FileSystem::append: Invalid file descriptor or inode is null.");
             }
+
+            flushDelayedWrite(openFile);
+            int written = writeRange(openFile, openFile.getINode().getSize(), src);
+            openFile.setOffset(openFile.getINode().getSize());
+
+            return written;
+        } finally {
+            lock.unlock();
+            journal.end();
+            metrics.record(Metrics.Operation.WRITE, start);
         }
+    }
+
+    /**
+     * Writes <code>data</code> to the end of the file
+     *
+     * @param fileDescriptor An open file descriptor
+     * @param data The bytes to add to the file
+     * @throws IOException If the descriptor is not open, the file would
+     *                     become too large or the disk is full
+     */
+    public void append(int fileDescriptor, String data) throws IOException {
+        append(fileDescriptor, ByteBuffer.wrap(data.getBytes()));
+    }
 
-        if (allocatedBlocks.size() < requiredBlocks) {
-            throw new IOException("FileSystem::allocateBlocksForFile: Not enough free blocks.");
+    /**
+     * Returns the size of an open file
+     *
+     * @param fileDescriptor An open file descriptor
+     * @return The size of the file in bytes
+     * @throws IOException If the descriptor is not open
+     */
+    public long size(int fileDescriptor) throws IOException {
+        OpenFile openFile = openFiles.get(fileDescriptor);
+        if (openFile == null) {
+            throw new IOException("FileSystem::size: Invalid file descriptor or inode is null.");
         }
 
-        // Save the updated free block list
-        diskDevice.writeFreeBlockList(freeBlockList);
+        Lock lock = lockINode(openFile.getINodeNumber(), false);
+        try {
+            byte[] delayed = delayedWrite(openFile.getINodeNumber());
 
-        // Clear old block pointers and set new ones
-        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
-            if (i < allocatedBlocks.size()) {
-                this.iNodeForFile.setBlockPointer(i, allocatedBlocks.get(i));
-            } else {
-                this.iNodeForFile.setBlockPointer(i, -1);
+            return delayed != null ? delayed.length : openFile.getINode().getSize();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Shortens the file to <code>size</code> bytes, returning the blocks
+     * past the new end to the free block list.  A file that is no longer
+     * than <code>size</code> is left alone.
+     *
+     * @param fileDescriptor An open file descriptor
+     * @param size The new size of the file in bytes
+     * @throws IOException If the descriptor is not open or the disk cannot be written
+     * @throws IllegalArgumentException If <code>size</code> is negative
+     */
+    public void truncate(int fileDescriptor, long size) throws IOException {
+        long start = metrics.start();
+        if (size < 0) {
+            throw new IllegalArgumentException("FileSystem::truncate: negative size " + size);
+        }
+
+        OpenFile openFile = openFiles.get(fileDescriptor);
+        if (openFile == null) {
+            throw new IOException("FileSystem::truncate: Invalid file descriptor or inode is null.");
+        }
+
+        releaseHeldBlocksFor(delayedSize(openFile));
+        journal.begin();
+        Lock lock = lockINode(openFile.getINodeNumber(), true);
+        try {
+            if (openFiles.get(fileDescriptor) != openFile) {
+                throw new IOException("FileSystem::truncate: Invalid file descriptor or inode is null.");
+            }
+
+            flushDelayedWrite(openFile);
+            INode inode = openFile.getINode();
+            if (size >= inode.getSize()) {
+                return;
+            }
+
+            if (inode.isInline()) {
+                inode.setInlineData(size == 0 ? null : Arrays.copyOf(inode.getInlineData(), (int) size));
+                inode.setSize((int) size);
+                diskDevice.writeInode(inode, openFile.getINodeNumber());
+                return;
+            }
+
+            /**
+             * The bytes of the last block past the end of the file are
+             * kept zero, so that growing the file again reads zeros.
+             */
+            int keptBlocks = (int) ((size + blockSize - 1) / blockSize);
+            int tail = (int) (size % blockSize);
+            if (tail != 0) {
+                int lastBlock = blockMap.blocksOf(inode)[keptBlocks - 1];
+                byte[] block = diskDevice.readDataBlock(lastBlock);
+                Arrays.fill(block, tail, blockSize, (byte) 0);
+                diskDevice.writeDataBlock(block, lastBlock);
+            }
+
+            inode.setSize((int) size);
+            deallocateBlocksForFile(inode, openFile.getINodeNumber(), keptBlocks);
+        } finally {
+            lock.unlock();
+            journal.end();
+            metrics.record(Metrics.Operation.TRUNCATE, start);
+        }
+    }
+
+    /**
+     * Opens a channel on an existing file.  The channel has its own
+     * position, starting at 0, and reads and writes only the blocks each
+     * transfer covers.  Closing the channel closes the descriptor it was
+     * given.
+     *
+     * @param fileName Name of the file
+     * @return A channel on the file
+     * @throws FileNotFoundException If there is no such file
+     */
+    public SeekableByteChannel newByteChannel(String fileName) throws IOException {
+        int fileDescriptor = open(fileName);
+
+        if (fileDescriptor == -1) {
+            throw new FileNotFoundException("FileSystem::newByteChannel: " + fileName + " does not exist");
+        }
+
+        return new FileByteChannel(this, fileDescriptor);
+    }
+
+    /**
+     * Opens a stream reading an existing file from the start.  The file
+     * is streamed from the device <code>STREAM_BUFFER_BLOCKS</code> blocks
+     * at a time, so it never has to fit in memory.
+     *
+     * @param fileName Name of the file
+     * @return A stream of the bytes of the file
+     * @throws FileNotFoundException If there is no such file
+     */
+    public InputStream newInputStream(String fileName) throws IOException {
+        return new BufferedInputStream(Channels.newInputStream(newByteChannel(fileName)),
+                STREAM_BUFFER_BLOCKS * blockSize);
+    }
+
+    /**
+     * Opens a stream writing a file from the start, creating the file if
+     * it does not exist and emptying it if it does.  Bytes are written to
+     * the device <code>STREAM_BUFFER_BLOCKS</code> blocks at a time.
+     *
+     * @param fileName Name of the file
+     * @return A stream writing the file
+     * @throws IOException If the file cannot be created or emptied
+     */
+    public OutputStream newOutputStream(String fileName) throws IOException {
+        int fileDescriptor = open(fileName);
+
+        if (fileDescriptor == -1) {
+            fileDescriptor = create(fileName);
+        } else {
+            truncate(fileDescriptor, 0);
+        }
+
+        return new BufferedOutputStream(Channels.newOutputStream(new FileByteChannel(this, fileDescriptor)),
+                STREAM_BUFFER_BLOCKS * blockSize);
+    }
+
+    /**
+     * Writes <code>src</code> into an open file at <code>offset</code>.  The
+     * caller holds the file's lock exclusively.
+     *
+     * @return The number of bytes written
+     * @throws IOException If the file would become too large or the disk is full
+     */
+    private int writeRange(OpenFile openFile, long offset, ByteBuffer src) throws IOException {
+        INode inode = openFile.getINode();
+        int iNodeNumber = openFile.getINodeNumber();
+        int length = src.remaining();
+        long end = offset + length;
+
+        if (length == 0) {
+            return 0;
+        }
+
+        /**
+         * A file with no blocks stays in, or moves into, its inode for
+         * as long as it fits there
+         */
+        if (inode.isInline() || inode.getSize() == 0) {
+            if (end <= INode.MAX_INLINE_SIZE) {
+                byte[] data = inode.isInline() ? inode.getInlineData() : new byte[0];
+                data = Arrays.copyOf(data, (int) Math.max(end, data.length));
+                src.get(data, (int) offset, length);
+                inode.setInlineData(data);
+                diskDevice.writeInode(inode, iNodeNumber);
+                return length;
+            }
+            moveInlineDataToBlocks(inode, iNodeNumber);
+        }
+
+        int oldBlocks = blockMap.blocksOf(inode).length;
+        int[] blocks = allocateBlocksForFile(inode, iNodeNumber, Math.max(end, inode.getSize()));
+        int index = (int) (offset / blockSize);
+        int head = (int) (offset % blockSize);
+
+        /**
+         * New blocks lying wholly between the old end of the file and
+         * the start of the write hold zeros.  The tail of the old last
+         * block is already zero.
+         */
+        if (index > oldBlocks) {
+            diskDevice.writeBlocks(blocks, oldBlocks, index - oldBlocks, ByteBuffer.allocate(0));
+        }
+
+        /**
+         * Blocks only partly covered by the write are read, patched and
+         * written back, unless they are new and so start out as zeros.
+         * Whole blocks go straight from the caller's buffer.
+         */
+        if (head != 0 || length < blockSize) {
+            byte[] block = index < oldBlocks ? diskDevice.readDataBlock(blocks[index]) : new byte[blockSize];
+            src.get(block, head, Math.min(blockSize - head, length));
+            diskDevice.writeDataBlock(block, blocks[index]);
+            index++;
+        }
+
+        int fullBlocks = src.remaining() / blockSize;
+        if (fullBlocks > 0) {
+            diskDevice.writeBlocks(blocks, index, fullBlocks,
+                    src.slice(src.position(), blockSize * fullBlocks));
+            src.position(src.position() + (blockSize * fullBlocks));
+            index += fullBlocks;
+        }
+
+        if (src.hasRemaining()) {
+            byte[] block = index < oldBlocks ? diskDevice.readDataBlock(blocks[index]) : new byte[blockSize];
+            src.get(block, 0, src.remaining());
+            diskDevice.writeDataBlock(block, blocks[index]);
+        }
+
+        // The inode only changes when the file grows
+        if (end > inode.getSize() || blocks.length > oldBlocks) {
+            inode.setSize((int) Math.max(end, inode.getSize()));
+            diskDevice.writeInode(inode, iNodeNumber);
+        }
+
+        return length;
+    }
+
+    /**
+     * Allocates enough blocks for the file to hold <code>numBytes</code>,
+     * keeping the blocks it already has, and points the inode at the new
+     * ones.  Only the blocks past the current end of the file are taken
+     * from the free block list.
+     *
+     * @param inode The inode of the file
+     * @param iNodeNumber The inode number of the file
+     * @param numBytes The size of the file in bytes
+     * @return Every block of the file, in file order
+     * @throws IOException If the file is too large or the disk is full
+     */
+    private int[] allocateBlocksForFile(INode inode, int iNodeNumber, long numBytes) throws IOException {
+        if (iNodeNumber < 0 || iNodeNumber >= geometry.getNumInodes()) {
+            throw new IOException("FileSystem::allocateBlocksForFile: Invalid inode number.");
+        }
+
+        long requiredBlocks = (numBytes + blockSize - 1) / blockSize;
+        if (numBytes > Integer.MAX_VALUE || requiredBlocks > blockMap.getMaxBlocks()) {
+            throw new IOException("FileSystem::allocateBlocksForFile: File too large for available block pointers.");
+        }
+
+        int[] existingBlocks = blockMap.blocksOf(inode);
+        if (requiredBlocks <= existingBlocks.length) {
+            return existingBlocks;
+        }
+
+        int[] allocatedBlocks = Arrays.copyOf(existingBlocks, (int) requiredBlocks);
+        int[] indexBlocks = new int[blockMap.indexBlocksNeeded(allocatedBlocks.length) -
+                blockMap.indexBlocksNeeded(existingBlocks.length)];
+        synchronized (allocatorLock) {
+            if (requiredBlocks - existingBlocks.length + indexBlocks.length > freeBlocks.getFreeCount()) {
+                throw new IOException("FileSystem::allocateBlocksForFile: Not enough free blocks.");
+            }
+
+            // Find free blocks, as few contiguous runs as possible
+            int numAllocated = existingBlocks.length;
+            while (numAllocated < requiredBlocks) {
+                numAllocated += freeBlocks.allocateRun(allocatedBlocks, numAllocated,
+                        (int) requiredBlocks - numAllocated);
             }
+
+            // Index blocks go after the data so they do not split its extents
+            numAllocated = 0;
+            while (numAllocated < indexBlocks.length) {
+                numAllocated += freeBlocks.allocateRun(indexBlocks, numAllocated,
+                        indexBlocks.length - numAllocated);
+            }
+
+            // Save the changed parts of the free block list
+            freeBlocks.writeDirtyRegions(diskDevice);
         }
 
-        return allocatedBlocks.stream().mapToInt(Integer::intValue).toArray();
+        // Point the inode, and its index blocks, at the new blocks
+        blockMap.extend(inode, allocatedBlocks, existingBlocks.length, indexBlocks);
+
+        return allocatedBlocks;
     }
 
     /**
-     * Add your Javadoc documentation for this method
+     * Returns every block of the file to the free block list and writes
+     * back the inode with its block pointers cleared
+     *
+     * @param inode The inode of the file
+     * @param iNodeNumber The inode number of the file
+     * @throws IOException If the free block list or inode cannot be written
      */
-    private void deallocateBlocksForFile(int iNodeNumber) throws IOException {
-        if (iNodeNumber < 0 || iNodeNumber >= Disk.NUM_INODES) {
+    private void deallocateBlocksForFile(INode inode, int iNodeNumber) throws IOException {
+        removeDelayedWrite(iNodeNumber);
+        inode.setInlineData(null);
+        deallocateBlocksForFile(inode, iNodeNumber, 0);
+    }
+
+    /**
+     * Returns the blocks of the file from <code>firstBlock</code> on to the
+     * free block list and writes back the inode with their pointers cleared
+     *
+     * @param inode The inode of the file
+     * @param iNodeNumber The inode number of the file
+     * @param firstBlock Index in the file of the first block to free
+     * @throws IOException If the free block list or inode cannot be written
+     */
+    private void deallocateBlocksForFile(INode inode, int iNodeNumber, int firstBlock) throws IOException {
+        if (iNodeNumber < 0 || iNodeNumber >= geometry.getNumInodes()) {
             throw new IOException("FileSystem::deallocateBlocksForFile: Invalid inode number.");
         }
 
-        // Read the inode from disk
-        INode inode = diskDevice.readInode(iNodeNumber);
         if (inode == null) {
             throw new IOException("FileSystem::deallocateBlocksForFile: Inode is null.");
         }
 
-        byte[] freeBlockList = diskDevice.readFreeBlockList();
+        // Clear the pointers past firstBlock, and any index blocks left empty
+        int[] freedBlocks = blockMap.truncate(inode, firstBlock);
+
+        // Free the blocks past firstBlock
+        synchronized (allocatorLock) {
+            for (int blockNumber : freedBlocks) {
+                // Clear the bit in free block list
+                freeBlocks.deallocateBlock(blockNumber);
+            }
+
+            // Update free block list
+            freeBlocks.writeDirtyRegions(diskDevice);
+        }
+        diskDevice.writeInode(inode, iNodeNumber);
+    }
+
+    /***
+     * Returns a block at or near the bytes at <code>offset</code> of an
+     * open file, without any I/O or locking, for ordering requests by
+     * their place on the device.  The answer may be out of date by the
+     * time it is used.
+     *
+     * @param fileDescriptor An open file descriptor
+     * @param offset Position in the file
+     * @return The block holding the byte at <code>offset</code> if it is
+     *         reached by a direct pointer, otherwise the file's single
+     *         indirect block, or -1 if the descriptor is not open, the
+     *         offset is negative or the file has no blocks
+     */
+    int blockNear(int fileDescriptor, long offset) {
+        OpenFile openFile = openFiles.get(fileDescriptor);
+        if (openFile == null || offset < 0 || openFile.getINode().isInline()) {
+            return -1;
+        }
+
+        INode inode = openFile.getINode();
+        long index = offset / blockSize;
+        if (index < INode.NUM_BLOCK_POINTERS) {
+            return inode.getBlockPointer((int) index);
+        }
+
+        return inode.getSingleIndirectPointer();
+    }
+
+    /***
+     * Returns a block at or near the last block of an open file, where an
+     * append starts writing, in the same way as <code>blockNear()</code>
+     *
+     * @param fileDescriptor An open file descriptor
+     * @return The block, or -1 if the descriptor is not open or the file
+     *         has no blocks
+     */
+    int blockNearEnd(int fileDescriptor) {
+        OpenFile openFile = openFiles.get(fileDescriptor);
+        if (openFile == null) {
+            return -1;
+        }
 
-        // Free all blocks used by the file
-        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
-            int blockNumber = inode.getBlockPointer(i);
-            if (blockNumber == -1) break;
+        return blockNear(fileDescriptor, Math.max(openFile.getINode().getSize() - 1L, 0));
+    }
 
-            // Clear the bit in free block list
-            int byteIndex = blockNumber / 8;
-            int bitIndex = blockNumber % 8;
-            freeBlockList[byteIndex] &= ~(1 << bitIndex);
+    /***
+     * Splits a path into its names.  Empty names, from a leading, trailing
+     * or doubled '/', are left out.
+     *
+     * @param path The path
+     * @param operation The name of the calling method, for the error
+     *                  message, or null if the path may name the root
+     * @return The names along the path
+     * @throws IOException If the path names the root and
+     *                     <code>operation</code> is not null
+     */
+    private static String[] splitPath(String path, String operation) throws IOException {
+        String[] names = Arrays.stream(path.split("/")).filter(name -> !name.isEmpty()).toArray(String[]::new);
 
-            // Clear the block pointer
-            inode.setBlockPointer(i, -1);
+        if (names.length == 0 && operation != null) {
+            throw new IOException("FileSystem::" + operation + ": " + path + " names the root directory");
         }
 
-        // Update free block list and inode
-        diskDevice.writeFreeBlockList(freeBlockList);
-        diskDevice.writeInode(inode, iNodeNumber);
+        return names;
+    }
+
+    /***
+     * Resolves a path from the root directory.  The caller holds the
+     * namespace lock.
+     *
+     * @param path The names along the path
+     * @return The inode number the path refers to, or -1 if there is none
+     * @throws IOException If a directory cannot be read
+     */
+    private int lookupPath(String[] path) throws IOException {
+        int iNodeNumber = ROOT_INODE;
+
+        for (int i = 0; i < path.length && iNodeNumber != -1; i++) {
+            iNodeNumber = lookupEntry(iNodeNumber, path[i]);
+        }
+
+        return iNodeNumber;
+    }
+
+    /***
+     * Resolves the first <code>length</code> names of a path, which must
+     * lead to a directory.  The caller holds the namespace lock.
+     *
+     * @param path The names along the path
+     * @param length Number of names to resolve
+     * @return The inode number of the directory, or -1 if there is none
+     * @throws IOException If a directory cannot be read
+     */
+    private int lookupDirectory(String[] path, int length) throws IOException {
+        int iNodeNumber = lookupPath(Arrays.copyOf(path, length));
+
+        if (iNodeNumber == -1 || !diskDevice.readInode(iNodeNumber).isDirectory()) {
+            return -1;
+        }
+
+        return iNodeNumber;
+    }
+
+    /***
+     * Looks a name up in a directory, trying the cache of directory
+     * entries first.  The caller holds the namespace lock.
+     *
+     * @param directory The inode number of a directory, or of a file, in
+     *                  which case no name is found
+     * @param name The name
+     * @return The inode number of the entry, or -1 if there is none
+     * @throws IOException If the directory cannot be read
+     */
+    private int lookupEntry(int directory, String name) throws IOException {
+        int iNodeNumber = directoryIndex.lookup(directory, name);
+        if (iNodeNumber != -1) {
+            return iNodeNumber;
+        }
+
+        INode inode = diskDevice.readInode(directory);
+        if (!inode.isDirectory()) {
+            return -1;
+        }
+        iNodeNumber = directories.lookup(inode, name);
+        if (iNodeNumber != -1) {
+            directoryIndex.cache(directory, name, iNodeNumber);
+        }
+
+        return iNodeNumber;
+    }
+
+    /***
+     * Adds an entry to a directory, doubling the directory as many times
+     * as it takes to make room.  The caller holds the namespace lock.
+     *
+     * @param directory The inode number of the directory
+     * @param name The name of the entry
+     * @param iNodeNumber The inode number of the entry
+     * @param isDirectory true if the entry is a directory
+     * @throws IOException If the directory cannot grow or be written
+     */
+    private void addEntry(int directory, String name, int iNodeNumber, boolean isDirectory) throws IOException {
+        INode inode = diskDevice.readInode(directory);
+
+        try {
+            while (!directories.add(inode, name, iNodeNumber, isDirectory)) {
+                int oldBuckets = blockMap.blocksOf(inode).length;
+                int newBuckets = oldBuckets == 0 ? 1 : oldBuckets * 2;
+                if (newBuckets > blockMap.getMaxBlocks()) {
+                    throw new IOException("FileSystem::addEntry: directory is full");
+                }
+
+                int[] buckets = allocateBlocksForFile(inode, directory, (long) newBuckets * blockSize);
+                directories.split(buckets, oldBuckets);
+                inode.setSize(newBuckets * blockSize);
+                diskDevice.writeInode(inode, directory);
+            }
+        } catch (IOException e) {
+            // Give back the inode the entry was to name
+            diskDevice.writeInode(new INode(), iNodeNumber);
+            directoryIndex.release(iNodeNumber);
+            throw e;
+        }
+        directoryIndex.cache(directory, name, iNodeNumber);
+    }
+
+    /***
+     * Removes an entry from a directory and frees the inode it named.  The
+     * caller holds the namespace lock.
+     *
+     * @param directory The inode number of the directory
+     * @param name The name of the entry
+     * @param iNodeNumber The inode number of the entry
+     * @throws IOException If the directory cannot be written
+     */
+    private void removeEntry(int directory, String name, int iNodeNumber) throws IOException {
+        directories.remove(diskDevice.readInode(directory), name);
+        directoryIndex.evict(directory, name);
+        directoryIndex.release(iNodeNumber);
+    }
+
+    /***
+     * Moves the contents of a file stored in its inode out to data blocks,
+     * so that the file can grow past <code>INode.MAX_INLINE_SIZE</code>.
+     * The caller holds the file's lock exclusively.
+     *
+     * @param inode The inode of the file
+     * @param iNodeNumber The inode number of the file
+     * @throws IOException If the disk is full or cannot be written
+     */
+    private void moveInlineDataToBlocks(INode inode, int iNodeNumber) throws IOException {
+        if (!inode.isInline()) {
+            return;
+        }
+
+        byte[] data = inode.getInlineData();
+        inode.setInlineData(null);
+        inode.setSize(0);
+        int[] blocks;
+        try {
+            blocks = allocateBlocksForFile(inode, iNodeNumber, data.length);
+        } catch (IOException e) {
+            inode.setInlineData(data);
+            throw e;
+        }
+        diskDevice.writeBlocks(blocks, 0, blocks.length, ByteBuffer.wrap(data));
+        inode.setSize(data.length);
+    }
+
+    /***
+     * Returns the contents of a file kept in memory, either waiting for
+     * delayed allocation or stored in its inode
+     *
+     * @param openFile The open file
+     * @return The contents of the file, or null if they are in data blocks
+     */
+    private byte[] contentsInMemory(OpenFile openFile) {
+        byte[] delayed = delayedWrite(openFile.getINodeNumber());
+
+        return delayed != null ? delayed : openFile.getINode().getInlineData();
+    }
+
+    /***
+     * Returns the contents of a file waiting for delayed allocation
+     *
+     * @param iNodeNumber The inode number of the file
+     * @return The contents of the file, or null if it is not waiting
+     */
+    private byte[] delayedWrite(int iNodeNumber) {
+        synchronized (delayedWrites) {
+            return delayedWrites.get(iNodeNumber);
+        }
+    }
+
+    /***
+     * Returns the number of bytes of a file waiting for delayed
+     * allocation, which have to be given blocks before the file is
+     * changed in place
+     *
+     * @param openFile The open file
+     * @return The size of its delayed write, 0 if it has none
+     */
+    private long delayedSize(OpenFile openFile) {
+        byte[] data = delayedWrite(openFile.getINodeNumber());
+
+        return data == null ? 0 : data.length;
+    }
+
+    /***
+     * Sets the contents of a file waiting for delayed allocation
+     *
+     * @param iNodeNumber The inode number of the file
+     * @param data The contents of the file
+     * @return true if enough blocks are waiting to be written out
+     */
+    private boolean putDelayedWrite(int iNodeNumber, byte[] data) {
+        synchronized (delayedWrites) {
+            removeDelayedWrite(iNodeNumber);
+            delayedWrites.put(iNodeNumber, data);
+            delayedBlocks += (data.length + blockSize - 1) / blockSize;
+
+            return delayedBlocks >= DELAYED_WRITE_BLOCKS;
+        }
+    }
+
+    /***
+     * Forgets the contents of a file waiting for delayed allocation, if any
+     *
+     * @param iNodeNumber The inode number of the file
+     */
+    private void removeDelayedWrite(int iNodeNumber) {
+        synchronized (delayedWrites) {
+            byte[] data = delayedWrites.remove(iNodeNumber);
+            if (data != null) {
+                delayedBlocks -= (data.length + blockSize - 1) / blockSize;
+            }
+        }
+    }
+
+    /***
+     * Allocates blocks for, and writes out, the delayed write of an open
+     * file, so that the file can be changed in place.  The caller holds
+     * the file's lock exclusively.
+     *
+     * @param openFile The open file
+     * @throws IOException If the disk is full or cannot be written
+     */
+    private void flushDelayedWrite(OpenFile openFile) throws IOException {
+        byte[] data = delayedWrite(openFile.getINodeNumber());
+        if (data == null) {
+            return;
+        }
+
+        INode inode = openFile.getINode();
+        int[] blocks = allocateBlocksForFile(inode, openFile.getINodeNumber(), data.length);
+        diskDevice.writeBlocks(blocks, 0, blocks.length, ByteBuffer.wrap(data));
+        inode.setSize(data.length);
+        diskDevice.writeInode(inode, openFile.getINodeNumber());
+        removeDelayedWrite(openFile.getINodeNumber());
+    }
+
+    /***
+     * Allocates blocks for, and writes out, every delayed write.  Files
+     * are taken in inode order, in batches of as many as one journal
+     * transaction has room for.  The blocks of a batch are allocated one
+     * file after another, so they follow each other on the device, and
+     * are written with one transfer per run of adjacent blocks.  Takes the
+     * locks of every file in a batch, so must be called holding no lock.
+     *
+     * @throws IOException If the disk is full or cannot be written
+     */
+    private void flushDelayedWrites() throws IOException {
+        int batchSize = Math.min(journal.getMaxOperations(), DELAYED_WRITE_BLOCKS);
+
+        while (true) {
+            List<Integer> batch = new ArrayList<>();
+            long numBytes = 0;
+            synchronized (delayedWrites) {
+                for (Map.Entry<Integer, byte[]> delayed : delayedWrites.entrySet()) {
+                    if (batch.size() == batchSize) {
+                        break;
+                    }
+                    batch.add(delayed.getKey());
+                    numBytes += delayed.getValue().length + blockSize - 1;
+                }
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            releaseHeldBlocksFor(numBytes);
+            journal.begin(batch.size());
+            List<Lock> locks = lockINodes(batch);
+            try {
+                writeDelayedBatch(batch);
+            } finally {
+                for (int i = locks.size() - 1; i >= 0; i--) {
+                    locks.get(i).unlock();
+                }
+                journal.end();
+            }
+        }
+    }
+
+    /***
+     * Allocates blocks for, and writes out, the delayed writes of a batch
+     * of files whose locks the caller holds exclusively.  Files deleted or
+     * written out since the batch was chosen are skipped.  If the disk
+     * fills up, the files already given blocks are still written out.
+     *
+     * @param batch The inode numbers of the files
+     * @throws IOException If the disk is full or cannot be written
+     */
+    private void writeDelayedBatch(List<Integer> batch) throws IOException {
+        List<Integer> iNodeNumbers = new ArrayList<>();
+        List<INode> inodes = new ArrayList<>();
+        List<byte[]> contents = new ArrayList<>();
+        List<int[]> fileBlocks = new ArrayList<>();
+        int numBlocks = 0;
+        IOException failure = null;
+
+        for (int iNodeNumber : batch) {
+            byte[] data = delayedWrite(iNodeNumber);
+            if (data == null) {
+                continue;
+            }
+
+            INode inode = openFiles.getINode(iNodeNumber);
+            if (inode == null) {
+                inode = diskDevice.readInode(iNodeNumber);
+            }
+            try {
+                fileBlocks.add(allocateBlocksForFile(inode, iNodeNumber, data.length));
+            } catch (IOException e) {
+                failure = e;
+                break;
+            }
+            iNodeNumbers.add(iNodeNumber);
+            inodes.add(inode);
+            contents.add(data);
+            numBlocks += fileBlocks.get(fileBlocks.size() - 1).length;
+        }
+
+        /**
+         * Each file starts on a block of its own, so its contents are
+         * laid out at block boundaries in one buffer for the batch
+         */
+        int[] blocks = new int[numBlocks];
+        ByteBuffer data = ByteBuffer.allocate(numBlocks * blockSize);
+        int numWritten = 0;
+        for (int i = 0; i < fileBlocks.size(); i++) {
+            System.arraycopy(fileBlocks.get(i), 0, blocks, numWritten, fileBlocks.get(i).length);
+            data.put(numWritten * blockSize, contents.get(i));
+            numWritten += fileBlocks.get(i).length;
+        }
+        diskDevice.writeBlocks(blocks, 0, blocks.length, data);
+
+        for (int i = 0; i < iNodeNumbers.size(); i++) {
+            inodes.get(i).setSize(contents.get(i).length);
+            diskDevice.writeInode(inodes.get(i), iNodeNumbers.get(i));
+            removeDelayedWrite(iNodeNumbers.get(i));
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /***
+     * Locks the stripes guarding several inodes exclusively, in ascending
+     * order so that two threads doing so cannot deadlock
+     *
+     * @param iNodeNumbers The inode numbers
+     * @return The locks taken, in the order taken
+     */
+    private List<Lock> lockINodes(List<Integer> iNodeNumbers) {
+        BitSet stripes = new BitSet(NUM_LOCK_STRIPES);
+        for (int iNodeNumber : iNodeNumbers) {
+            stripes.set(iNodeNumber % NUM_LOCK_STRIPES);
+        }
+
+        List<Lock> locks = new ArrayList<>();
+        for (int stripe = stripes.nextSetBit(0); stripe >= 0; stripe = stripes.nextSetBit(stripe + 1)) {
+            Lock lock = iNodeLocks[stripe].writeLock();
+            lock.lock();
+            locks.add(lock);
+        }
+
+        return locks;
+    }
+
+    /***
+     * Commits the journal if the blocks freed by operations it has not yet
+     * committed are needed to store <code>numBytes</code> more bytes.  Must
+     * be called before the operation begins, since a commit waits for
+     * every running operation to end.
+     *
+     * @param numBytes The number of bytes about to be written
+     * @throws IOException If the journal cannot be committed
+     */
+    private void releaseHeldBlocksFor(long numBytes) throws IOException {
+        long numBlocks = Math.min((numBytes + blockSize - 1) / blockSize, blockMap.getMaxBlocks());
+        boolean commit;
+
+        synchronized (allocatorLock) {
+            commit = freeBlocks.getHeldCount() > 0 &&
+                    freeBlocks.getFreeCount() < numBlocks + blockMap.indexBlocksNeeded((int) numBlocks);
+        }
+        if (commit) {
+            journal.commit();
+        }
+    }
+
+    /***
+     * Locks the stripe guarding an inode
+     *
+     * @param iNodeNumber The inode number
+     * @param exclusive true to lock for writing, false to lock for reading
+     * @return The lock taken, to be released by the caller
+     */
+    private Lock lockINode(int iNodeNumber, boolean exclusive) {
+        ReentrantReadWriteLock stripe = iNodeLocks[iNodeNumber % NUM_LOCK_STRIPES];
+        Lock lock = exclusive ? stripe.writeLock() : stripe.readLock();
+
+        lock.lock();
+        return lock;
+    }
+
+    /***
+     * Recomputes the free block list from the block pointers of every
+     * file.  Used when mounting a volume that was not shut down cleanly,
+     * since the list on the device may not match the inodes.
+     *
+     * @param inodeTable Every inode of the volume
+     * @throws IOException If an index block cannot be read or the list
+     *                     cannot be written
+     */
+    private void rebuildFreeBlockList(INode[] inodeTable) throws IOException {
+        freeBlocks = new FreeBlockList(geometry.getNumBlocks());
+        freeBlocks.setHoldFreedBlocks(journal.isEnabled());
+
+        for (INode inode : inodeTable) {
+            if (inode.getFileName() == null) continue;
+
+            for (int blockNumber : blockMap.blocksOf(inode)) {
+                freeBlocks.allocateBlock(blockNumber);
+            }
+            for (int blockNumber : blockMap.indexBlocksOf(inode)) {
+                freeBlocks.allocateBlock(blockNumber);
+            }
+        }
+
+        // A new list is dirty throughout, so all of it is written
+        freeBlocks.writeDirtyRegions(diskDevice);
     }
 }
\ No newline at end of file
@@ -1,33 +1,158 @@
 package filesystem;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
 
+
+/***
+ * The in-memory copy of the free block list and the allocator that works
+ * on it.
+ *
+ * The bits are kept 64 to a <code>long</code> so a search can skip a
+ * whole word of allocated blocks per step.  Word <code>w</code> holds the
+ * bytes <code>8w .. 8w+7</code> of the on-disk list in little-endian
+ * order, which keeps bit <code>b</code> of a word equal to bit
+ * <code>b % 8</code> of byte <code>b / 8</code>.
+ *
+ * Searches start where the previous one stopped (next fit), so a disk
+ * that fills up from the front is not rescanned from block 0 every time.
+ * Runs of blocks are handed out as contiguous extents whenever a large
+ * enough hole exists, so that a file can be read and written with a few
+ * multi-block transfers.
+ * The list also remembers which regions of the on-disk list it has
+ * changed so that only those need to be written back.
+ *
+ * On a journaled volume a freed block must not be handed out again until
+ * the free has reached the journal's durable state, or a crash could
+ * leave the block's old owner pointing at someone else's data.  While
+ * freed blocks are held they show as free in the on-disk list but are
+ * not allocated until <code>releaseHeldBlocks()</code> is called.
+ */
 public class FreeBlockList {
-    private byte[] freeList;
+    /**
+     * Number of bytes of the on-disk list written back as a unit
+     */
+    public static final int REGION_SIZE = 64;
+
+    private int numBlocks;
+    private int listSize;
+    private long[] words;
+    private long[] held;
+    private boolean holdFreedBlocks;
+    private int heldCount;
+    private int freeCount;
+    private int nextFitCursor;
+    private BitSet dirtyRegions;
 
     public FreeBlockList() {
-        freeList = new byte[Disk.BYTES_IN_FREE_SPACE_LIST];
+        this(Disk.NUM_BLOCKS);
+    }
+
+    /***
+     * Create a list in which every one of <code>numBlocks</code> blocks is free
+     *
+     * @param numBlocks Number of blocks on the device
+     */
+    public FreeBlockList(int numBlocks) {
+        this.numBlocks = numBlocks;
+        listSize = (numBlocks + Byte.SIZE - 1) / Byte.SIZE;
+        words = new long[(numBlocks + Long.SIZE - 1) / Long.SIZE];
+        held = new long[words.length];
+        freeCount = numBlocks;
+        nextFitCursor = 0;
+
+        /**
+         * Nothing is known about the list on the device yet, so all
+         * of it has to be written before it can be trusted.
+         */
+        dirtyRegions = new BitSet();
+        dirtyRegions.set(0, numRegions());
     }
 
+    /**
+     * Returns the free block list in its on-disk form
+     *
+     * @return An array of one bit per block, rounded up to whole bytes
+     */
     public byte[] getFreeBlockList() {
-        return freeList;
+        byte[] list = new byte[listSize];
+
+        for (int i = 0; i < list.length; i++) {
+            list[i] = byteAt(i);
+        }
+
+        return list;
     }
 
     /**
      * Replaces the current free block list with the block list given by
-     * <code>list</code>
+     * <code>list</code>, which is taken to be what is stored on the device
      *
      * @param list - New free block list
      * @throws IllegalArgumentException If the length of <code>list</code> is not equal to
      *                                  the free space list length in bytes
      */
     public void setFreeBlockList(byte[] list) throws IllegalArgumentException {
-        if (list.length != Disk.BYTES_IN_FREE_SPACE_LIST) {
+        if (list.length != listSize) {
             throw new IllegalArgumentException("FreeBlockList:: setFreeBlockList: " +
                     "setting free block list of size " + list.length +
-                    " it should be of length " + Disk.BYTES_IN_FREE_SPACE_LIST);
+                    " it should be of length " + listSize);
         }
 
-        this.freeList = list;
+        int allocated = 0;
+        for (int w = 0; w < words.length; w++) {
+            long word = 0;
+            for (int b = 0; b < Long.BYTES && (w * Long.BYTES) + b < list.length; b++) {
+                word |= (list[(w * Long.BYTES) + b] & 0xFFL) << (b * Byte.SIZE);
+            }
+            words[w] = word;
+            allocated += Long.bitCount(word);
+        }
+
+        freeCount = numBlocks - allocated;
+        nextFitCursor = 0;
+        dirtyRegions.clear();
+        Arrays.fill(held, 0);
+        heldCount = 0;
+    }
+
+    /**
+     * Chooses whether freed blocks are held back from allocation until
+     * <code>releaseHeldBlocks()</code> is called
+     *
+     * @param hold true to hold freed blocks
+     */
+    public void setHoldFreedBlocks(boolean hold) {
+        this.holdFreedBlocks = hold;
+        if (!hold) {
+            releaseHeldBlocks();
+        }
+    }
+
+    /**
+     * Returns the number of freed blocks not yet available for allocation
+     * @return Returns the number of held blocks
+     */
+    public int getHeldCount() {
+        return heldCount;
+    }
+
+    /**
+     * Makes every held block available for allocation.  Their bits in
+     * the on-disk list are already clear, so nothing needs writing back.
+     */
+    public void releaseHeldBlocks() {
+        if (heldCount == 0) {
+            return;
+        }
+
+        for (int w = 0; w < words.length; w++) {
+            words[w] &= ~held[w];
+            held[w] = 0;
+        }
+        freeCount += heldCount;
+        heldCount = 0;
     }
 
     /**
@@ -37,23 +162,28 @@ public class FreeBlockList {
      */
 
     public void allocateBlock(int whichBlock) {
-        int blockNum = (int) (whichBlock / 8);
-        int offset = whichBlock % 8;
+        int word = whichBlock / Long.SIZE;
+        long mask = 1L << (whichBlock % Long.SIZE);
 
         /**
-         * Extract the correct byte in which the block falls
-         *
          * Blocks are arranged from 0..max_block
          *
          * Each block has a bit that tells whether or not the block
-         * is free (0) or taken(1).  The list of bits are grouped
-         * 8-bits at a time.  So we divide by 8 to compute the
-         * byte in which a block number falls.  We do a modulo 8
-         * to find the offset within the byte.
+         * is free (0) or taken(1).  The bits are grouped 64 at a
+         * time, so we divide by 64 to find the word in which a block
+         * number falls and take the remainder to find the bit.
          *
          * It is assumed that block numbers begin with 0
          */
-        freeList[blockNum] = (byte) (freeList[blockNum] | (1 << offset));
+        if ((words[word] & mask) == 0) {
+            words[word] |= mask;
+            freeCount--;
+            markDirty(whichBlock);
+        } else if ((held[word] & mask) != 0) {
+            held[word] &= ~mask;
+            heldCount--;
+            markDirty(whichBlock);
+        }
     }
 
     /**
@@ -63,14 +193,214 @@ public class FreeBlockList {
      */
 
     public void deallocateBlock(int whichBlock) {
-        int blockNum = (int) (whichBlock / 8);
-
-        int offset = whichBlock % 8;
+        int word = whichBlock / Long.SIZE;
+        long mask = 1L << (whichBlock % Long.SIZE);
 
         /**
          * mask out the bit for the appropriate block by doing an AND
          * function with the complement of the mask used to set it.
          */
-        freeList[blockNum] = (byte) (freeList[blockNum] & (~(1 << offset)));
+        if ((words[word] & mask) == 0 || (held[word] & mask) != 0) {
+            return;
+        }
+
+        if (holdFreedBlocks) {
+            held[word] |= mask;
+            heldCount++;
+        } else {
+            words[word] &= ~mask;
+            freeCount++;
+        }
+        markDirty(whichBlock);
+    }
+
+    /**
+     * Returns true if <code>whichBlock</code> is allocated to a file or
+     * is being held after it was freed
+     *
+     * @param whichBlock - block to check
+     * @return Returns true if the block is allocated
+     */
+    public boolean isAllocated(int whichBlock) {
+        return (words[whichBlock / Long.SIZE] & (1L << (whichBlock % Long.SIZE))) != 0;
+    }
+
+    /**
+     * Returns the number of free blocks
+     * @return Returns the number of free blocks
+     */
+    public int getFreeCount() {
+        return freeCount;
+    }
+
+    /**
+     * Finds a free block, starting at the block after the last one handed
+     * out and wrapping around to the start of the disk, and allocates it
+     *
+     * @return The block allocated, or -1 if every block is in use
+     */
+    public int allocate() {
+        if (freeCount == 0) {
+            return -1;
+        }
+
+        int startWord = nextFitCursor / Long.SIZE;
+
+        /**
+         * Blocks in the starting word before the cursor are treated
+         * as taken on the first pass and picked up on the wrap around.
+         */
+        long free = ~words[startWord] & (-1L << (nextFitCursor % Long.SIZE));
+        int word = startWord;
+
+        for (int step = 0; step <= words.length; step++) {
+            if (free != 0) {
+                int block = (word * Long.SIZE) + Long.numberOfTrailingZeros(free);
+                if (block < numBlocks) {
+                    allocateBlock(block);
+                    nextFitCursor = (block + 1) % numBlocks;
+                    return block;
+                }
+            }
+            word = (word + 1) % words.length;
+            free = ~words[word];
+        }
+
+        return -1;
+    }
+
+    /**
+     * Allocates up to <code>count</code> contiguous blocks.  The first free
+     * run, looking from the next fit cursor and wrapping around, that
+     * holds all <code>count</code> blocks is used.  If there is no such
+     * run, the longest free run is allocated instead and the caller asks
+     * again for the rest.
+     *
+     * @param blocks Array receiving the block numbers allocated
+     * @param offset Position in <code>blocks</code> of the first block
+     * @param count Number of blocks wanted
+     * @return The number of blocks allocated, 0 if every block is in use
+     */
+    public int allocateRun(int[] blocks, int offset, int count) {
+        if (freeCount == 0 || count <= 0) {
+            return 0;
+        }
+
+        int bestStart = -1;
+        int bestLength = 0;
+        int position = nextFitCursor;
+        boolean wrapped = false;
+
+        while (true) {
+            int start = nextFree(position);
+            if (start == -1 || (wrapped && start >= nextFitCursor)) {
+                if (wrapped || nextFitCursor == 0) {
+                    break;
+                }
+                position = 0;
+                wrapped = true;
+                continue;
+            }
+
+            int length = nextAllocated(start) - start;
+            if (length >= count) {
+                bestStart = start;
+                bestLength = count;
+                break;
+            }
+            if (length > bestLength) {
+                bestStart = start;
+                bestLength = length;
+            }
+            position = start + length;
+        }
+
+        for (int i = 0; i < bestLength; i++) {
+            allocateBlock(bestStart + i);
+            blocks[offset + i] = bestStart + i;
+        }
+        nextFitCursor = (bestStart + bestLength) % numBlocks;
+
+        return bestLength;
+    }
+
+    /**
+     * Writes the regions of the list changed since it was last written or
+     * loaded to <code>device</code>
+     *
+     * @param device Device holding the on-disk list
+     * @throws IOException If the list cannot be written
+     */
+    public void writeDirtyRegions(BlockDevice device) throws IOException {
+        for (int region = dirtyRegions.nextSetBit(0); region >= 0;
+             region = dirtyRegions.nextSetBit(region + 1)) {
+            int offset = region * REGION_SIZE;
+            byte[] bytes = new byte[Math.min(REGION_SIZE, listSize - offset)];
+
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = byteAt(offset + i);
+            }
+            device.writeFreeBlockList(bytes, offset);
+        }
+        dirtyRegions.clear();
+    }
+
+    /**
+     * Returns the first free block at or after <code>fromBlock</code>, or
+     * -1 if there is none
+     */
+    private int nextFree(int fromBlock) {
+        if (fromBlock >= numBlocks) {
+            return -1;
+        }
+
+        int word = fromBlock / Long.SIZE;
+        long free = ~words[word] & (-1L << (fromBlock % Long.SIZE));
+
+        while (free == 0) {
+            if (++word == words.length) {
+                return -1;
+            }
+            free = ~words[word];
+        }
+
+        int block = (word * Long.SIZE) + Long.numberOfTrailingZeros(free);
+        return block < numBlocks ? block : -1;
+    }
+
+    /**
+     * Returns the first allocated block at or after <code>fromBlock</code>,
+     * or the number of blocks if there is none
+     */
+    private int nextAllocated(int fromBlock) {
+        if (fromBlock >= numBlocks) {
+            return numBlocks;
+        }
+
+        int word = fromBlock / Long.SIZE;
+        long taken = words[word] & (-1L << (fromBlock % Long.SIZE));
+
+        while (taken == 0) {
+            if (++word == words.length) {
+                return numBlocks;
+            }
+            taken = words[word];
+        }
+
+        return Math.min((word * Long.SIZE) + Long.numberOfTrailingZeros(taken), numBlocks);
+    }
+
+    private byte byteAt(int index) {
+        long word = words[index / Long.BYTES] & ~held[index / Long.BYTES];
+
+        return (byte) (word >>> ((index % Long.BYTES) * Byte.SIZE));
+    }
+
+    private void markDirty(int whichBlock) {
+        dirtyRegions.set((whichBlock / Byte.SIZE) / REGION_SIZE);
+    }
+
+    private int numRegions() {
+        return (listSize + REGION_SIZE - 1) / REGION_SIZE;
     }
 }
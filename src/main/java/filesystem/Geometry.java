@@ -0,0 +1,252 @@
+package filesystem;
+
+
+/***
+ * The shape of a volume: how many blocks and inodes it has and how large
+ * they are.  The geometry is chosen when a device is formatted, recorded
+ * in its superblock and read back when it is mounted, so volumes with
+ * different geometries can be used by the same program.
+ *
+ * A volume is laid out as the superblock, the free block list, the inode
+ * table, the journal and the data blocks.  The journal and the data
+ * blocks start on a multiple of the block size.  A volume formatted
+ * without journal blocks has no journal.
+ */
+public class Geometry {
+    /**
+     * The geometry given by the constants of <code>Disk</code>
+     */
+    public static final Geometry DEFAULT = new Geometry(Disk.NUM_BLOCKS, Disk.NUM_INODES,
+            Disk.BLOCK_SIZE, Disk.INODE_SIZE);
+
+    public static final int MIN_BLOCK_SIZE = 512;
+    public static final int MAX_BLOCK_SIZE = 1 << 20;
+
+    /**
+     * Number of the largest possible file system operations the journal
+     * of a geometry holds when its size is not given
+     */
+    public static final int DEFAULT_JOURNAL_OPERATIONS = 64;
+
+    private final int numBlocks;
+    private final int numInodes;
+    private final int blockSize;
+    private final int inodeSize;
+    private final int journalBlocks;
+
+    /***
+     * Create a geometry with a journal large enough for
+     * <code>DEFAULT_JOURNAL_OPERATIONS</code> of the largest operations
+     *
+     * @param numBlocks Number of data blocks
+     * @param numInodes Number of inodes, and so the most files the volume can hold
+     * @param blockSize Size of a data block in bytes, a power of two from
+     *                  <code>MIN_BLOCK_SIZE</code> to <code>MAX_BLOCK_SIZE</code>
+     * @param inodeSize Size of an inode record in bytes, at least
+     *                  <code>Disk.INODE_FIELDS_SIZE</code>
+     * @throws IllegalArgumentException If any of the sizes is out of range
+     */
+    public Geometry(int numBlocks, int numInodes, int blockSize, int inodeSize) {
+        this(numBlocks, numInodes, blockSize, inodeSize, defaultJournalBlocks(numBlocks, blockSize));
+    }
+
+    /***
+     * Create a geometry
+     *
+     * @param numBlocks Number of data blocks
+     * @param numInodes Number of inodes, and so the most files the volume can hold
+     * @param blockSize Size of a data block in bytes, a power of two from
+     *                  <code>MIN_BLOCK_SIZE</code> to <code>MAX_BLOCK_SIZE</code>
+     * @param inodeSize Size of an inode record in bytes, at least
+     *                  <code>Disk.INODE_FIELDS_SIZE</code>
+     * @param journalBlocks Number of blocks of the journal, 0 for none or
+     *                      at least <code>getMinJournalBlocks()</code>
+     * @throws IllegalArgumentException If any of the sizes is out of range
+     */
+    public Geometry(int numBlocks, int numInodes, int blockSize, int inodeSize, int journalBlocks) {
+        if (numBlocks <= 0 || numInodes <= 0) {
+            throw new IllegalArgumentException("Geometry::Geometry: " +
+                    numBlocks + " blocks and " + numInodes + " inodes, both must be at least 1");
+        }
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || Integer.bitCount(blockSize) != 1) {
+            throw new IllegalArgumentException("Geometry::Geometry: block size " + blockSize +
+                    " is not a power of two from " + MIN_BLOCK_SIZE + " to " + MAX_BLOCK_SIZE);
+        }
+        if (inodeSize < Disk.INODE_FIELDS_SIZE) {
+            throw new IllegalArgumentException("Geometry::Geometry: inode size " + inodeSize +
+                    " is less than " + Disk.INODE_FIELDS_SIZE);
+        }
+
+        this.numBlocks = numBlocks;
+        this.numInodes = numInodes;
+        this.blockSize = blockSize;
+        this.inodeSize = inodeSize;
+        this.journalBlocks = journalBlocks;
+
+        int minJournalBlocks = minJournalBlocks(numBlocks, blockSize);
+        if (journalBlocks != 0 && journalBlocks < minJournalBlocks) {
+            throw new IllegalArgumentException("Geometry::Geometry: journal of " + journalBlocks +
+                    " blocks is neither 0 nor at least " + minJournalBlocks + " blocks");
+        }
+    }
+
+    public int getNumBlocks() {
+        return numBlocks;
+    }
+
+    public int getNumInodes() {
+        return numInodes;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getInodeSize() {
+        return inodeSize;
+    }
+
+    public int getJournalBlocks() {
+        return journalBlocks;
+    }
+
+    /**
+     * Returns true if the volume has a journal
+     * @return Returns true if there is at least one journal block
+     */
+    public boolean hasJournal() {
+        return journalBlocks > 0;
+    }
+
+    /**
+     * Returns the fewest blocks a journal can have: a block for its
+     * header and room for two of the largest operations
+     * @return Returns the smallest number of journal blocks
+     */
+    public int getMinJournalBlocks() {
+        return minJournalBlocks(numBlocks, blockSize);
+    }
+
+    /**
+     * Returns the size of the free block list, one bit per block
+     * @return Returns the size of the free block list in bytes
+     */
+    public int getFreeListSize() {
+        return (numBlocks + Byte.SIZE - 1) / Byte.SIZE;
+    }
+
+    /**
+     * Returns the offset of the free block list, just after the superblock
+     * @return Returns the offset of the free block list in bytes
+     */
+    public long getFreeListOffset() {
+        return Disk.SUPERBLOCK_SIZE;
+    }
+
+    /**
+     * Returns the offset of the inode table, just after the free block list
+     * @return Returns the offset of the inode table in bytes
+     */
+    public long getInodeTableOffset() {
+        return getFreeListOffset() + getFreeListSize();
+    }
+
+    /**
+     * Returns the offset of an inode record
+     * @param whichInode The inode number
+     * @return Returns the offset of the inode record in bytes
+     */
+    public long getInodeOffset(int whichInode) {
+        return getInodeTableOffset() + ((long) inodeSize * whichInode);
+    }
+
+    /**
+     * Returns the offset of the journal, the end of the inode table
+     * rounded up to a multiple of the block size
+     * @return Returns the offset of the journal in bytes
+     */
+    public long getJournalOffset() {
+        long inodeTableEnd = getInodeOffset(numInodes);
+
+        return ((inodeTableEnd + blockSize - 1) / blockSize) * blockSize;
+    }
+
+    /**
+     * Returns the size of the journal
+     * @return Returns the size of the journal in bytes
+     */
+    public long getJournalSize() {
+        return (long) journalBlocks * blockSize;
+    }
+
+    /**
+     * Returns the offset of the first data block, just after the journal
+     * @return Returns the offset of the first data block in bytes
+     */
+    public long getDataBlocksOffset() {
+        return getJournalOffset() + getJournalSize();
+    }
+
+    /**
+     * Returns the offset of a data block
+     * @param whichBlock The block number
+     * @return Returns the offset of the data block in bytes
+     */
+    public long getBlockOffset(int whichBlock) {
+        return getDataBlocksOffset() + ((long) blockSize * whichBlock);
+    }
+
+    /**
+     * Returns the size of the whole volume
+     * @return Returns the size of the volume in bytes
+     */
+    public long getDiskSize() {
+        return getBlockOffset(numBlocks);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof Geometry)) {
+            return false;
+        }
+        Geometry geometry = (Geometry) other;
+
+        return numBlocks == geometry.numBlocks && numInodes == geometry.numInodes &&
+                blockSize == geometry.blockSize && inodeSize == geometry.inodeSize &&
+                journalBlocks == geometry.journalBlocks;
+    }
+
+    @Override
+    public int hashCode() {
+        return (((((numBlocks * 31) + numInodes) * 31) + blockSize) * 31 + inodeSize) * 31 + journalBlocks;
+    }
+
+    @Override
+    public String toString() {
+        return numBlocks + " blocks of " + blockSize + " bytes, " +
+                numInodes + " inodes of " + inodeSize + " bytes, " +
+                journalBlocks + " journal blocks";
+    }
+
+    /***
+     * Returns the fewest blocks a journal of a geometry can have, for use
+     * before the geometry is built
+     */
+    private static int minJournalBlocks(int numBlocks, int blockSize) {
+        return 1 + (int) ((2 * Journal.maxOperationSize(numBlocks, blockSize) + blockSize - 1) / blockSize);
+    }
+
+    /***
+     * Returns the number of journal blocks holding
+     * <code>DEFAULT_JOURNAL_OPERATIONS</code> of the largest operations,
+     * or 0 if the block size is not valid and the geometry will be refused
+     */
+    private static int defaultJournalBlocks(int numBlocks, int blockSize) {
+        if (numBlocks <= 0 || blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) {
+            return 0;
+        }
+        long journalSize = DEFAULT_JOURNAL_OPERATIONS * Journal.maxOperationSize(numBlocks, blockSize);
+
+        return 1 + (int) ((journalSize + blockSize - 1) / blockSize);
+    }
+}
@@ -7,6 +7,12 @@ public class INode {
     public final static int SIZE_FIELD_SIZE = Integer.SIZE;
     public final static int BLOCK_POINTER_SIZE = Integer.SIZE;
 
+    /**
+     * Largest file, in bytes, whose contents fit in the space of the
+     * direct block pointers
+     */
+    public final static int MAX_INLINE_SIZE = NUM_BLOCK_POINTERS * Integer.BYTES;
+
     /**
      * File name size + size(integer) + size(integer  * number_of_block_addresses
      */
@@ -15,8 +21,13 @@ public class INode {
             (Integer.SIZE * NUM_BLOCK_POINTERS);
 
     private String fileName;
+    private byte[] encodedFileName;
     private int fileSize;
     private int[] blockPointers;
+    private int singleIndirectPointer;
+    private int doubleIndirectPointer;
+    private byte[] inlineData;
+    private boolean directory;
 
 
     public INode() {
@@ -26,6 +37,8 @@ public class INode {
         for (int i = 0; i < blockPointers.length; i++) {
             blockPointers[i] = -1;
         }
+        singleIndirectPointer = -1;
+        doubleIndirectPointer = -1;
     }
 
     /**
@@ -58,6 +71,58 @@ public class INode {
         };
     }
 
+    /**
+     * Marks the inode as a directory, whose data blocks hold its entries
+     * @param directory true for a directory, false for a file
+     */
+    public void setDirectory(boolean directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns true if the inode is a directory
+     * @return Returns true if the inode is a directory
+     */
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    /**
+     * Stores the whole contents of a small file in the inode, in place of
+     * its block pointers, and sets the size of the file to match.  The
+     * array is kept, not copied.
+     * @param data Contents of the file, or null to use block pointers again
+     * @throws IllegalArgumentException If <code>data</code> is longer than
+     *                                  <code>MAX_INLINE_SIZE</code> bytes
+     */
+    public void setInlineData(byte[] data) throws IllegalArgumentException {
+        if (data != null) {
+            if (data.length > MAX_INLINE_SIZE) {
+                throw new IllegalArgumentException("INode::setInlineData:  " +
+                        "size exceeds " + MAX_INLINE_SIZE + " bytes");
+            }
+            this.fileSize = data.length;
+        }
+        this.inlineData = data;
+    }
+
+    /**
+     * Returns the contents of the file stored in the inode.  The array is
+     * shared and must not be changed.
+     * @return Returns the contents, or null if the file uses block pointers
+     */
+    public byte[] getInlineData() {
+        return inlineData;
+    }
+
+    /**
+     * Returns true if the contents of the file are stored in the inode
+     * @return Returns true if the contents of the file are stored in the inode
+     */
+    public boolean isInline() {
+        return inlineData != null;
+    }
+
     /**
      * Sets the name of the file for this INode
      * @param name Name of the file
@@ -65,13 +130,26 @@ public class INode {
      *                                  allowed length of 64 bytes
      */
     public void setFileName(String name) throws IllegalArgumentException {
+        byte[] encoded = null;
+
         if (name != null) {
-            if (name.length() > INode.FILE_NAME_SIZE) {
+            encoded = name.getBytes();
+            if (name.length() > INode.FILE_NAME_SIZE || encoded.length > INode.FILE_NAME_SIZE) {
                 throw new IllegalArgumentException("INode::setFileName:  " +
                         "size exceeds " + INode.FILE_NAME_SIZE + " bytes");
             }
         }
         this.fileName = name;
+        this.encodedFileName = encoded;
+    }
+
+    /**
+     * Returns the name of the file as it is stored, without padding.  The
+     * array is shared and must not be changed.
+     * @return Returns the encoded name, or null if the inode is free
+     */
+    byte[] encodedFileName() {
+        return encodedFileName;
     }
 
     /**
@@ -96,7 +174,7 @@ public class INode {
         }
 
         if (fileName != null) {
-            contents = fileName.getBytes();
+            contents = encodedFileName;
             for (int i = 0; i < contents.length; i++) {
                 result[i] = contents[i];
             }
@@ -166,6 +244,40 @@ public class INode {
                 (byte) result
         };
     }
-}
 
+    /**
+     * Sets the block holding the pointers to the blocks that follow the
+     * direct blocks
+     * @param value Block number, or -1 if the file has no such block
+     */
+    public void setSingleIndirectPointer(int value) {
+        this.singleIndirectPointer = value;
+    }
 
+    /**
+     * Returns the block holding the pointers to the blocks that follow the
+     * direct blocks
+     * @return Returns the block number, or -1 if the file has no such block
+     */
+    public int getSingleIndirectPointer() {
+        return singleIndirectPointer;
+    }
+
+    /**
+     * Sets the block holding the pointers to the blocks of pointers that
+     * follow the single indirect blocks
+     * @param value Block number, or -1 if the file has no such block
+     */
+    public void setDoubleIndirectPointer(int value) {
+        this.doubleIndirectPointer = value;
+    }
+
+    /**
+     * Returns the block holding the pointers to the blocks of pointers that
+     * follow the single indirect blocks
+     * @return Returns the block number, or -1 if the file has no such block
+     */
+    public int getDoubleIndirectPointer() {
+        return doubleIndirectPointer;
+    }
+}
@@ -0,0 +1,169 @@
+package filesystem;
+
+import java.nio.ByteBuffer;
+
+
+/***
+ * Encodes inodes to, and decodes them from, their on-disk records.
+ *
+ * A record is a flag byte followed by the name, the size, the direct
+ * block pointers and the two indirect block pointers.  A flag byte of 0
+ * marks a free inode, so a zero filled inode table is an empty one and
+ * the rest of a free record is never looked at.  The direct block
+ * pointers of a file stored inline hold its contents instead, padded
+ * with zeros.
+ *
+ * Each thread has its own codec holding a direct buffer the size of one
+ * record and a scratch array for the name, so an inode is moved with one
+ * positional transfer and encoding it creates no garbage.
+ */
+class INodeCodec {
+    /**
+     * Set in the flag byte of an inode that belongs to a file
+     */
+    static final byte USED = 0x01;
+
+    /**
+     * Set in the flag byte of an inode holding the contents of its file
+     */
+    static final byte INLINE = 0x02;
+
+    /**
+     * Set in the flag byte of an inode that belongs to a directory
+     */
+    static final byte DIRECTORY = 0x04;
+
+    private static final int NAME_OFFSET = 1;
+    private static final int SIZE_OFFSET = NAME_OFFSET + INode.FILE_NAME_SIZE;
+    private static final int POINTERS_OFFSET = SIZE_OFFSET + Integer.BYTES;
+    private static final int INDIRECT_OFFSET = POINTERS_OFFSET + (INode.NUM_BLOCK_POINTERS * Integer.BYTES);
+
+    private static final byte[] NO_NAME = new byte[0];
+
+    private static final ThreadLocal<INodeCodec> CODECS = ThreadLocal.withInitial(INodeCodec::new);
+
+    private final ByteBuffer record = ByteBuffer.allocateDirect(Disk.INODE_FIELDS_SIZE);
+    private final byte[] name = new byte[INode.FILE_NAME_SIZE];
+
+    private INodeCodec() {
+    }
+
+    /***
+     * Returns the codec of the calling thread
+     *
+     * @return The codec of the calling thread
+     */
+    static INodeCodec get() {
+        return CODECS.get();
+    }
+
+    /***
+     * Encodes <code>inode</code> into this codec's record buffer
+     *
+     * @param inode The inode to encode
+     * @return The record buffer, positioned at the start of the record
+     */
+    ByteBuffer encode(INode inode) {
+        put(inode, record, 0);
+        record.clear();
+
+        return record;
+    }
+
+    /***
+     * Returns this codec's record buffer, empty and ready to be read into
+     *
+     * @return The record buffer
+     */
+    ByteBuffer recordBuffer() {
+        return record.clear();
+    }
+
+    /***
+     * Decodes the record read into this codec's record buffer
+     *
+     * @return The inode
+     */
+    INode decode() {
+        return get(record, 0);
+    }
+
+    /***
+     * Stores the record of <code>inode</code> in <code>buffer</code> at
+     * <code>index</code> without moving the buffer's position
+     *
+     * @param inode The inode to store
+     * @param buffer The buffer receiving the record
+     * @param index Position in the buffer of the flag byte
+     */
+    void put(INode inode, ByteBuffer buffer, int index) {
+        byte[] fileName = inode.encodedFileName();
+
+        if (fileName == null) {
+            buffer.put(index, (byte) 0);
+            fileName = NO_NAME;
+        } else {
+            buffer.put(index, (byte) (USED | (inode.isInline() ? INLINE : 0) | (inode.isDirectory() ? DIRECTORY : 0)));
+        }
+
+        buffer.put(index + NAME_OFFSET, fileName);
+        for (int i = fileName.length; i < INode.FILE_NAME_SIZE; i++) {
+            buffer.put(index + NAME_OFFSET + i, (byte) 0);
+        }
+
+        buffer.putInt(index + SIZE_OFFSET, inode.getSize());
+        if (inode.isInline()) {
+            byte[] data = inode.getInlineData();
+            buffer.put(index + POINTERS_OFFSET, data);
+            for (int i = data.length; i < INode.MAX_INLINE_SIZE; i++) {
+                buffer.put(index + POINTERS_OFFSET + i, (byte) 0);
+            }
+        } else {
+            for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+                buffer.putInt(index + POINTERS_OFFSET + (i * Integer.BYTES), inode.getBlockPointer(i));
+            }
+        }
+        buffer.putInt(index + INDIRECT_OFFSET, inode.getSingleIndirectPointer());
+        buffer.putInt(index + INDIRECT_OFFSET + Integer.BYTES, inode.getDoubleIndirectPointer());
+    }
+
+    /***
+     * Builds an inode from the record stored in <code>buffer</code> at
+     * <code>index</code> without moving the buffer's position
+     *
+     * @param buffer The buffer holding the record
+     * @param index Position in the buffer of the flag byte
+     * @return The inode, with no name if the record is free
+     */
+    INode get(ByteBuffer buffer, int index) {
+        INode inode = new INode();
+
+        byte flags = buffer.get(index);
+        if ((flags & USED) == 0) {
+            return inode;
+        }
+
+        buffer.get(index + NAME_OFFSET, name);
+        int nameLength = 0;
+        while (nameLength < name.length && name[nameLength] != 0) {
+            nameLength++;
+        }
+        inode.setFileName(new String(name, 0, nameLength));
+
+        inode.setSize(buffer.getInt(index + SIZE_OFFSET));
+        inode.setDirectory((flags & DIRECTORY) != 0);
+        if ((flags & INLINE) != 0) {
+            byte[] data = new byte[Math.min(inode.getSize(), INode.MAX_INLINE_SIZE)];
+            buffer.get(index + POINTERS_OFFSET, data);
+            inode.setInlineData(data);
+        } else {
+            for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+                inode.setBlockPointer(i, buffer.getInt(index + POINTERS_OFFSET + (i * Integer.BYTES)));
+            }
+        }
+        inode.setSingleIndirectPointer(buffer.getInt(index + INDIRECT_OFFSET));
+        inode.setDoubleIndirectPointer(buffer.getInt(index + INDIRECT_OFFSET + Integer.BYTES));
+
+        return inode;
+    }
+}
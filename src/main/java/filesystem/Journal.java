@@ -0,0 +1,867 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+
+/***
+ * A write-ahead journal of metadata in front of another
+ * <code>BlockDevice</code>.
+ *
+ * Inodes, the free block list, the superblock and changed index blocks
+ * are not written in place.  They are kept in memory and, at the end of
+ * each file system operation, logged to the journal region as one
+ * transaction; an operation is bracketed by <code>begin()</code> and
+ * <code>end()</code>, and operations running at the same time share a
+ * transaction.  A transaction is a header, with a sequence number and a
+ * CRC32 of its contents, followed by the records.
+ *
+ * Logging a transaction does not force it out.  <code>commit()</code>,
+ * called by <code>sync()</code>, forces the device once for every
+ * transaction logged since the last commit (group commit) and only then
+ * writes their metadata in place.  After a crash <code>mount()</code>
+ * replays every complete transaction in sequence order, so each operation
+ * is either applied as a whole or not at all.  Data blocks are written in
+ * place straight away and are not ordered against the log.
+ *
+ * The journal starts over, from the block after its header, when it has
+ * no room for another transaction, and also before an index block it
+ * still holds is overwritten with data, so that replay never writes a
+ * stale index block over it.  A device formatted without journal blocks
+ * is written straight through.
+ */
+public class Journal implements BlockDevice {
+    /**
+     * "SJNL" - starts the header of the journal region
+     */
+    public static final int MAGIC = 0x534a4e4c;
+
+    /**
+     * "STX1" - starts each transaction
+     */
+    static final int TRANSACTION_MAGIC = 0x53545831;
+
+    /**
+     * Magic number and sequence number of the first transaction
+     */
+    static final int HEADER_SIZE = Integer.BYTES + Long.BYTES;
+
+    /**
+     * Magic number, sequence number, record count, length of the records
+     * and their checksum
+     */
+    static final int TRANSACTION_HEADER_SIZE = (4 * Integer.BYTES) + Long.BYTES;
+
+    /**
+     * Record type, target and length
+     */
+    static final int RECORD_HEADER_SIZE = 1 + (2 * Integer.BYTES);
+
+    /**
+     * Most index and directory blocks already in use that one operation
+     * changes: the single indirect block, the double indirect block and
+     * one of the blocks it lists, and a bucket of a directory
+     */
+    static final int MAX_INDEX_BLOCKS_PER_OPERATION = 4;
+
+    private static final byte SUPERBLOCK_RECORD = 1;
+    private static final byte FREE_LIST_RECORD = 2;
+    private static final byte INODE_RECORD = 3;
+    private static final byte INDEX_BLOCK_RECORD = 4;
+
+    private final BlockDevice device;
+    private final ReentrantReadWriteLock operations = new ReentrantReadWriteLock();
+    private final ThreadLocal<Long> reservations = new ThreadLocal<>();
+    private Geometry geometry;
+    private boolean enabled;
+    private long maxOperationSize;
+
+    /**
+     * Metadata written since the last transaction was logged, and
+     * metadata logged since the last commit but not yet written in place
+     */
+    private Metadata running = new Metadata();
+    private Metadata logged = new Metadata();
+
+    private long head;
+    private long nextSequence;
+    private long reservedBytes;
+    private final Set<Integer> journaledIndexBlocks = new HashSet<>();
+    private Runnable commitListener;
+    private long commits;
+
+    /***
+     * The metadata of one or more operations, by record type and target
+     */
+    private static class Metadata {
+        private byte[] superBlock;
+        private final TreeMap<Integer, byte[]> freeListRegions = new TreeMap<>();
+        private final TreeMap<Integer, byte[]> inodes = new TreeMap<>();
+        private final TreeMap<Integer, byte[]> indexBlocks = new TreeMap<>();
+        private long size;
+
+        private void putSuperBlock(byte[] bytes) {
+            size += superBlock == null ? RECORD_HEADER_SIZE + bytes.length : bytes.length - superBlock.length;
+            superBlock = bytes;
+        }
+
+        private void put(TreeMap<Integer, byte[]> records, int target, byte[] bytes) {
+            byte[] old = records.put(target, bytes);
+            size += old == null ? RECORD_HEADER_SIZE + bytes.length : bytes.length - old.length;
+        }
+
+        private void putAll(Metadata other) {
+            if (other.superBlock != null) {
+                putSuperBlock(other.superBlock);
+            }
+            other.freeListRegions.forEach((target, bytes) -> put(freeListRegions, target, bytes));
+            other.inodes.forEach((target, bytes) -> put(inodes, target, bytes));
+            other.indexBlocks.forEach((target, bytes) -> put(indexBlocks, target, bytes));
+        }
+
+        private int recordCount() {
+            return (superBlock == null ? 0 : 1) + freeListRegions.size() + inodes.size() + indexBlocks.size();
+        }
+
+        private boolean isEmpty() {
+            return recordCount() == 0;
+        }
+
+        private void clear() {
+            superBlock = null;
+            freeListRegions.clear();
+            inodes.clear();
+            indexBlocks.clear();
+            size = 0;
+        }
+    }
+
+    /***
+     * Create a journal in front of <code>device</code>.  The journal is
+     * used once the device is formatted or mounted through it.
+     *
+     * @param device The device holding the volume
+     */
+    public Journal(BlockDevice device) {
+        this.device = device;
+    }
+
+    /***
+     * Returns the most bytes of journal one file system operation can
+     * need on a volume of <code>numBlocks</code> blocks of
+     * <code>blockSize</code> bytes: two inodes, the whole free block list,
+     * <code>MAX_INDEX_BLOCKS_PER_OPERATION</code> index blocks and the
+     * superblock
+     *
+     * @param numBlocks Number of data blocks
+     * @param blockSize Size of a data block in bytes
+     * @return The size of the largest transaction of one operation in bytes
+     */
+    static long maxOperationSize(int numBlocks, int blockSize) {
+        long freeListSize = (numBlocks + Byte.SIZE - 1) / Byte.SIZE;
+        long regions = (freeListSize + FreeBlockList.REGION_SIZE - 1) / FreeBlockList.REGION_SIZE;
+
+        return TRANSACTION_HEADER_SIZE +
+                (2L * (RECORD_HEADER_SIZE + Disk.INODE_FIELDS_SIZE)) +
+                (regions * (RECORD_HEADER_SIZE + FreeBlockList.REGION_SIZE)) +
+                ((long) MAX_INDEX_BLOCKS_PER_OPERATION * (RECORD_HEADER_SIZE + blockSize)) +
+                RECORD_HEADER_SIZE + Disk.SUPERBLOCK_SIZE;
+    }
+
+    /***
+     * Returns true if the volume has a journal, false if metadata is
+     * written straight through
+     *
+     * @return Returns true if the volume has a journal
+     */
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /***
+     * Returns the number of group commits since the device was formatted
+     * or mounted
+     *
+     * @return Returns the number of commits
+     */
+    public synchronized long getCommits() {
+        return commits;
+    }
+
+    /***
+     * Sets the code run after each commit, once every freed block the
+     * committed transactions recorded is free on the durable volume
+     *
+     * @param listener The code to run, or null for none
+     */
+    public synchronized void setCommitListener(Runnable listener) {
+        this.commitListener = listener;
+    }
+
+    @Override
+    public void format(Geometry geometry) throws IOException {
+        device.format(geometry);
+
+        synchronized (this) {
+            open();
+            nextSequence = 1;
+            if (enabled) {
+                resetJournal();
+            }
+        }
+    }
+
+    /***
+     * Mounts the device and replays the transactions left in the journal
+     *
+     * @throws IOException If the device cannot be mounted or the journal
+     *                     cannot be replayed
+     */
+    @Override
+    public void mount() throws IOException {
+        device.mount();
+
+        synchronized (this) {
+            open();
+            if (enabled) {
+                replay();
+            }
+        }
+    }
+
+    /***
+     * Starts a file system operation.  Every write up to the matching
+     * <code>end()</code> is logged in the same transaction.  Waits, and
+     * commits if need be, until the journal has room for the largest
+     * operation.  Operations may nest.
+     *
+     * @throws IOException If the journal has to be committed and cannot be
+     */
+    public void begin() throws IOException {
+        begin(1);
+    }
+
+    /***
+     * Starts a batch that may write as much as <code>count</code>
+     * operations, such as the allocation of several files at once.  The
+     * batch is logged as one transaction and ended by <code>end()</code>.
+     *
+     * @param count Number of operations the batch stands for, no more than
+     *              <code>getMaxOperations()</code>
+     * @throws IOException If the journal has to be committed and cannot be
+     * @throws IllegalArgumentException If <code>count</code> operations can
+     *                                  never fit in the journal
+     */
+    public void begin(int count) throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        if (operations.getReadHoldCount() > 0) {
+            operations.readLock().lock();
+            return;
+        }
+        if (count < 1 || count > getMaxOperations()) {
+            throw new IllegalArgumentException("Journal::begin: " + count +
+                    " operations do not fit in the journal, it holds at most " + getMaxOperations());
+        }
+
+        long size = count * maxOperationSize;
+        while (true) {
+            operations.readLock().lock();
+            synchronized (this) {
+                if (head + TRANSACTION_HEADER_SIZE + running.size + reservedBytes + size <=
+                        geometry.getJournalSize()) {
+                    reservedBytes += size;
+                    reservations.set(size);
+                    return;
+                }
+            }
+            operations.readLock().unlock();
+            commit(true);
+        }
+    }
+
+    /***
+     * Returns the most operations one batch may stand for, the number
+     * of the largest operations an empty journal has room for
+     *
+     * @return Returns the most operations a batch may stand for
+     */
+    public synchronized int getMaxOperations() {
+        if (!enabled) {
+            return Integer.MAX_VALUE;
+        }
+
+        return (int) Math.max(1, (geometry.getJournalSize() - geometry.getBlockSize() - TRANSACTION_HEADER_SIZE) /
+                maxOperationSize);
+    }
+
+    /***
+     * Ends a file system operation.  When no other operation is running
+     * the writes made since the last transaction are logged as a new one.
+     *
+     * @throws IOException If the transaction cannot be logged
+     */
+    public void end() throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+
+        boolean outermost = operations.getReadHoldCount() == 1;
+        if (outermost) {
+            synchronized (this) {
+                reservedBytes -= reservations.get();
+            }
+        }
+        operations.readLock().unlock();
+
+        if (outermost && operations.writeLock().tryLock()) {
+            try {
+                logRunning();
+            } finally {
+                operations.writeLock().unlock();
+            }
+        }
+    }
+
+    /***
+     * Logs the writes made since the last transaction, forces every
+     * transaction logged since the last commit out with one
+     * synchronization of the device and writes their metadata in place.
+     * Waits for running operations to end.
+     *
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalStateException If called inside an operation
+     */
+    public void commit() throws IOException {
+        commit(false);
+    }
+
+    @Override
+    public Geometry getGeometry() {
+        return device.getGeometry();
+    }
+
+    @Override
+    public SuperBlock readSuperBlock() throws IOException {
+        byte[] pending;
+        synchronized (this) {
+            pending = running.superBlock != null ? running.superBlock : logged.superBlock;
+        }
+        if (pending == null) {
+            return device.readSuperBlock();
+        }
+
+        SuperBlock superBlock = new SuperBlock();
+        superBlock.setBytes(pending);
+
+        return superBlock;
+    }
+
+    @Override
+    public void writeSuperBlock(SuperBlock superBlock) throws IOException {
+        synchronized (this) {
+            if (enabled) {
+                running.putSuperBlock(superBlock.getBytes());
+                return;
+            }
+        }
+        device.writeSuperBlock(superBlock);
+    }
+
+    @Override
+    public byte[] readFreeBlockList() throws IOException {
+        byte[] freeBlockList = device.readFreeBlockList();
+
+        synchronized (this) {
+            for (Metadata metadata : new Metadata[]{logged, running}) {
+                for (Map.Entry<Integer, byte[]> region : metadata.freeListRegions.entrySet()) {
+                    byte[] bytes = region.getValue();
+                    System.arraycopy(bytes, 0, freeBlockList, region.getKey() * FreeBlockList.REGION_SIZE, bytes.length);
+                }
+            }
+        }
+
+        return freeBlockList;
+    }
+
+    @Override
+    public void writeFreeBlockList(byte[] freeBlockList) throws IOException {
+        if (freeBlockList.length != getGeometry().getFreeListSize()) {
+            throw new IllegalArgumentException("Journal::writeFreeBlockList:  " +
+                    "is "  +  freeBlockList.length +
+                    "bytes long  instead of "  +
+                    getGeometry().getFreeListSize() +
+                    " bytes long");
+        }
+
+        writeFreeBlockList(freeBlockList, 0);
+    }
+
+    /***
+     * Writes part of the free block list.  It is logged a region of
+     * <code>FreeBlockList.REGION_SIZE</code> bytes at a time, so a write
+     * that covers only part of a region reads the rest of it first.
+     *
+     * @param bytes The bytes of the free block list to be written
+     * @param offset Position of the first of <code>bytes</code> within the
+     *               free block list
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If the bytes do not fall within the
+     *                                  free block list
+     */
+    @Override
+    public void writeFreeBlockList(byte[] bytes, int offset) throws IOException {
+        Disk.checkFreeBlockListRange(bytes, offset, getGeometry());
+
+        synchronized (this) {
+            if (enabled) {
+                int freeListSize = geometry.getFreeListSize();
+                byte[] current = null;
+
+                for (int region = offset / FreeBlockList.REGION_SIZE;
+                     region * FreeBlockList.REGION_SIZE < offset + bytes.length; region++) {
+                    int start = region * FreeBlockList.REGION_SIZE;
+                    int length = Math.min(FreeBlockList.REGION_SIZE, freeListSize - start);
+                    byte[] regionBytes;
+
+                    if (start >= offset && start + length <= offset + bytes.length) {
+                        regionBytes = new byte[length];
+                    } else {
+                        if (current == null) {
+                            current = readFreeBlockList();
+                        }
+                        regionBytes = new byte[length];
+                        System.arraycopy(current, start, regionBytes, 0, length);
+                    }
+
+                    int from = Math.max(start, offset);
+                    int to = Math.min(start + length, offset + bytes.length);
+                    System.arraycopy(bytes, from - offset, regionBytes, from - start, to - from);
+                    running.put(running.freeListRegions, region, regionBytes);
+                }
+                return;
+            }
+        }
+        device.writeFreeBlockList(bytes, offset);
+    }
+
+    @Override
+    public void writeInode(INode inode, int whichInode) throws IOException {
+        synchronized (this) {
+            if (enabled) {
+                byte[] record = new byte[Disk.INODE_FIELDS_SIZE];
+                INodeCodec.get().encode(inode).get(record);
+                running.put(running.inodes, whichInode, record);
+                return;
+            }
+        }
+        device.writeInode(inode, whichInode);
+    }
+
+    @Override
+    public INode readInode(int whichInode) throws IOException {
+        byte[] record;
+        synchronized (this) {
+            record = pending(running.inodes, logged.inodes, whichInode);
+        }
+        if (record == null) {
+            return device.readInode(whichInode);
+        }
+
+        return INodeCodec.get().get(ByteBuffer.wrap(record), 0);
+    }
+
+    @Override
+    public INode[] readInodes(int firstInode, int count) throws IOException {
+        INode[] inodes = device.readInodes(firstInode, count);
+
+        synchronized (this) {
+            INodeCodec codec = INodeCodec.get();
+            for (Metadata metadata : new Metadata[]{logged, running}) {
+                for (Map.Entry<Integer, byte[]> record :
+                        metadata.inodes.subMap(firstInode, firstInode + count).entrySet()) {
+                    inodes[record.getKey() - firstInode] = codec.get(ByteBuffer.wrap(record.getValue()), 0);
+                }
+            }
+        }
+
+        return inodes;
+    }
+
+    @Override
+    public void readJournal(long offset, ByteBuffer dst) throws IOException {
+        device.readJournal(offset, dst);
+    }
+
+    @Override
+    public void writeJournal(long offset, ByteBuffer src) throws IOException {
+        device.writeJournal(offset, src);
+    }
+
+    @Override
+    public byte[] readDataBlock(int whichBlock) throws IOException {
+        byte[] block;
+        synchronized (this) {
+            block = pending(running.indexBlocks, logged.indexBlocks, whichBlock);
+        }
+
+        return block == null ? device.readDataBlock(whichBlock) : block.clone();
+    }
+
+    @Override
+    public void writeDataBlock(byte[] blockData, int whichBlock) throws IOException, IllegalArgumentException {
+        protectJournaledIndexBlocks(whichBlock, 1);
+        device.writeDataBlock(blockData, whichBlock);
+    }
+
+    @Override
+    public void writeIndexBlock(byte[] blockData, int whichBlock) throws IOException, IllegalArgumentException {
+        if (blockData.length != getGeometry().getBlockSize()) {
+            throw new IllegalArgumentException("Journal::writeIndexBlock:  "  +
+                    "storing block of size " + blockData.length  +
+                    "when it should be of size "  + getGeometry().getBlockSize());
+        }
+
+        synchronized (this) {
+            if (enabled) {
+                running.put(running.indexBlocks, whichBlock, blockData.clone());
+                return;
+            }
+        }
+        device.writeDataBlock(blockData, whichBlock);
+    }
+
+    @Override
+    public void readBlocks(int firstBlock, int count, ByteBuffer dst) throws IOException {
+        boolean pendingIndexBlocks;
+        synchronized (this) {
+            pendingIndexBlocks = !running.indexBlocks.subMap(firstBlock, firstBlock + count).isEmpty() ||
+                    !logged.indexBlocks.subMap(firstBlock, firstBlock + count).isEmpty();
+        }
+
+        if (!pendingIndexBlocks) {
+            device.readBlocks(firstBlock, count, dst);
+            return;
+        }
+        for (int i = 0; i < count && dst.hasRemaining(); i++) {
+            byte[] block = readDataBlock(firstBlock + i);
+            dst.put(block, 0, Math.min(block.length, dst.remaining()));
+        }
+    }
+
+    @Override
+    public void writeBlocks(int firstBlock, int count, ByteBuffer src) throws IOException, IllegalArgumentException {
+        protectJournaledIndexBlocks(firstBlock, count);
+        device.writeBlocks(firstBlock, count, src);
+    }
+
+    /***
+     * Commits every logged transaction and synchronizes the device, so
+     * that everything written so far is durable and in place
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    @Override
+    public void sync() throws IOException {
+        if (isEnabled()) {
+            commit(false);
+        }
+        device.sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        device.close();
+    }
+
+    /***
+     * Takes the geometry of a freshly formatted or mounted device and
+     * forgets everything pending
+     */
+    private void open() {
+        geometry = device.getGeometry();
+        enabled = geometry.hasJournal();
+        maxOperationSize = maxOperationSize(geometry.getNumBlocks(), geometry.getBlockSize());
+        running.clear();
+        logged.clear();
+        reservedBytes = 0;
+        head = geometry.getBlockSize();
+        journaledIndexBlocks.clear();
+    }
+
+    /***
+     * Commits, once no operation is running, and optionally starts the
+     * journal over
+     */
+    private void commit(boolean restart) throws IOException {
+        if (operations.getReadHoldCount() > 0) {
+            throw new IllegalStateException("Journal::commit: cannot commit inside an operation");
+        }
+
+        boolean committed = false;
+        Runnable listener;
+        operations.writeLock().lock();
+        try {
+            synchronized (this) {
+                logRunning();
+                if (!logged.isEmpty()) {
+                    device.sync();
+                    applyLogged();
+                    commits++;
+                    committed = true;
+                }
+                if (restart && head > geometry.getBlockSize()) {
+                    device.sync();
+                    resetJournal();
+                }
+                listener = commitListener;
+            }
+
+            /**
+             * Nothing is running, so every freed block the listener
+             * hands back was freed by a transaction just made durable.
+             */
+            if (committed && listener != null) {
+                listener.run();
+            }
+        } finally {
+            operations.writeLock().unlock();
+        }
+    }
+
+    /***
+     * Appends the writes made since the last transaction to the journal
+     * as a new transaction, starting the journal over first if it is full.
+     * The caller makes sure no operation is half done.
+     */
+    private synchronized void logRunning() throws IOException {
+        if (running.isEmpty()) {
+            return;
+        }
+
+        ByteBuffer transaction = encode(running, nextSequence);
+        if (transaction.remaining() > geometry.getJournalSize() - geometry.getBlockSize()) {
+            throw new IOException("Journal::logRunning: transaction of " + transaction.remaining() +
+                    " bytes does not fit in a journal of " + geometry.getJournalSize() + " bytes");
+        }
+        if (head + transaction.remaining() > geometry.getJournalSize()) {
+            checkpoint();
+        }
+
+        int length = transaction.remaining();
+        device.writeJournal(head, transaction);
+        head += length;
+        nextSequence++;
+
+        journaledIndexBlocks.addAll(running.indexBlocks.keySet());
+        logged.putAll(running);
+        running.clear();
+    }
+
+    /***
+     * Makes the logged transactions durable, writes them in place, makes
+     * that durable too and starts the journal over.  Freed blocks stay
+     * held, since an operation may be half done.
+     */
+    private synchronized void checkpoint() throws IOException {
+        device.sync();
+        applyLogged();
+        device.sync();
+        resetJournal();
+    }
+
+    /***
+     * Starts the journal over before a data block is written over an index
+     * block that a transaction still in the journal holds
+     */
+    private void protectJournaledIndexBlocks(int firstBlock, int count) throws IOException {
+        synchronized (this) {
+            if (journaledIndexBlocks.isEmpty()) {
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                if (journaledIndexBlocks.contains(firstBlock + i)) {
+                    checkpoint();
+                    return;
+                }
+            }
+        }
+    }
+
+    /***
+     * Writes a new journal header naming the next transaction as the first
+     * and makes it durable, so nothing logged before is replayed
+     */
+    private synchronized void resetJournal() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putLong(nextSequence).flip();
+
+        device.writeJournal(0, header);
+        device.sync();
+        head = geometry.getBlockSize();
+        journaledIndexBlocks.clear();
+    }
+
+    /***
+     * Writes the logged metadata in place
+     */
+    private void applyLogged() throws IOException {
+        if (logged.superBlock != null) {
+            apply(SUPERBLOCK_RECORD, 0, logged.superBlock);
+        }
+        for (Map.Entry<Integer, byte[]> record : logged.freeListRegions.entrySet()) {
+            apply(FREE_LIST_RECORD, record.getKey(), record.getValue());
+        }
+        for (Map.Entry<Integer, byte[]> record : logged.inodes.entrySet()) {
+            apply(INODE_RECORD, record.getKey(), record.getValue());
+        }
+        for (Map.Entry<Integer, byte[]> record : logged.indexBlocks.entrySet()) {
+            apply(INDEX_BLOCK_RECORD, record.getKey(), record.getValue());
+        }
+        logged.clear();
+    }
+
+    /***
+     * Writes one record in place
+     *
+     * @throws IOException If the record is not valid or cannot be written
+     */
+    private void apply(byte type, int target, byte[] bytes) throws IOException {
+        switch (type) {
+            case SUPERBLOCK_RECORD:
+                SuperBlock superBlock = new SuperBlock();
+                superBlock.setBytes(bytes);
+                device.writeSuperBlock(superBlock);
+                break;
+            case FREE_LIST_RECORD:
+                device.writeFreeBlockList(bytes, target * FreeBlockList.REGION_SIZE);
+                break;
+            case INODE_RECORD:
+                device.writeInode(INodeCodec.get().get(ByteBuffer.wrap(bytes), 0), target);
+                break;
+            case INDEX_BLOCK_RECORD:
+                device.writeDataBlock(bytes, target);
+                break;
+            default:
+                throw new IOException("Journal::apply: unknown record type " + type);
+        }
+    }
+
+    /***
+     * Encodes metadata as a transaction
+     *
+     * @return The transaction, ready to be written
+     */
+    private static ByteBuffer encode(Metadata metadata, long sequence) {
+        ByteBuffer transaction = ByteBuffer.allocate((int) (TRANSACTION_HEADER_SIZE + metadata.size));
+
+        transaction.putInt(TRANSACTION_MAGIC)
+                .putLong(sequence)
+                .putInt(metadata.recordCount())
+                .putInt((int) metadata.size)
+                .putInt(0);
+
+        if (metadata.superBlock != null) {
+            putRecord(transaction, SUPERBLOCK_RECORD, 0, metadata.superBlock);
+        }
+        metadata.freeListRegions.forEach((target, bytes) -> putRecord(transaction, FREE_LIST_RECORD, target, bytes));
+        metadata.inodes.forEach((target, bytes) -> putRecord(transaction, INODE_RECORD, target, bytes));
+        metadata.indexBlocks.forEach((target, bytes) -> putRecord(transaction, INDEX_BLOCK_RECORD, target, bytes));
+
+        transaction.putInt(TRANSACTION_HEADER_SIZE - Integer.BYTES, checksum(transaction.array()));
+
+        return transaction.flip();
+    }
+
+    private static void putRecord(ByteBuffer transaction, byte type, int target, byte[] bytes) {
+        transaction.put(type).putInt(target).putInt(bytes.length).put(bytes);
+    }
+
+    /***
+     * Returns the CRC32 of a transaction, leaving out the checksum field
+     */
+    private static int checksum(byte[] transaction) {
+        CRC32 crc = new CRC32();
+
+        crc.update(transaction, 0, TRANSACTION_HEADER_SIZE - Integer.BYTES);
+        crc.update(transaction, TRANSACTION_HEADER_SIZE, transaction.length - TRANSACTION_HEADER_SIZE);
+
+        return (int) crc.getValue();
+    }
+
+    /***
+     * Writes every complete transaction in the journal in place, in
+     * sequence order, stopping at the first one that is missing, torn or
+     * left over from before the journal last started over.  Then starts
+     * the journal over.
+     *
+     * @throws IOException If the journal cannot be read or a record
+     *                     cannot be written
+     */
+    private void replay() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        device.readJournal(0, header);
+
+        long sequence = 1;
+        long position = geometry.getBlockSize();
+        int replayed = 0;
+
+        if (header.getInt(0) == MAGIC) {
+            sequence = header.getLong(Integer.BYTES);
+
+            while (position + TRANSACTION_HEADER_SIZE <= geometry.getJournalSize()) {
+                ByteBuffer transactionHeader = ByteBuffer.allocate(TRANSACTION_HEADER_SIZE);
+                device.readJournal(position, transactionHeader);
+
+                int length = transactionHeader.getInt(TRANSACTION_HEADER_SIZE - (2 * Integer.BYTES));
+                if (transactionHeader.getInt(0) != TRANSACTION_MAGIC ||
+                        transactionHeader.getLong(Integer.BYTES) != sequence ||
+                        length < 0 || position + TRANSACTION_HEADER_SIZE + length > geometry.getJournalSize()) {
+                    break;
+                }
+
+                byte[] transaction = new byte[TRANSACTION_HEADER_SIZE + length];
+                ByteBuffer body = ByteBuffer.wrap(transaction, TRANSACTION_HEADER_SIZE, length);
+                device.readJournal(position + TRANSACTION_HEADER_SIZE, body);
+                System.arraycopy(transactionHeader.array(), 0, transaction, 0, TRANSACTION_HEADER_SIZE);
+                if (checksum(transaction) != transactionHeader.getInt(TRANSACTION_HEADER_SIZE - Integer.BYTES)) {
+                    break;
+                }
+
+                ByteBuffer records = ByteBuffer.wrap(transaction, TRANSACTION_HEADER_SIZE, length);
+                int recordCount = transactionHeader.getInt(Integer.BYTES + Long.BYTES);
+                for (int i = 0; i < recordCount; i++) {
+                    byte type = records.get();
+                    int target = records.getInt();
+                    byte[] bytes = new byte[records.getInt()];
+                    records.get(bytes);
+                    apply(type, target, bytes);
+                }
+
+                position += transaction.length;
+                sequence++;
+                replayed++;
+            }
+        }
+
+        if (replayed > 0) {
+            device.sync();
+        }
+        nextSequence = sequence;
+        resetJournal();
+    }
+
+    private static byte[] pending(TreeMap<Integer, byte[]> running, TreeMap<Integer, byte[]> logged, int target) {
+        byte[] bytes = running.get(target);
+
+        return bytes != null ? bytes : logged.get(target);
+    }
+}
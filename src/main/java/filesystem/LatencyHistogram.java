@@ -0,0 +1,148 @@
+package filesystem;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/***
+ * A histogram of latencies in nanoseconds that many threads can record
+ * into without locking.
+ *
+ * The buckets are laid out as in an HDR histogram: values below
+ * <code>SUB_BUCKETS</code> each have a bucket of their own, and every
+ * power of two above that is split into <code>SUB_BUCKETS</code> equal
+ * buckets.  A value is therefore known to within 1 part in
+ * <code>SUB_BUCKETS</code> whatever its magnitude, from nanoseconds to
+ * hours, with a fixed array of counters and no configuration.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUM_BUCKETS = SUB_BUCKETS + ((Long.SIZE - 1 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /***
+     * Adds a latency to the histogram
+     *
+     * @param nanos The latency in nanoseconds, negative values count as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+
+        buckets.incrementAndGet(bucketOf(value));
+        count.increment();
+        total.add(value);
+        max.accumulate(value);
+    }
+
+    /***
+     * Returns the number of latencies recorded
+     * @return Returns the number of latencies recorded
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /***
+     * Returns the mean latency in nanoseconds
+     * @return Returns the mean latency, 0 if nothing was recorded
+     */
+    public double getMean() {
+        long n = count.sum();
+
+        return n == 0 ? 0 : (double) total.sum() / n;
+    }
+
+    /***
+     * Returns the highest latency recorded in nanoseconds
+     * @return Returns the highest latency, 0 if nothing was recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /***
+     * Returns the latency that <code>percentile</code> percent of the
+     * recorded latencies are at or below, rounded up to the top of its
+     * bucket
+     *
+     * @param percentile A percentage from 0 to 100
+     * @return The latency in nanoseconds, 0 if nothing was recorded
+     * @throws IllegalArgumentException If <code>percentile</code> is out of range
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("LatencyHistogram::getValueAtPercentile: " +
+                    "percentile " + percentile + " is not between 0 and 100");
+        }
+
+        /**
+         * Recording may go on while the buckets are summed, so the
+         * total is taken from the same pass over them
+         */
+        long[] counts = new long[NUM_BUCKETS];
+        long recorded = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            recorded += counts[i];
+        }
+        if (recorded == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * recorded));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueIn(i), getMax());
+            }
+        }
+
+        return getMax();
+    }
+
+    /***
+     * Forgets every latency recorded.  Latencies recorded while the
+     * histogram is being reset may or may not be kept.
+     */
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        total.reset();
+        max.reset();
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        /**
+         * The top SUB_BUCKET_BITS + 1 bits of the value, less the
+         * leading one, pick the bucket within its power of two
+         */
+        int magnitude = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+
+        return SUB_BUCKETS + (shift * SUB_BUCKETS) + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long lowest = (long) (SUB_BUCKETS + ((bucket - SUB_BUCKETS) % SUB_BUCKETS)) << shift;
+
+        return lowest + (1L << shift) - 1;
+    }
+}
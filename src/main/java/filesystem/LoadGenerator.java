@@ -0,0 +1,144 @@
+package filesystem;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/***
+ * Drives a <code>FileServer</code> with many clients at once and reports
+ * the throughput and latency they saw.
+ *
+ * Each client runs on a virtual thread with a connection of its own.  It
+ * creates a file, then until the time is up writes and reads back a
+ * block of it at random, and finally deletes it.  Unless the address of
+ * a running server is given, a server is started in the same process on
+ * a volume in memory, listening on a free loopback port or on the
+ * address given.
+ *
+ * <pre>
+ * gradle loadTest --args="--clients 1000 --seconds 10 --size 4096 [--listen unix:/tmp/fs.sock]"
+ * </pre>
+ */
+public class LoadGenerator {
+    /**
+     * Blocks of its file each client moves between
+     */
+    private static final int FILE_BLOCKS = 16;
+
+    private final SocketAddress address;
+    private final int size;
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+    private final LatencyHistogram readLatency = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+
+    private LoadGenerator(SocketAddress address, int size) {
+        this.address = address;
+        this.size = size;
+    }
+
+    /***
+     * Runs the load
+     *
+     * @param args <code>--clients n</code>, <code>--seconds n</code>,
+     *             <code>--size bytes</code> per request, and either
+     *             <code>--connect address</code> of a running server or
+     *             <code>--listen address</code> for the server started here
+     * @throws Exception If the server cannot be started or a client
+     *                   thread is interrupted
+     */
+    public static void main(String[] args) throws Exception {
+        int clients = 100;
+        int seconds = 5;
+        int size = 4096;
+        String connect = null;
+        String listen = "localhost:0";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--clients" -> clients = Integer.parseInt(args[i + 1]);
+                case "--seconds" -> seconds = Integer.parseInt(args[i + 1]);
+                case "--size" -> size = Integer.parseInt(args[i + 1]);
+                case "--connect" -> connect = args[i + 1];
+                case "--listen" -> listen = args[i + 1];
+                default -> throw new IllegalArgumentException("LoadGenerator::main: unknown option " + args[i]);
+            }
+        }
+
+        FileServer server = null;
+        SocketAddress address;
+        if (connect != null) {
+            address = FileProtocol.parseAddress(connect);
+        } else {
+            // Room for every client's file, its index blocks and the root directory
+            long fileBlocks = (long) FILE_BLOCKS * ((size + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE);
+            long numBlocks = Disk.NUM_BLOCKS + (clients * (fileBlocks + (fileBlocks / 64) + 2));
+            Geometry geometry = new Geometry((int) Math.min(numBlocks, Integer.MAX_VALUE / 2),
+                    Math.max(Disk.NUM_INODES, 2 * clients), Disk.BLOCK_SIZE, Disk.INODE_SIZE);
+            server = new FileServer(new FileSystem(new RamDisk(), geometry), FileProtocol.parseAddress(listen));
+            address = server.getAddress();
+        }
+
+        LoadGenerator load = new LoadGenerator(address, size);
+        System.out.println("Running " + clients + " clients against " + address + " for " + seconds + "s");
+        load.run(clients, seconds * 1_000_000_000L);
+        load.report(seconds);
+
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private void run(int clients, long durationNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + durationNanos;
+        List<Thread> threads = new ArrayList<>(clients);
+
+        for (int i = 0; i < clients; i++) {
+            String path = "load-" + i;
+            threads.add(Thread.ofVirtual().name("load-client-" + i).start(() -> client(path, deadline)));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private void client(String path, long deadline) {
+        byte[] data = new byte[size];
+        ThreadLocalRandom.current().nextBytes(data);
+
+        try (FileClient client = new FileClient(address)) {
+            int fileDescriptor = client.create(path);
+            while (System.nanoTime() < deadline) {
+                long offset = (long) ThreadLocalRandom.current().nextInt(FILE_BLOCKS) * size;
+
+                long start = System.nanoTime();
+                client.write(fileDescriptor, offset, data);
+                long written = System.nanoTime();
+                client.read(fileDescriptor, offset, size);
+                readLatency.record(System.nanoTime() - written);
+                writeLatency.record(written - start);
+            }
+            client.close(fileDescriptor);
+            client.delete(path);
+        } catch (IOException e) {
+            errors.increment();
+        }
+    }
+
+    private void report(int seconds) {
+        long operations = writeLatency.getCount() + readLatency.getCount();
+
+        System.out.printf("%d operations, %.0f per second, %d clients failed%n",
+                operations, (double) operations / seconds, errors.sum());
+        print("write", writeLatency);
+        print("read", readLatency);
+    }
+
+    private static void print(String operation, LatencyHistogram histogram) {
+        System.out.printf("%-5s p50 %8.1f us  p99 %8.1f us  p99.9 %8.1f us  max %8.1f us%n", operation,
+                histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0, histogram.getMax() / 1000.0);
+    }
+}
@@ -0,0 +1,124 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+/***
+ * A <code>BlockDevice</code> that memory-maps a raw disk file.  The free
+ * block list, inode table and data blocks are all served straight out of
+ * the mapping, so no read or write needs a system call.  Changes only
+ * reach the file when the mapping is forced with <code>sync()</code>.
+ */
+public class MappedDisk extends BufferDisk {
+    private String diskFileName;
+    private FileChannel channel;
+    private MappedByteBuffer mappedDisk;
+
+    public MappedDisk() {
+        this(Disk.RAW_DISK_NAME);
+    }
+
+    /***
+     * Create a disk that maps the file <code>diskFileName</code>
+     *
+     * @param diskFileName Path of the raw disk file
+     */
+    public MappedDisk(String diskFileName) {
+        this.diskFileName = diskFileName;
+    }
+
+    /***
+     * Maps a freshly truncated raw disk file into memory
+     *
+     * @return The mapping of the raw disk file
+     * @throws IOException If the file cannot be opened or mapped
+     */
+    @Override
+    protected ByteBuffer allocate(int size) throws IOException {
+        close();
+        channel = FileChannel.open(Path.of(diskFileName),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        /**
+         * Truncating first means the mapping below extends the
+         * file with zeros, giving an empty free block list and
+         * empty data blocks without writing them.
+         */
+        channel.truncate(0);
+        mappedDisk = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        return mappedDisk;
+    }
+
+    /***
+     * Maps the existing raw disk file into memory without changing it.
+     * The superblock is read first to learn how much of the file the
+     * volume takes up.
+     *
+     * @return The mapping of the raw disk file
+     * @throws IOException If the file does not exist, is too small to hold
+     *                     a disk or cannot be mapped
+     */
+    @Override
+    protected ByteBuffer reopen() throws IOException {
+        close();
+        channel = FileChannel.open(Path.of(diskFileName),
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        byte[] superBlockBytes = new byte[Disk.SUPERBLOCK_SIZE];
+        SuperBlock superBlock = new SuperBlock();
+        ByteBuffer superBlockBuffer = ByteBuffer.wrap(superBlockBytes);
+        while (superBlockBuffer.hasRemaining()) {
+            if (channel.read(superBlockBuffer, superBlockBuffer.position()) < 0) {
+                break;
+            }
+        }
+        superBlock.setBytes(superBlockBytes);
+
+        long diskSize;
+        try {
+            superBlock.validate();
+            diskSize = superBlock.getGeometry().getDiskSize();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        if (channel.size() < diskSize || diskSize > Integer.MAX_VALUE) {
+            long size = channel.size();
+            close();
+            throw new IOException("MappedDisk::mount: " + diskFileName + " is " + size +
+                    " bytes long instead of " + diskSize + " bytes long");
+        }
+        mappedDisk = channel.map(FileChannel.MapMode.READ_WRITE, 0, diskSize);
+
+        return mappedDisk;
+    }
+
+    /***
+     * Writes every modified page of the mapping back to the raw disk file
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    @Override
+    public void sync() throws IOException {
+        mappedDisk.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mappedDisk = null;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
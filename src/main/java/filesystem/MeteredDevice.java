@@ -0,0 +1,162 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/***
+ * Counts the I/O passed on to another <code>BlockDevice</code> in a
+ * <code>Metrics</code>.  <code>FileSystem</code> puts one between its
+ * journal and the device it was given, so the counts are of what reaches
+ * that device: journal records, checkpoints and data, but not reads
+ * served from the journal's memory.
+ */
+public class MeteredDevice implements BlockDevice {
+    private final BlockDevice device;
+    private final Metrics metrics;
+
+    /***
+     * Create a counting device in front of <code>device</code>
+     *
+     * @param device The device doing the I/O
+     * @param metrics The metrics to count in
+     */
+    public MeteredDevice(BlockDevice device, Metrics metrics) {
+        this.device = device;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void format(Geometry geometry) throws IOException {
+        device.format(geometry);
+    }
+
+    @Override
+    public void mount() throws IOException {
+        device.mount();
+    }
+
+    @Override
+    public Geometry getGeometry() {
+        return device.getGeometry();
+    }
+
+    @Override
+    public SuperBlock readSuperBlock() throws IOException {
+        metrics.increment(Metrics.Counter.SUPERBLOCK_READS);
+        return device.readSuperBlock();
+    }
+
+    @Override
+    public void writeSuperBlock(SuperBlock superBlock) throws IOException {
+        metrics.increment(Metrics.Counter.SUPERBLOCK_WRITES);
+        device.writeSuperBlock(superBlock);
+    }
+
+    @Override
+    public byte[] readFreeBlockList() throws IOException {
+        metrics.increment(Metrics.Counter.FREE_LIST_READS);
+        return device.readFreeBlockList();
+    }
+
+    @Override
+    public void writeFreeBlockList(byte[] freeBlockList) throws IOException {
+        metrics.increment(Metrics.Counter.FREE_LIST_WRITES);
+        device.writeFreeBlockList(freeBlockList);
+    }
+
+    @Override
+    public void writeFreeBlockList(byte[] bytes, int offset) throws IOException {
+        metrics.increment(Metrics.Counter.FREE_LIST_WRITES);
+        device.writeFreeBlockList(bytes, offset);
+    }
+
+    @Override
+    public void writeInode(INode inode, int whichInode) throws IOException {
+        metrics.increment(Metrics.Counter.INODE_WRITES);
+        device.writeInode(inode, whichInode);
+    }
+
+    @Override
+    public INode readInode(int whichInode) throws IOException {
+        metrics.increment(Metrics.Counter.INODE_READS);
+        return device.readInode(whichInode);
+    }
+
+    @Override
+    public INode[] readInodes(int firstInode, int count) throws IOException {
+        metrics.add(Metrics.Counter.INODE_READS, count);
+        return device.readInodes(firstInode, count);
+    }
+
+    @Override
+    public INode[] readInodeTable() throws IOException {
+        metrics.add(Metrics.Counter.INODE_READS, device.getGeometry().getNumInodes());
+        return device.readInodeTable();
+    }
+
+    @Override
+    public void readJournal(long offset, ByteBuffer dst) throws IOException {
+        metrics.increment(Metrics.Counter.JOURNAL_READS);
+        device.readJournal(offset, dst);
+    }
+
+    @Override
+    public void writeJournal(long offset, ByteBuffer src) throws IOException {
+        metrics.increment(Metrics.Counter.JOURNAL_WRITES);
+        device.writeJournal(offset, src);
+    }
+
+    @Override
+    public byte[] readDataBlock(int whichBlock) throws IOException {
+        metrics.increment(Metrics.Counter.BLOCK_READS);
+        return device.readDataBlock(whichBlock);
+    }
+
+    @Override
+    public void writeDataBlock(byte[] blockData, int whichBlock) throws IOException, IllegalArgumentException {
+        metrics.increment(Metrics.Counter.BLOCK_WRITES);
+        device.writeDataBlock(blockData, whichBlock);
+    }
+
+    @Override
+    public void writeIndexBlock(byte[] blockData, int whichBlock) throws IOException, IllegalArgumentException {
+        metrics.increment(Metrics.Counter.BLOCK_WRITES);
+        device.writeIndexBlock(blockData, whichBlock);
+    }
+
+    @Override
+    public void readBlocks(int firstBlock, int count, ByteBuffer dst) throws IOException {
+        metrics.add(Metrics.Counter.BLOCK_READS, count);
+        device.readBlocks(firstBlock, count, dst);
+    }
+
+    @Override
+    public void writeBlocks(int firstBlock, int count, ByteBuffer src) throws IOException, IllegalArgumentException {
+        metrics.add(Metrics.Counter.BLOCK_WRITES, count);
+        device.writeBlocks(firstBlock, count, src);
+    }
+
+    @Override
+    public void readBlocks(int[] blocks, int offset, int count, ByteBuffer dst) throws IOException {
+        metrics.add(Metrics.Counter.BLOCK_READS, count);
+        device.readBlocks(blocks, offset, count, dst);
+    }
+
+    @Override
+    public void writeBlocks(int[] blocks, int offset, int count, ByteBuffer src) throws IOException {
+        metrics.add(Metrics.Counter.BLOCK_WRITES, count);
+        device.writeBlocks(blocks, offset, count, src);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        metrics.increment(Metrics.Counter.SYNCS);
+        device.sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        device.close();
+    }
+}
@@ -0,0 +1,269 @@
+package filesystem;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/***
+ * Counters of the I/O a file system does and histograms of how long its
+ * operations take.
+ *
+ * Counters are <code>LongAdder</code>s and histograms are
+ * <code>LatencyHistogram</code>s, so threads record without contending
+ * for a lock.  While metrics are disabled, which is the default unless
+ * the system property <code>filesystem.metrics</code> is true, recording
+ * costs one read of a volatile field and the clock is never read.
+ *
+ * The same figures can be published over JMX with
+ * <code>registerMBean()</code>.
+ */
+public class Metrics implements MetricsMXBean {
+    /**
+     * Value returned by <code>start()</code> while metrics are disabled
+     */
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+
+    /***
+     * The things counted.  Block counts are in blocks, however many
+     * transfers they took; the others are in calls.
+     */
+    public enum Counter {
+        BLOCK_READS("blockReads"),
+        BLOCK_WRITES("blockWrites"),
+        INODE_READS("inodeReads"),
+        INODE_WRITES("inodeWrites"),
+        FREE_LIST_READS("freeListReads"),
+        FREE_LIST_WRITES("freeListWrites"),
+        SUPERBLOCK_READS("superBlockReads"),
+        SUPERBLOCK_WRITES("superBlockWrites"),
+        JOURNAL_READS("journalReads"),
+        JOURNAL_WRITES("journalWrites"),
+        SYNCS("syncs");
+
+        private final String key;
+
+        Counter(String key) {
+            this.key = key;
+        }
+
+        /***
+         * Returns the name of the counter as published
+         * @return Returns the name of the counter
+         */
+        public String getKey() {
+            return key;
+        }
+    }
+
+    /***
+     * The operations timed
+     */
+    public enum Operation {
+        FORMAT("format"),
+        MOUNT("mount"),
+        CREATE("create"),
+        OPEN("open"),
+        READ("read"),
+        WRITE("write"),
+        DELETE("delete"),
+        CLOSE("close"),
+        TRUNCATE("truncate"),
+        MKDIR("mkdir"),
+        RMDIR("rmdir"),
+        LIST("list"),
+        SYNC("sync");
+
+        private final String key;
+
+        Operation(String key) {
+            this.key = key;
+        }
+
+        /***
+         * Returns the name of the operation as published
+         * @return Returns the name of the operation
+         */
+        public String getKey() {
+            return key;
+        }
+    }
+
+    private volatile boolean enabled;
+    private final LongAdder[] counters;
+    private final LatencyHistogram[] latencies;
+    private ObjectName registeredName;
+
+    public Metrics() {
+        this(Boolean.getBoolean("filesystem.metrics"));
+    }
+
+    /***
+     * Create a set of metrics, all zero
+     *
+     * @param enabled true to count and time from the start
+     */
+    public Metrics(boolean enabled) {
+        this.enabled = enabled;
+        counters = new LongAdder[Counter.values().length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        latencies = new LatencyHistogram[Operation.values().length];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /***
+     * Adds <code>amount</code> to a counter if metrics are enabled
+     *
+     * @param counter The counter
+     * @param amount The amount to add
+     */
+    public void add(Counter counter, long amount) {
+        if (enabled) {
+            counters[counter.ordinal()].add(amount);
+        }
+    }
+
+    /***
+     * Adds one to a counter if metrics are enabled
+     *
+     * @param counter The counter
+     */
+    public void increment(Counter counter) {
+        add(counter, 1);
+    }
+
+    /***
+     * Returns the value of a counter
+     *
+     * @param counter The counter
+     * @return The sum of everything added to the counter since it was
+     *         last reset
+     */
+    public long getCount(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    /***
+     * Starts timing an operation.  Pass the value returned to
+     * <code>record()</code> when the operation is done.
+     *
+     * @return The time the operation started, or a marker telling
+     *         <code>record()</code> to do nothing if metrics are disabled
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : NOT_TIMED;
+    }
+
+    /***
+     * Records the latency of an operation
+     *
+     * @param operation The operation
+     * @param start The value <code>start()</code> returned when it began
+     */
+    public void record(Operation operation, long start) {
+        if (start != NOT_TIMED) {
+            latencies[operation.ordinal()].record(System.nanoTime() - start);
+        }
+    }
+
+    /***
+     * Returns the histogram of the latencies of an operation
+     *
+     * @param operation The operation
+     * @return The histogram, which goes on changing as operations complete
+     */
+    public LatencyHistogram getLatency(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new LinkedHashMap<>();
+
+        for (Counter counter : Counter.values()) {
+            values.put(counter.getKey(), getCount(counter));
+        }
+
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getLatencies() {
+        Map<String, Long> values = new LinkedHashMap<>();
+
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram histogram = getLatency(operation);
+            values.put(operation.getKey() + ".count", histogram.getCount());
+            values.put(operation.getKey() + ".mean", Math.round(histogram.getMean()));
+            values.put(operation.getKey() + ".p50", histogram.getValueAtPercentile(50));
+            values.put(operation.getKey() + ".p99", histogram.getValueAtPercentile(99));
+            values.put(operation.getKey() + ".p999", histogram.getValueAtPercentile(99.9));
+            values.put(operation.getKey() + ".max", histogram.getMax());
+        }
+
+        return values;
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder counter : counters) {
+            counter.reset();
+        }
+        for (LatencyHistogram histogram : latencies) {
+            histogram.reset();
+        }
+    }
+
+    /***
+     * Publishes the metrics on the platform MBean server under
+     * <code>filesystem:type=Metrics,name=</code><code>name</code>
+     *
+     * @param name Tells apart the file systems of one process
+     * @throws IllegalArgumentException If the name is not valid in an
+     *                                  ObjectName or is already taken
+     */
+    public synchronized void registerMBean(String name) {
+        unregisterMBean();
+        try {
+            ObjectName objectName = new ObjectName("filesystem:type=Metrics,name=" + name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            registeredName = objectName;
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Metrics::registerMBean: cannot register " +
+                    name + ": " + e.getMessage(), e);
+        }
+    }
+
+    /***
+     * Withdraws the metrics from the platform MBean server, if they were
+     * published
+     */
+    public synchronized void unregisterMBean() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (JMException e) {
+            // Already gone
+        }
+        registeredName = null;
+    }
+}
@@ -0,0 +1,43 @@
+package filesystem;
+
+import java.util.Map;
+
+
+/***
+ * The view of <code>Metrics</code> published over JMX
+ */
+public interface MetricsMXBean {
+
+    /***
+     * Returns true if counting and timing are on
+     * @return Returns true if counting and timing are on
+     */
+    boolean isEnabled();
+
+    /***
+     * Turns counting and timing on or off
+     *
+     * @param enabled true to count and time
+     */
+    void setEnabled(boolean enabled);
+
+    /***
+     * Returns every counter by name, for example <code>blockReads</code>
+     * @return Returns the value of every counter
+     */
+    Map<String, Long> getCounters();
+
+    /***
+     * Returns a summary of the latency of every operation in nanoseconds,
+     * keyed by the operation and the statistic, for example
+     * <code>read.p99</code>
+     * @return Returns the count, mean, median, 99th and 99.9th percentile
+     *         and maximum of every operation
+     */
+    Map<String, Long> getLatencies();
+
+    /***
+     * Sets every counter and histogram back to zero
+     */
+    void reset();
+}
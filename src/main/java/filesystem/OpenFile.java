@@ -0,0 +1,52 @@
+package filesystem;
+
+
+/***
+ * An entry of the open-file table: the file a descriptor refers to and
+ * the descriptor's own offset into it.  Descriptors open on the same file
+ * share one in-memory copy of its inode.
+ */
+public class OpenFile {
+    private int iNodeNumber;
+    private INode inode;
+    private volatile long offset;
+
+    public OpenFile(int iNodeNumber, INode inode) {
+        this.iNodeNumber = iNodeNumber;
+        this.inode = inode;
+        this.offset = 0;
+    }
+
+    /**
+     * Returns the number of the inode of the open file
+     * @return Returns the number of the inode of the open file
+     */
+    public int getINodeNumber() {
+        return iNodeNumber;
+    }
+
+    /**
+     * Returns the in-memory copy of the inode, shared by every descriptor
+     * open on the file
+     * @return Returns the in-memory copy of the inode
+     */
+    public INode getINode() {
+        return inode;
+    }
+
+    /**
+     * Returns the offset of this descriptor in bytes from the start of the file
+     * @return Returns the offset of this descriptor
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Sets the offset of this descriptor
+     * @param offset Offset in bytes from the start of the file
+     */
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+}
@@ -0,0 +1,167 @@
+package filesystem;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+
+/***
+ * Maps file descriptors to open files.  Every descriptor has its own
+ * offset, while all descriptors open on the same inode share a single
+ * in-memory copy of it that is reference counted, so a file can be open
+ * any number of times and many files can be open at once.
+ * The table may be used from several threads at once.
+ *
+ * A descriptor closed from under its owner, because its file was
+ * deleted, is revoked rather than freed: it fails like any closed
+ * descriptor but its number is not handed out again until the owner
+ * closes it, so a stale descriptor can never reach another file.
+ */
+public class OpenFileTable {
+    private Map<Integer, OpenFile> descriptors;
+    private Map<Integer, INode> inCoreINodes;
+    private Map<Integer, Integer> referenceCounts;
+    private TreeSet<Integer> freeDescriptors;
+    private Set<Integer> revokedDescriptors;
+    private int nextDescriptor;
+
+    public OpenFileTable() {
+        descriptors = new HashMap<>();
+        inCoreINodes = new HashMap<>();
+        referenceCounts = new HashMap<>();
+        freeDescriptors = new TreeSet<>();
+        revokedDescriptors = new HashSet<>();
+        nextDescriptor = 0;
+    }
+
+    /***
+     * Returns the in-memory copy of an inode if any descriptor has it open
+     *
+     * @param iNodeNumber The inode number
+     * @return The shared copy of the inode, or null if the file is not open
+     */
+    public synchronized INode getINode(int iNodeNumber) {
+        return inCoreINodes.get(iNodeNumber);
+    }
+
+    /***
+     * Opens a new descriptor on an inode.  If the inode is already open
+     * the existing in-memory copy is shared and <code>inode</code> is
+     * ignored.
+     *
+     * @param iNodeNumber The inode number of the file
+     * @param inode The inode as read from the device
+     * @return The lowest numbered free file descriptor
+     */
+    public synchronized int open(int iNodeNumber, INode inode) {
+        INode shared = inCoreINodes.computeIfAbsent(iNodeNumber, i -> inode);
+        referenceCounts.merge(iNodeNumber, 1, Integer::sum);
+
+        Integer fileDescriptor = freeDescriptors.pollFirst();
+        if (fileDescriptor == null) {
+            fileDescriptor = nextDescriptor++;
+        }
+        descriptors.put(fileDescriptor, new OpenFile(iNodeNumber, shared));
+
+        return fileDescriptor;
+    }
+
+    /***
+     * Looks up an open file descriptor
+     *
+     * @param fileDescriptor The file descriptor
+     * @return The open file, or null if the descriptor is not open
+     */
+    public synchronized OpenFile get(int fileDescriptor) {
+        return descriptors.get(fileDescriptor);
+    }
+
+    /***
+     * Closes a descriptor, dropping the in-memory inode once no descriptor
+     * refers to it
+     *
+     * @param fileDescriptor The file descriptor
+     * @return The open file that was closed, or null if the descriptor was not open
+     */
+    public synchronized OpenFile close(int fileDescriptor) {
+        OpenFile openFile = release(fileDescriptor);
+
+        if (openFile != null) {
+            freeDescriptors.add(fileDescriptor);
+        }
+
+        return openFile;
+    }
+
+    /***
+     * Closes every descriptor open on an inode.  The descriptors are
+     * revoked, so their numbers stay taken until each is closed with
+     * <code>closeRevoked()</code>.
+     *
+     * @param iNodeNumber The inode number
+     */
+    public synchronized void closeAll(int iNodeNumber) {
+        for (int fileDescriptor : descriptorsOf(iNodeNumber)) {
+            release(fileDescriptor);
+            revokedDescriptors.add(fileDescriptor);
+        }
+    }
+
+    /***
+     * Frees the number of a descriptor revoked by <code>closeAll()</code>
+     *
+     * @param fileDescriptor The file descriptor
+     * @return true if the descriptor had been revoked
+     */
+    public synchronized boolean closeRevoked(int fileDescriptor) {
+        if (!revokedDescriptors.remove(fileDescriptor)) {
+            return false;
+        }
+        freeDescriptors.add(fileDescriptor);
+
+        return true;
+    }
+
+    /***
+     * Returns the inode numbers of every open file
+     *
+     * @return The inode numbers of every open file
+     */
+    public synchronized List<Integer> openINodes() {
+        return new ArrayList<>(inCoreINodes.keySet());
+    }
+
+    /***
+     * Removes a descriptor, dropping the in-memory inode once no
+     * descriptor refers to it, without freeing its number
+     */
+    private OpenFile release(int fileDescriptor) {
+        OpenFile openFile = descriptors.remove(fileDescriptor);
+
+        if (openFile != null) {
+            int iNodeNumber = openFile.getINodeNumber();
+            if (referenceCounts.merge(iNodeNumber, -1, Integer::sum) == 0) {
+                referenceCounts.remove(iNodeNumber);
+                inCoreINodes.remove(iNodeNumber);
+            }
+        }
+
+        return openFile;
+    }
+
+    private List<Integer> descriptorsOf(int iNodeNumber) {
+        List<Integer> result = new ArrayList<>();
+
+        for (Map.Entry<Integer, OpenFile> entry : descriptors.entrySet()) {
+            if (entry.getValue().getINodeNumber() == iNodeNumber) {
+                result.add(entry.getKey());
+            }
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,37 @@
+package filesystem;
+
+import java.nio.ByteBuffer;
+
+
+/***
+ * A <code>BlockDevice</code> held entirely in memory, either on the Java
+ * heap or in a direct (off-heap) buffer.  A RAM disk can be mounted
+ * again for as long as the instance lives, but nothing survives it being
+ * garbage collected, which makes it a good fit for tests and scratch
+ * volumes.
+ */
+public class RamDisk extends BufferDisk {
+    private boolean offHeap;
+
+    public RamDisk() {
+        this(false);
+    }
+
+    /***
+     * Create a disk held in memory
+     *
+     * @param offHeap true to hold the disk in a direct buffer outside
+     *                of the Java heap
+     */
+    public RamDisk(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    @Override
+    protected ByteBuffer allocate(int size) {
+        if (offHeap) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        return ByteBuffer.allocate(size);
+    }
+}
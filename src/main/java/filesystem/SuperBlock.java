@@ -0,0 +1,163 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+public class SuperBlock {
+    /**
+     * "SFS1" - identifies a device formatted by this file system
+     */
+    public final static int MAGIC = 0x53465331;
+
+    /**
+     * Version 2 added the indirect block pointers to the inode, version 3
+     * the geometry chosen at format time, version 4 the inode flag byte,
+     * version 5 the journal, version 6 files stored in their inodes and
+     * version 7 directories
+     */
+    public final static int VERSION = 7;
+
+    private int magic;
+    private int version;
+    private int numBlocks;
+    private int numInodes;
+    private int blockSize;
+    private int inodeSize;
+    private int journalBlocks;
+    private boolean cleanShutdown;
+
+
+    /**
+     * Creates the superblock of a device freshly formatted with the
+     * default geometry
+     */
+    public SuperBlock() {
+        this(Geometry.DEFAULT);
+    }
+
+    /**
+     * Creates the superblock of a device freshly formatted with
+     * <code>geometry</code>
+     * @param geometry The geometry of the device
+     */
+    public SuperBlock(Geometry geometry) {
+        magic = MAGIC;
+        version = VERSION;
+        numBlocks = geometry.getNumBlocks();
+        numInodes = geometry.getNumInodes();
+        blockSize = geometry.getBlockSize();
+        inodeSize = geometry.getInodeSize();
+        journalBlocks = geometry.getJournalBlocks();
+        cleanShutdown = true;
+    }
+
+    /**
+     * Returns true if the file system was unmounted cleanly the last time
+     * it was used
+     * @return Returns true if the file system was unmounted cleanly
+     */
+    public boolean isClean() {
+        return cleanShutdown;
+    }
+
+    /**
+     * Records whether the file system is shut down cleanly.  This is
+     * false while the file system is mounted.
+     * @param clean true if every update has been written to the device
+     */
+    public void setClean(boolean clean) {
+        this.cleanShutdown = clean;
+    }
+
+    public int getNumBlocks() {
+        return numBlocks;
+    }
+
+    public int getNumInodes() {
+        return numInodes;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getInodeSize() {
+        return inodeSize;
+    }
+
+    public int getJournalBlocks() {
+        return journalBlocks;
+    }
+
+    /**
+     * Returns the geometry recorded in the superblock
+     * @return Returns the geometry of the device
+     * @throws IOException If the recorded geometry is not valid
+     */
+    public Geometry getGeometry() throws IOException {
+        try {
+            return new Geometry(numBlocks, numInodes, blockSize, inodeSize, journalBlocks);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("SuperBlock::getGeometry: device geometry " +
+                    numBlocks + " blocks of " + blockSize + " bytes, " +
+                    numInodes + " inodes of " + inodeSize + " bytes, " +
+                    journalBlocks + " journal blocks is not valid", e);
+        }
+    }
+
+    /**
+     * Checks that the superblock was written by this file system and
+     * records a valid geometry
+     *
+     * @throws IOException If the magic number, version or geometry does not match
+     */
+    public void validate() throws IOException {
+        if (magic != MAGIC) {
+            throw new IOException("SuperBlock::validate: device is not formatted " +
+                    "(bad magic number " + Integer.toHexString(magic) + ")");
+        }
+        if (version != VERSION) {
+            throw new IOException("SuperBlock::validate: unsupported version " + version);
+        }
+        getGeometry();
+    }
+
+    /**
+     * Returns the superblock as stored on the device
+     * @return Returns an array of <code>Disk.SUPERBLOCK_SIZE</code> bytes
+     */
+    public byte[] getBytes() {
+        byte[] result = new byte[Disk.SUPERBLOCK_SIZE];
+
+        ByteBuffer.wrap(result)
+                .putInt(magic)
+                .putInt(version)
+                .putInt(numBlocks)
+                .putInt(numInodes)
+                .putInt(blockSize)
+                .putInt(inodeSize)
+                .putInt(journalBlocks)
+                .put((byte) (cleanShutdown ? 1 : 0));
+
+        return result;
+    }
+
+    /**
+     * Replaces the contents of this superblock with the bytes read from
+     * the device
+     * @param bytes The superblock as stored on the device
+     */
+    public void setBytes(byte[] bytes) {
+        ByteBuffer fields = ByteBuffer.wrap(bytes);
+
+        magic = fields.getInt();
+        version = fields.getInt();
+        numBlocks = fields.getInt();
+        numInodes = fields.getInt();
+        blockSize = fields.getInt();
+        inodeSize = fields.getInt();
+        journalBlocks = fields.getInt();
+        cleanShutdown = fields.get() != 0;
+    }
+}
@@ -0,0 +1,92 @@
+import filesystem.AsyncFileSystem;
+import filesystem.Disk;
+import filesystem.FileSystem;
+import filesystem.RamDisk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class AsyncFileSystemTest {
+
+    @org.junit.jupiter.api.Test
+    void manyRequestsOutstandingAtOnce() {
+        try {
+            FileSystem fs = new FileSystem(new RamDisk());
+            AsyncFileSystem async = new AsyncFileSystem(fs, 4, 256);
+
+            int fileDescriptor = async.createAsync("async.bin").join();
+            int blocks = 64;
+            List<CompletableFuture<Integer>> writes = new ArrayList<>();
+            for (int i = blocks - 1; i >= 0; i--) {
+                ByteBuffer block = ByteBuffer.allocate(Disk.BLOCK_SIZE);
+                while (block.hasRemaining()) {
+                    block.put((byte) i);
+                }
+                writes.add(async.pwriteAsync(fileDescriptor, (long) i * Disk.BLOCK_SIZE, block.flip()));
+            }
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).join();
+            assertEquals((long) blocks * Disk.BLOCK_SIZE, fs.size(fileDescriptor));
+
+            List<CompletableFuture<Boolean>> reads = new ArrayList<>();
+            for (int i = 0; i < blocks; i++) {
+                byte expected = (byte) i;
+                ByteBuffer block = ByteBuffer.allocate(Disk.BLOCK_SIZE);
+                reads.add(async.preadAsync(fileDescriptor, (long) i * Disk.BLOCK_SIZE, block)
+                        .thenApply(read -> read == Disk.BLOCK_SIZE && block.get(0) == expected &&
+                                block.get(Disk.BLOCK_SIZE - 1) == expected));
+            }
+            for (CompletableFuture<Boolean> read : reads) {
+                assertTrue(read.join());
+            }
+
+            ByteBuffer tail = ByteBuffer.wrap("appended".getBytes());
+            assertEquals(8, async.appendAsync(fileDescriptor, tail).join());
+            assertEquals((long) blocks * Disk.BLOCK_SIZE + 8, fs.size(fileDescriptor));
+
+            async.syncAsync().join();
+            assertEquals(List.of("async.bin"), async.listAsync("/").join());
+            async.closeAsync(fileDescriptor).join();
+            async.deleteAsync("async.bin").join();
+            assertEquals(-1, async.openAsync("async.bin").join());
+            async.close();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void failuresCompleteTheFuture() {
+        try {
+            AsyncFileSystem async = new AsyncFileSystem(new FileSystem(new RamDisk()));
+
+            CompletionException failed = assertThrows(CompletionException.class,
+                    () -> async.readAsync(42).join());
+            assertInstanceOf(IOException.class, failed.getCause());
+
+            int fileDescriptor = async.createAsync("negative.bin").join();
+            ByteBuffer buffer = ByteBuffer.allocate(Disk.BLOCK_SIZE);
+            failed = assertThrows(CompletionException.class,
+                    () -> async.preadAsync(fileDescriptor, -Disk.BLOCK_SIZE, buffer).join());
+            assertInstanceOf(IllegalArgumentException.class, failed.getCause());
+            failed = assertThrows(CompletionException.class,
+                    () -> async.pwriteAsync(fileDescriptor, -2L * Disk.BLOCK_SIZE, buffer).join());
+            assertInstanceOf(IllegalArgumentException.class, failed.getCause());
+
+            async.close();
+            failed = assertThrows(CompletionException.class, () -> async.openAsync("any").join());
+            assertInstanceOf(RejectedExecutionException.class, failed.getCause());
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import filesystem.BlockCache;
+import filesystem.Disk;
+import filesystem.FileSystem;
+import filesystem.RamDisk;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class BlockCacheTest {
+
+    @org.junit.jupiter.api.Test
+    void repeatedReadsAreServedFromMemory() {
+        try {
+            BlockCache cache = new BlockCache(new RamDisk(), 64);
+            FileSystem fs = new FileSystem(cache);
+            int fileDescriptor = fs.create("hotFile.txt");
+            // Too large to be stored in the inode, so it takes a block
+            String dataToWrite = "A file that is read over and over again. ".repeat(4);
+            fs.write(fileDescriptor, dataToWrite);
+            // Looking the name up in the root directory was already a hit
+            long hits = cache.getHits();
+
+            for (int i = 0; i < 10; i++) {
+                assertEquals(dataToWrite, fs.read(fileDescriptor));
+            }
+            assertEquals(0, cache.getMisses());
+            assertEquals(hits + 10, cache.getHits());
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void dirtyBlocksAreWrittenBackOnEvictionAndSync() {
+        try {
+            RamDisk disk = new RamDisk();
+            BlockCache cache = new BlockCache(disk, 2);
+            cache.format();
+
+            byte[][] blocks = new byte[3][Disk.BLOCK_SIZE];
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i][0] = (byte) (i + 1);
+                cache.writeDataBlock(blocks[i], i);
+            }
+
+            // Block 0 was evicted to make room for block 2
+            assertArrayEquals(blocks[0], disk.readDataBlock(0));
+            assertArrayEquals(new byte[Disk.BLOCK_SIZE], disk.readDataBlock(2));
+
+            cache.sync();
+            assertArrayEquals(blocks[1], disk.readDataBlock(1));
+            assertArrayEquals(blocks[2], disk.readDataBlock(2));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
+}
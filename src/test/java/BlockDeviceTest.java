@@ -0,0 +1,161 @@
+import filesystem.BlockCache;
+import filesystem.BlockDevice;
+import filesystem.Disk;
+import filesystem.INode;
+import filesystem.MappedDisk;
+import filesystem.RamDisk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class BlockDeviceTest {
+
+    private static BlockDevice[] devices() {
+        return new BlockDevice[]{
+                new Disk(),
+                new MappedDisk(),
+                new RamDisk(),
+                new BlockCache(new RamDisk(), 4)
+        };
+    }
+
+    @org.junit.jupiter.api.Test
+    void vectoredWriteAndRead() {
+        for (BlockDevice device : devices()) {
+            try {
+                device.format();
+
+                // Two extents, the last block only partly filled
+                int[] blocks = {7, 8, 9, 20, 21};
+                byte[] data = new byte[(Disk.BLOCK_SIZE * 4) + 100];
+                for (int i = 0; i < data.length; i++) {
+                    data[i] = (byte) (i % 251);
+                }
+                ByteBuffer src = ByteBuffer.wrap(data);
+                device.writeBlocks(blocks, 0, blocks.length, src);
+                assertFalse(src.hasRemaining());
+
+                byte[] readBack = new byte[data.length];
+                ByteBuffer dst = ByteBuffer.wrap(readBack);
+                device.readBlocks(blocks, 0, blocks.length, dst);
+                assertFalse(dst.hasRemaining());
+                assertArrayEquals(data, readBack, device.getClass().getSimpleName());
+
+                // The rest of the last block is zero filled
+                byte[] lastBlock = device.readDataBlock(21);
+                assertEquals(0, lastBlock[100]);
+                assertEquals(0, lastBlock[Disk.BLOCK_SIZE - 1]);
+                device.close();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+                fail("IOException occurred: " + ioe.getMessage());
+            }
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void inodeRecords() {
+        for (BlockDevice device : devices()) {
+            try {
+                device.format();
+                String name = device.getClass().getSimpleName();
+
+                // A freshly formatted inode table is all free inodes
+                for (int i = 0; i < Disk.NUM_INODES; i += 101) {
+                    INode free = device.readInode(i);
+                    assertNull(free.getFileName(), name);
+                    assertEquals(-1, free.getSize(), name);
+                    assertEquals(-1, free.getBlockPointer(0), name);
+                }
+
+                INode inode = new INode();
+                inode.setFileName("inode-record");
+                inode.setSize(70000);
+                for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+                    inode.setBlockPointer(i, 100 + i);
+                }
+                inode.setSingleIndirectPointer(500);
+                inode.setDoubleIndirectPointer(501);
+                device.writeInode(inode, 3);
+
+                // An empty name still marks the inode as in use
+                INode unnamed = new INode();
+                unnamed.setFileName("");
+                unnamed.setSize(0);
+                device.writeInode(unnamed, 4);
+
+                INode readBack = device.readInode(3);
+                assertEquals("inode-record", readBack.getFileName(), name);
+                assertEquals(70000, readBack.getSize(), name);
+                for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+                    assertEquals(100 + i, readBack.getBlockPointer(i), name);
+                }
+                assertEquals(500, readBack.getSingleIndirectPointer(), name);
+                assertEquals(501, readBack.getDoubleIndirectPointer(), name);
+                assertEquals("", device.readInode(4).getFileName(), name);
+                assertEquals(0, device.readInode(4).getSize(), name);
+
+                // Inline contents take the place of the block pointers
+                INode inline = new INode();
+                inline.setFileName("inline");
+                inline.setInlineData("tiny file".getBytes());
+                device.writeInode(inline, 5);
+                INode inlineBack = device.readInode(5);
+                assertTrue(inlineBack.isInline(), name);
+                assertEquals(9, inlineBack.getSize(), name);
+                assertArrayEquals("tiny file".getBytes(), inlineBack.getInlineData(), name);
+                assertEquals(-1, inlineBack.getBlockPointer(0), name);
+                assertFalse(readBack.isInline(), name);
+
+                // Freeing an inode clears its flag
+                device.writeInode(new INode(), 3);
+                assertNull(device.readInode(3).getFileName(), name);
+                device.close();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+                fail("IOException occurred: " + ioe.getMessage());
+            }
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void bulkInodeRead() {
+        for (BlockDevice device : devices()) {
+            try {
+                device.format();
+                String name = device.getClass().getSimpleName();
+
+                for (int i = 0; i < Disk.NUM_INODES; i += 7) {
+                    INode inode = new INode();
+                    inode.setFileName("file" + i);
+                    inode.setSize(i);
+                    inode.setBlockPointer(0, i);
+                    device.writeInode(inode, i);
+                }
+
+                INode[] table = device.readInodeTable();
+                assertEquals(Disk.NUM_INODES, table.length, name);
+                for (int i = 0; i < Disk.NUM_INODES; i++) {
+                    INode single = device.readInode(i);
+                    assertEquals(single.getFileName(), table[i].getFileName(), name);
+                    assertEquals(single.getSize(), table[i].getSize(), name);
+                    assertEquals(single.getBlockPointer(0), table[i].getBlockPointer(0), name);
+                }
+
+                INode[] part = device.readInodes(14, 3);
+                assertEquals("file14", part[0].getFileName(), name);
+                assertNull(part[1].getFileName(), name);
+
+                assertThrows(IllegalArgumentException.class,
+                        () -> device.readInodes(Disk.NUM_INODES - 1, 2), name);
+                device.close();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+                fail("IOException occurred: " + ioe.getMessage());
+            }
+        }
+    }
+}
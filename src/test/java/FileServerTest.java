@@ -0,0 +1,85 @@
+import filesystem.FileClient;
+import filesystem.FileServer;
+import filesystem.FileSystem;
+import filesystem.RamDisk;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class FileServerTest {
+
+    @org.junit.jupiter.api.Test
+    void clientCallsOverUnixSocket() {
+        try {
+            Path socket = Files.createTempDirectory("file-server").resolve("fs.sock");
+            FileSystem fs = new FileSystem(new RamDisk());
+
+            try (FileServer server = new FileServer(fs, UnixDomainSocketAddress.of(socket));
+                 FileClient client = new FileClient(server.getAddress());
+                 FileClient other = new FileClient(server.getAddress())) {
+                int fileDescriptor = client.create("remote.txt");
+                assertEquals(11, client.write(fileDescriptor, 0, "Over a wire".getBytes()));
+                assertEquals("wire", new String(client.read(fileDescriptor, 7, 100)));
+                assertEquals(0, client.read(fileDescriptor, 11, 100).length);
+                assertEquals(List.of("remote.txt"), client.list("/"));
+                assertEquals(-1, client.open("missing.txt"));
+
+                // Descriptors belong to the connection that opened them
+                assertThrows(IOException.class, () -> other.read(fileDescriptor, 0, 10));
+                assertThrows(IOException.class, () -> other.create("remote.txt"));
+
+                client.close(fileDescriptor);
+                client.delete("remote.txt");
+                assertEquals(List.of(), other.list("/"));
+            }
+            assertFalse(Files.exists(socket));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void manyClientsOnVirtualThreads() {
+        try {
+            FileSystem fs = new FileSystem(new RamDisk());
+
+            try (FileServer server = new FileServer(fs, new InetSocketAddress("localhost", 0))) {
+                AtomicInteger succeeded = new AtomicInteger();
+                List<Thread> clients = new ArrayList<>();
+                for (int i = 0; i < 200; i++) {
+                    String path = "client-" + i;
+                    clients.add(Thread.ofVirtual().start(() -> {
+                        try (FileClient client = new FileClient(server.getAddress())) {
+                            int fileDescriptor = client.create(path);
+                            client.write(fileDescriptor, 0, path.getBytes());
+                            if (path.equals(new String(client.read(fileDescriptor, 0, 100)))) {
+                                succeeded.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }));
+                }
+                for (Thread client : clients) {
+                    client.join();
+                }
+
+                assertEquals(200, succeeded.get());
+                assertEquals(200, fs.list("/").size());
+            }
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            fail("Exception occurred: " + e.getMessage());
+        }
+    }
+}
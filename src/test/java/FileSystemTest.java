@@ -1,7 +1,27 @@
+import filesystem.Disk;
 import filesystem.FileSystem;
+import filesystem.Geometry;
+import filesystem.INode;
+import filesystem.MappedDisk;
+import filesystem.Metrics;
+import filesystem.RamDisk;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.testng.AssertJUnit.assertEquals;
@@ -82,4 +102,737 @@ class FileSystemTest {
             fail("IOException occurred: " + ioe.getMessage());
         }
     }
+
+    @org.junit.jupiter.api.Test
+    void staleDescriptorNeverReachesAnotherFile() {
+        try {
+            FileSystem fs = new FileSystem();
+            int staleDescriptor = fs.create("deleted.txt");
+            fs.write(staleDescriptor, "deleted file");
+            fs.delete("deleted.txt");
+
+            int fd = fs.create("kept.txt");
+            fs.write(fd, "kept file");
+            assertNotEquals(staleDescriptor, fd);
+
+            assertThrows(IOException.class, () -> fs.read(staleDescriptor));
+            assertThrows(IOException.class, () -> fs.write(staleDescriptor, "overwritten"));
+            assertThrows(IOException.class, () -> fs.truncate(staleDescriptor, 0));
+            fs.close(fd);
+
+            fd = fs.open("kept.txt");
+            assertEquals("kept file", fs.read(fd));
+            fs.close(fd);
+
+            // Closing the stale descriptor frees its number, once
+            fs.close(staleDescriptor);
+            assertThrows(IOException.class, () -> fs.close(staleDescriptor));
+            assertEquals(staleDescriptor, fs.open("kept.txt"));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void createOpenDeleteByName() {
+        try {
+            FileSystem fs = new FileSystem();
+            int firstDescriptor = fs.create("first.txt");
+            fs.write(firstDescriptor, "first file");
+            fs.close(firstDescriptor);
+
+            int secondDescriptor = fs.create("second.txt");
+            fs.write(secondDescriptor, "second file");
+            fs.close(secondDescriptor);
+
+            assertThrows(IOException.class, () -> fs.create("first.txt"));
+
+            int fd = fs.open("first.txt");
+            assertEquals("first file", fs.read(fd));
+            fs.close(fd);
+
+            fs.delete("first.txt");
+            assertEquals(-1, fs.open("first.txt"));
+
+            fd = fs.open("second.txt");
+            assertEquals("second file", fs.read(fd));
+            fs.close(fd);
+
+            fd = fs.create("first.txt");
+            assertEquals("", fs.read(fd));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void mappedDisk() {
+        try {
+            FileSystem fs = new FileSystem(new MappedDisk());
+            int fileDescriptor = fs.create("mappedFile.txt");
+            String dataToWrite = "Data served from a memory mapped disk.";
+            fs.write(fileDescriptor, dataToWrite);
+            fs.close(fileDescriptor);
+            fs.sync();
+
+            fileDescriptor = fs.open("mappedFile.txt");
+            assertEquals(dataToWrite, fs.read(fileDescriptor));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void ramDisk() {
+        try {
+            for (boolean offHeap : new boolean[]{false, true}) {
+                FileSystem fs = new FileSystem(new RamDisk(offHeap));
+                int fileDescriptor = fs.create("ramFile.txt");
+                String dataToWrite = "Data that never touches the storage device.";
+                fs.write(fileDescriptor, dataToWrite);
+                fs.close(fileDescriptor);
+
+                fileDescriptor = fs.open("ramFile.txt");
+                assertEquals(dataToWrite, fs.read(fileDescriptor));
+            }
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void formatClearsPreviousVolume() {
+        try {
+            FileSystem fs = new FileSystem();
+            int fileDescriptor = fs.create("leftOver.txt");
+            fs.write(fileDescriptor, "Data from an earlier volume.");
+            fs.close(fileDescriptor);
+
+            Disk disk = new Disk();
+            disk.format();
+            assertNull(disk.readInode(fileDescriptor).getFileName());
+            assertEquals(-1, disk.readInode(fileDescriptor).getSize());
+            assertArrayEquals(new byte[Disk.BYTES_IN_FREE_SPACE_LIST], disk.readFreeBlockList());
+            assertArrayEquals(new byte[Disk.BLOCK_SIZE], disk.readDataBlock(0));
+            disk.close();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void mountExistingVolume() {
+        try {
+            FileSystem fs = new FileSystem();
+            int fileDescriptor = fs.create("persistent.txt");
+            String dataToWrite = "Data that survives a restart.";
+            fs.write(fileDescriptor, dataToWrite);
+            fs.close(fileDescriptor);
+            fs.unmount();
+
+            FileSystem mounted = new FileSystem(new Disk(), false);
+            fileDescriptor = mounted.open("persistent.txt");
+            assertEquals(dataToWrite, mounted.read(fileDescriptor));
+            mounted.close(fileDescriptor);
+            mounted.unmount();
+
+            assertThrows(IOException.class, () -> new FileSystem(new RamDisk(), false));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void mountAfterUncleanShutdown() {
+        try {
+            RamDisk disk = new RamDisk();
+            FileSystem fs = new FileSystem(disk);
+            // Too large to be stored in the inode, so it takes a block
+            String survivor = "Written before the crash. ".repeat(8);
+            int fileDescriptor = fs.create("survivor.txt");
+            fs.getMetrics().setEnabled(true);
+            fs.write(fileDescriptor, survivor);
+            fs.close(fileDescriptor);
+            assertTrue(fs.getMetrics().getCount(Metrics.Counter.BLOCK_WRITES) > 0);
+
+            // Lose the in-memory free block list without unmounting
+            disk.writeFreeBlockList(new byte[Disk.BYTES_IN_FREE_SPACE_LIST]);
+
+            FileSystem mounted = new FileSystem(disk, false);
+            fileDescriptor = mounted.create("newcomer.txt");
+            mounted.write(fileDescriptor, "Written after the crash. ".repeat(8));
+            mounted.close(fileDescriptor);
+
+            fileDescriptor = mounted.open("survivor.txt");
+            assertEquals(survivor, mounted.read(fileDescriptor));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void fileWrittenIntoFragmentedDisk() {
+        try {
+            FileSystem fs = new FileSystem(new RamDisk());
+            for (int i = 0; i < 20; i++) {
+                int fd = fs.create("file" + i + ".txt");
+                fs.write(fd, "x".repeat(Disk.BLOCK_SIZE * (i % 3 + 1)));
+                fs.close(fd);
+            }
+            for (int i = 0; i < 20; i += 2) {
+                fs.delete("file" + i + ".txt");
+            }
+
+            StringBuilder large = new StringBuilder();
+            for (int i = 0; large.length() < Disk.BLOCK_SIZE * 30; i++) {
+                large.append("line ").append(i).append('\n');
+            }
+            int fd = fs.create("large.txt");
+            fs.write(fd, large.toString());
+            fs.close(fd);
+
+            fd = fs.open("large.txt");
+            assertEquals(large.toString(), fs.read(fd));
+            fs.close(fd);
+            fd = fs.open("file7.txt");
+            assertEquals("x".repeat(Disk.BLOCK_SIZE * 2), fs.read(fd));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void manyFilesOpenAtOnce() {
+        try {
+            FileSystem fs = new FileSystem(new RamDisk());
+            int[] fileDescriptors = new int[10];
+            for (int i = 0; i < fileDescriptors.length; i++) {
+                fileDescriptors[i] = fs.create("open" + i + ".txt");
+            }
+            for (int i = 0; i < fileDescriptors.length; i++) {
+                fs.write(fileDescriptors[i], "contents of file " + i);
+            }
+            for (int i = 0; i < fileDescriptors.length; i++) {
+                assertEquals("contents of file " + i, fs.read(fileDescriptors[i]));
+                fs.close(fileDescriptors[i]);
+            }
+
+            // Two descriptors on one file share its inode
+            int first = fs.open("open3.txt");
+            int second = fs.open("open3.txt");
+            assertNotEquals(first, second);
+            fs.write(first, "rewritten");
+            assertEquals("rewritten", fs.read(second));
+            fs.close(first);
+            assertEquals("rewritten", fs.read(second));
+            fs.close(second);
+
+            IOException exception = assertThrows(IOException.class, () -> fs.close(second));
+            assertTrue(exception.getMessage().startsWith("FileSystem::close"));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void concurrentReadersAndWriters() {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            FileSystem fs = new FileSystem(new RamDisk());
+            List<Future<?>> tasks = new ArrayList<>();
+
+            for (int t = 0; t < 8; t++) {
+                String fileName = "thread" + t + ".txt";
+                String contents = fileName.repeat(20 * (t + 1));
+                tasks.add(executor.submit(() -> {
+                    int fd = fs.create(fileName);
+                    for (int i = 0; i < 50; i++) {
+                        fs.write(fd, contents + i);
+                        assertEquals(contents + i, fs.read(fd));
+
+                        // A second descriptor sees the same data
+                        int reader = fs.open(fileName);
+                        assertEquals(contents + i, fs.read(reader));
+                        fs.close(reader);
+                    }
+                    fs.close(fd);
+                    return null;
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+
+            for (int t = 0; t < 8; t++) {
+                String fileName = "thread" + t + ".txt";
+                int fd = fs.open(fileName);
+                assertEquals(fileName.repeat(20 * (t + 1)) + 49, fs.read(fd));
+                fs.close(fd);
+                fs.delete(fileName);
+            }
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            fail("Concurrent access failed: " + e.getMessage());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void positionalReadWriteAndAppend() {
+        try {
+            FileSystem fs = new FileSystem(new RamDisk());
+            int fd = fs.create("positional.txt");
+            StringBuilder expected = new StringBuilder("0123456789".repeat(150));
+            fs.write(fd, expected.toString());
+
+            // Overwrite a range spanning a block boundary
+            String patch = "-".repeat(40);
+            assertEquals(patch.length(), fs.pwrite(fd, Disk.BLOCK_SIZE - 20, ByteBuffer.wrap(patch.getBytes())));
+            expected.replace(Disk.BLOCK_SIZE - 20, Disk.BLOCK_SIZE + 20, patch);
+            assertEquals(expected.toString(), fs.read(fd));
+
+            ByteBuffer buffer = ByteBuffer.allocate(100);
+            assertEquals(100, fs.pread(fd, 1000, buffer));
+            assertEquals(expected.substring(1000, 1100), new String(buffer.array()));
+
+            // Reads stop at the end of the file
+            buffer.clear();
+            assertEquals(50, fs.pread(fd, expected.length() - 50, buffer));
+            assertEquals(-1, fs.pread(fd, expected.length(), buffer.clear()));
+
+            for (int i = 0; i < 20; i++) {
+                fs.append(fd, "line " + i + "\n");
+                expected.append("line ").append(i).append("\n");
+            }
+            assertEquals(expected.toString(), fs.read(fd));
+
+            // Writing past the end leaves a gap of zeros
+            int gapStart = expected.length();
+            fs.pwrite(fd, gapStart + Disk.BLOCK_SIZE * 2, ByteBuffer.wrap("end".getBytes()));
+            expected.append("\0".repeat(Disk.BLOCK_SIZE * 2)).append("end");
+            assertEquals(expected.toString(), fs.read(fd));
+            fs.close(fd);
+
+            fd = fs.open("positional.txt");
+            assertEquals(expected.toString(), fs.read(fd));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void binaryStreamsAndChannels() {
+        try {
+            FileSystem fs = new FileSystem(new RamDisk());
+            byte[] data = new byte[Disk.BLOCK_SIZE * 20 + 77];
+            new Random(7).nextBytes(data);
+
+            try (OutputStream out = fs.newOutputStream("binary.dat")) {
+                for (int i = 0; i < data.length; i += 1000) {
+                    out.write(data, i, Math.min(1000, data.length - i));
+                }
+            }
+            try (InputStream in = fs.newInputStream("binary.dat")) {
+                assertArrayEquals(data, in.readAllBytes());
+            }
+
+            try (SeekableByteChannel channel = fs.newByteChannel("binary.dat")) {
+                assertEquals(data.length, channel.size());
+
+                ByteBuffer buffer = ByteBuffer.allocate(300);
+                channel.position(Disk.BLOCK_SIZE * 3 + 5).read(buffer);
+                assertArrayEquals(Arrays.copyOfRange(data, Disk.BLOCK_SIZE * 3 + 5, Disk.BLOCK_SIZE * 3 + 305),
+                        buffer.array());
+                assertEquals(Disk.BLOCK_SIZE * 3 + 305, channel.position());
+
+                channel.truncate(1000);
+                assertEquals(1000, channel.size());
+                assertEquals(1000, channel.position());
+                assertEquals(-1, channel.read(buffer.clear()));
+            }
+
+            // Rewriting through a stream replaces the old contents
+            try (OutputStream out = fs.newOutputStream("binary.dat")) {
+                out.write(data, 0, 10);
+            }
+            try (InputStream in = fs.newInputStream("binary.dat")) {
+                assertArrayEquals(Arrays.copyOf(data, 10), in.readAllBytes());
+            }
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void largeFilesUseIndirectBlocks() {
+        try {
+            RamDisk disk = new RamDisk();
+            FileSystem fs = new FileSystem(disk);
+            byte[] data = new byte[1 << 20];
+            new Random(14).nextBytes(data);
+
+            // Freed data and index blocks are reused, so this does not fill the disk
+            for (int round = 0; round < 12; round++) {
+                try (OutputStream out = fs.newOutputStream("large.dat")) {
+                    out.write(data);
+                }
+                try (InputStream in = fs.newInputStream("large.dat")) {
+                    assertArrayEquals(data, in.readAllBytes());
+                }
+                fs.delete("large.dat");
+            }
+
+            try (OutputStream out = fs.newOutputStream("large.dat")) {
+                out.write(data);
+            }
+            try (SeekableByteChannel channel = fs.newByteChannel("large.dat")) {
+                ByteBuffer buffer = ByteBuffer.allocate(1000);
+                channel.position(700_000).read(buffer);
+                assertArrayEquals(Arrays.copyOfRange(data, 700_000, 701_000), buffer.array());
+
+                // Within the double indirect blocks, then back into the
+                // single indirect blocks and the direct ones
+                channel.truncate(Disk.BLOCK_SIZE * 300 + 1);
+                buffer = ByteBuffer.allocate(Disk.BLOCK_SIZE * 300 + 1);
+                channel.position(0).read(buffer);
+                assertArrayEquals(Arrays.copyOf(data, buffer.capacity()), buffer.array());
+                channel.truncate(Disk.BLOCK_SIZE * 40 + 3);
+                channel.truncate(Disk.BLOCK_SIZE * 10);
+                assertEquals(Disk.BLOCK_SIZE * 10, channel.size());
+            }
+
+            // The free block list is rebuilt from the inodes and index blocks
+            disk.writeFreeBlockList(new byte[Disk.BYTES_IN_FREE_SPACE_LIST]);
+            FileSystem mounted = new FileSystem(disk, false);
+            try (OutputStream out = mounted.newOutputStream("other.dat")) {
+                out.write(data);
+            }
+            try (InputStream in = mounted.newInputStream("large.dat")) {
+                assertArrayEquals(Arrays.copyOf(data, Disk.BLOCK_SIZE * 10), in.readAllBytes());
+            }
+            try (InputStream in = mounted.newInputStream("other.dat")) {
+                assertArrayEquals(data, in.readAllBytes());
+            }
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void geometryChosenAtFormatTime() {
+        Path diskFile = null;
+        try {
+            diskFile = Files.createTempFile("geometry", ".dsk");
+            byte[] data = new byte[300_000];
+            new Random(15).nextBytes(data);
+
+            // Large blocks for bulk data
+            Geometry bulk = new Geometry(2048, 64, 4096, 256);
+            FileSystem fs = new FileSystem(new Disk(diskFile.toString()), bulk);
+            try (OutputStream out = fs.newOutputStream("bulk.dat")) {
+                out.write(data);
+            }
+            fs.unmount();
+
+            FileSystem mounted = new FileSystem(new MappedDisk(diskFile.toString()), false);
+            assertEquals(bulk, mounted.getGeometry());
+            try (InputStream in = mounted.newInputStream("bulk.dat")) {
+                assertArrayEquals(data, in.readAllBytes());
+            }
+            mounted.unmount();
+
+            // Many small inodes for small files
+            Geometry small = new Geometry(8192, 50_000, 512, 256);
+            RamDisk disk = new RamDisk();
+            fs = new FileSystem(disk, small);
+            for (int i = 0; i < 5000; i++) {
+                int fd = fs.create("small" + i);
+                fs.write(fd, "file " + i);
+                fs.close(fd);
+            }
+            fs.unmount();
+
+            mounted = new FileSystem(disk, false);
+            assertEquals(small, mounted.getGeometry());
+            int fd = mounted.open("small4999");
+            assertEquals("file 4999", mounted.read(fd));
+
+            assertThrows(IllegalArgumentException.class, () -> new Geometry(1024, 16, 1000, 256));
+            assertThrows(IllegalArgumentException.class, () -> new Geometry(1024, 16, 4096, 64));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        } finally {
+            if (diskFile != null) {
+                diskFile.toFile().delete();
+            }
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void journalReplayedOnMount() {
+        try {
+            RamDisk disk = new RamDisk();
+            FileSystem fs = new FileSystem(disk);
+            int fd = fs.create("committed.txt");
+            fs.write(fd, "Committed before the crash.");
+            fs.close(fd);
+            fs.sync();
+
+            fd = fs.create("logged.txt");
+            fs.write(fd, "Logged before the crash.");
+            fs.close(fd);
+
+            // Lose every inode and the free block list written in place
+            for (int i = 0; i < Disk.NUM_INODES; i++) {
+                disk.writeInode(new INode(), i);
+            }
+            disk.writeFreeBlockList(new byte[Disk.BYTES_IN_FREE_SPACE_LIST]);
+
+            FileSystem mounted = new FileSystem(disk, false);
+            fd = mounted.open("committed.txt");
+            assertEquals("Committed before the crash.", mounted.read(fd));
+            fd = mounted.open("logged.txt");
+            assertEquals("Logged before the crash.", mounted.read(fd));
+            mounted.unmount();
+
+            // Without journal blocks metadata is written in place
+            Geometry unjournaled = new Geometry(1024, 64, 512, 256, 0);
+            fs = new FileSystem(disk, unjournaled);
+            fd = fs.create("plain.txt");
+            fs.write(fd, "No journal.");
+            fs.unmount();
+            mounted = new FileSystem(disk, false);
+            assertEquals(unjournaled, mounted.getGeometry());
+            fd = mounted.open("plain.txt");
+            assertEquals("No journal.", mounted.read(fd));
+
+            assertThrows(IllegalArgumentException.class, () -> new Geometry(1024, 64, 512, 256, 1));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void delayedAllocationBatchesSmallFiles() {
+        try {
+            RamDisk disk = new RamDisk();
+            FileSystem fs = new FileSystem(disk);
+            fs.setDelayedAllocation(true);
+
+            // Enough small files to be written out in several batches
+            for (int i = 0; i < 300; i++) {
+                int fd = fs.create("small" + i);
+                fs.write(fd, "contents of small file " + i + " ".repeat(i));
+                fs.close(fd);
+            }
+            for (int i = 0; i < 300; i += 3) {
+                fs.delete("small" + i);
+            }
+
+            // Waiting files read from memory and write out before changing,
+            // they are too large to be stored in their inodes
+            String waiting = "waiting ".repeat(20);
+            int fd = fs.create("pending");
+            Metrics metrics = fs.getMetrics();
+            metrics.setEnabled(true);
+            fs.write(fd, waiting);
+            assertEquals(0, metrics.getCount(Metrics.Counter.BLOCK_WRITES));
+            assertEquals(waiting.length(), fs.size(fd));
+            fs.append(fd, ByteBuffer.wrap("then appended".getBytes()));
+            fd = fs.open("pending");
+            assertEquals(waiting + "then appended", fs.read(fd));
+
+            String kept = "kept in memory. ".repeat(10);
+            fd = fs.create("synced");
+            fs.write(fd, kept);
+            ByteBuffer head = ByteBuffer.allocate(4);
+            assertEquals(4, fs.pread(fd, 5, head));
+            assertEquals("in m", new String(head.array()));
+            fs.sync();
+
+            fs.unmount();
+            FileSystem mounted = new FileSystem(disk, false);
+            for (int i = 1; i < 300; i++) {
+                fd = mounted.open("small" + i);
+                if (i % 3 == 0) {
+                    assertEquals(-1, fd);
+                } else {
+                    assertEquals("contents of small file " + i + " ".repeat(i), mounted.read(fd));
+                }
+            }
+            fd = mounted.open("synced");
+            assertEquals(kept, mounted.read(fd));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void delayedWriteFlushedOnNearlyFullVolume() {
+        try {
+            for (int change = 0; change < 3; change++) {
+                Geometry small = new Geometry(128, 16, Disk.BLOCK_SIZE, Disk.INODE_SIZE);
+                FileSystem fs = new FileSystem(new RamDisk(), small);
+                fs.setDelayedAllocation(false);
+
+                int fd = fs.create("filler");
+                fs.write(fd, "x".repeat(120 * Disk.BLOCK_SIZE));
+
+                fs.setDelayedAllocation(true);
+                String waiting = "w".repeat(16 * Disk.BLOCK_SIZE);
+                fd = fs.create("waiting");
+                fs.write(fd, waiting);
+
+                // Freed blocks are held until the journal commits, so
+                // writing out the waiting contents needs more than are free
+                fs.delete("filler");
+                if (change == 0) {
+                    fs.truncate(fd, 10);
+                    waiting = waiting.substring(0, 10);
+                } else if (change == 1) {
+                    fs.pwrite(fd, 0, ByteBuffer.wrap("changed".getBytes()));
+                    waiting = "changed" + waiting.substring(7);
+                } else {
+                    fs.append(fd, ByteBuffer.wrap("appended".getBytes()));
+                    waiting = waiting + "appended";
+                }
+                fd = fs.open("waiting");
+                assertEquals(waiting, fs.read(fd));
+            }
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void tinyFilesStoredInInodes() {
+        try {
+            RamDisk disk = new RamDisk();
+            FileSystem fs = new FileSystem(disk);
+            for (int i = 0; i < 50; i++) {
+                int fd = fs.create("tiny" + i);
+                fs.write(fd, "tiny file " + i);
+                fs.close(fd);
+            }
+            int fd = fs.create("streamed");
+            try (OutputStream out = fs.newOutputStream("streamed")) {
+                out.write("written through a stream".getBytes());
+            }
+            fs.close(fd);
+            fs.unmount();
+
+            // Only the two buckets of the root directory were allocated
+            int allocated = 0;
+            for (byte bits : disk.readFreeBlockList()) {
+                allocated += Integer.bitCount(bits & 0xFF);
+            }
+            assertEquals(2, allocated);
+
+            FileSystem mounted = new FileSystem(disk, false);
+            fd = mounted.open("tiny49");
+            assertEquals("tiny file 49", mounted.read(fd));
+            ByteBuffer part = ByteBuffer.allocate(4);
+            assertEquals(4, mounted.pread(fd, 5, part));
+            assertEquals("file", new String(part.array()));
+
+            // Growing past the inode moves the contents to data blocks
+            String grown = "tiny file 49" + "+".repeat(Disk.BLOCK_SIZE);
+            mounted.append(fd, "+".repeat(Disk.BLOCK_SIZE));
+            fd = mounted.open("tiny49");
+            assertEquals(grown, mounted.read(fd));
+            mounted.truncate(fd, 4);
+            mounted.append(fd, " again");
+            fd = mounted.open("tiny49");
+            assertEquals("tiny again", mounted.read(fd));
+
+            fd = mounted.open("tiny7");
+            mounted.truncate(fd, 4);
+            assertEquals(4, mounted.size(fd));
+            fd = mounted.open("tiny7");
+            assertEquals("tiny", mounted.read(fd));
+            fd = mounted.open("streamed");
+            assertEquals("written through a stream", mounted.read(fd));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void nestedDirectories() {
+        try {
+            RamDisk disk = new RamDisk();
+            FileSystem fs = new FileSystem(disk);
+            fs.mkdir("/docs");
+            fs.mkdir("/docs/letters");
+            int fd = fs.create("/docs/letters/hello.txt");
+            fs.write(fd, "Hello from a nested directory");
+            fs.close(fd);
+            fd = fs.create("top.txt");
+            fs.close(fd);
+
+            assertEquals(List.of("docs/", "top.txt"), fs.list("/"));
+            assertEquals(List.of("letters/"), fs.list("docs"));
+            assertEquals(-1, fs.open("/docs/hello.txt"));
+            assertThrows(IOException.class, () -> fs.create("/docs/letters/hello.txt"));
+            assertThrows(IOException.class, () -> fs.create("/missing/file.txt"));
+            assertThrows(IOException.class, () -> fs.open("/docs"));
+            assertThrows(IOException.class, () -> fs.rmdir("/docs"));
+            assertThrows(IOException.class, () -> fs.rmdir("/"));
+
+            // Enough names to make the directory double several times
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < 300; i++) {
+                String name = "entry-with-a-fairly-long-name-" + i;
+                names.add(name);
+                fd = fs.create("/docs/letters/" + name);
+                fs.write(fd, name);
+                fs.close(fd);
+            }
+            fs.unmount();
+
+            FileSystem mounted = new FileSystem(disk, false);
+            for (String name : names) {
+                fd = mounted.open("/docs/letters/" + name);
+                assertEquals(name, mounted.read(fd));
+                mounted.close(fd);
+            }
+            fd = mounted.open("/docs/letters/hello.txt");
+            assertEquals("Hello from a nested directory", mounted.read(fd));
+            mounted.close(fd);
+            assertEquals(301, mounted.list("/docs/letters").size());
+
+            for (String name : names) {
+                mounted.delete("/docs/letters/" + name);
+            }
+            mounted.delete("/docs/letters/hello.txt");
+            assertEquals(List.of(), mounted.list("/docs/letters"));
+            mounted.rmdir("/docs/letters");
+            mounted.rmdir("/docs");
+            assertEquals(List.of("top.txt"), mounted.list("/"));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
 }
@@ -0,0 +1,104 @@
+import filesystem.Disk;
+import filesystem.FreeBlockList;
+import filesystem.RamDisk;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class FreeBlockListTest {
+
+    @org.junit.jupiter.api.Test
+    void onDiskLayoutIsOneBitPerBlock() {
+        FreeBlockList freeBlocks = new FreeBlockList();
+        freeBlocks.allocateBlock(17);
+        freeBlocks.allocateBlock(63);
+
+        byte[] list = freeBlocks.getFreeBlockList();
+        assertEquals(1 << 1, list[2]);
+        assertEquals((byte) (1 << 7), list[7]);
+
+        FreeBlockList reloaded = new FreeBlockList();
+        reloaded.setFreeBlockList(list);
+        assertTrue(reloaded.isAllocated(17));
+        assertTrue(reloaded.isAllocated(63));
+        assertFalse(reloaded.isAllocated(16));
+        assertEquals(Disk.NUM_BLOCKS - 2, reloaded.getFreeCount());
+    }
+
+    @org.junit.jupiter.api.Test
+    void allocateIsNextFitAndWrapsAround() {
+        FreeBlockList freeBlocks = new FreeBlockList();
+        for (int block = 0; block < 200; block++) {
+            freeBlocks.allocateBlock(block);
+        }
+        freeBlocks.deallocateBlock(5);
+
+        assertEquals(5, freeBlocks.allocate());
+        assertEquals(200, freeBlocks.allocate());
+
+        // Blocks freed behind the cursor are only reused after wrapping
+        freeBlocks.deallocateBlock(10);
+        for (int block = 201; block < Disk.NUM_BLOCKS; block++) {
+            assertEquals(block, freeBlocks.allocate());
+        }
+        assertEquals(10, freeBlocks.allocate());
+        assertEquals(0, freeBlocks.getFreeCount());
+        assertEquals(-1, freeBlocks.allocate());
+    }
+
+    @org.junit.jupiter.api.Test
+    void onlyDirtyRegionsAreWritten() {
+        try {
+            RamDisk disk = new RamDisk();
+            disk.format();
+
+            FreeBlockList freeBlocks = new FreeBlockList();
+            freeBlocks.setFreeBlockList(disk.readFreeBlockList());
+            freeBlocks.allocateBlock(3);
+
+            // Changes made behind the list's back must not be overwritten
+            byte[] onDisk = disk.readFreeBlockList();
+            onDisk[Disk.BYTES_IN_FREE_SPACE_LIST - 1] = 1;
+            disk.writeFreeBlockList(onDisk);
+
+            freeBlocks.writeDirtyRegions(disk);
+            onDisk = disk.readFreeBlockList();
+            assertEquals(1 << 3, onDisk[0]);
+            assertEquals(1, onDisk[Disk.BYTES_IN_FREE_SPACE_LIST - 1]);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void allocateRunPrefersContiguousBlocks() {
+        FreeBlockList freeBlocks = new FreeBlockList();
+        for (int block = 0; block < 100; block += 2) {
+            freeBlocks.allocateBlock(block);
+        }
+
+        int[] blocks = new int[8];
+        assertEquals(8, freeBlocks.allocateRun(blocks, 0, 8));
+        for (int i = 0; i < blocks.length; i++) {
+            assertEquals(99 + i, blocks[i]);
+        }
+
+        // With no hole big enough the longest run is handed out
+        FreeBlockList full = new FreeBlockList();
+        for (int block = 0; block < Disk.NUM_BLOCKS; block++) {
+            full.allocateBlock(block);
+        }
+        full.deallocateBlock(10);
+        full.deallocateBlock(20);
+        full.deallocateBlock(21);
+        assertEquals(2, full.allocateRun(blocks, 0, 4));
+        assertEquals(20, blocks[0]);
+        assertEquals(21, blocks[1]);
+        assertEquals(1, full.allocateRun(blocks, 2, 2));
+        assertEquals(10, blocks[2]);
+        assertEquals(0, full.allocateRun(blocks, 3, 1));
+    }
+}
@@ -0,0 +1,75 @@
+import filesystem.FileSystem;
+import filesystem.LatencyHistogram;
+import filesystem.Metrics;
+import filesystem.RamDisk;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class MetricsTest {
+
+    @org.junit.jupiter.api.Test
+    void countsIoAndTimesOperations() {
+        try {
+            FileSystem fs = new FileSystem(new RamDisk());
+            Metrics metrics = fs.getMetrics();
+
+            // Nothing is kept until metrics are turned on
+            int fileDescriptor = fs.create("untimed.txt");
+            assertEquals(0, metrics.getLatency(Metrics.Operation.CREATE).getCount());
+            assertEquals(0, metrics.getCount(Metrics.Counter.INODE_WRITES));
+
+            metrics.setEnabled(true);
+            fileDescriptor = fs.create("timed.txt");
+            fs.write(fileDescriptor, "Two blocks of data. ".repeat(40));
+            fs.read(fileDescriptor);
+            fs.truncate(fileDescriptor, 10);
+            fs.close(fileDescriptor);
+            fs.sync();
+            fs.delete("timed.txt");
+            fs.mkdir("/timed");
+            fs.list("/timed");
+            fs.rmdir("/timed");
+
+            assertEquals(1, metrics.getLatency(Metrics.Operation.CREATE).getCount());
+            assertEquals(1, metrics.getLatency(Metrics.Operation.WRITE).getCount());
+            assertEquals(1, metrics.getLatency(Metrics.Operation.READ).getCount());
+            assertEquals(1, metrics.getLatency(Metrics.Operation.DELETE).getCount());
+            assertEquals(1, metrics.getLatency(Metrics.Operation.TRUNCATE).getCount());
+            assertEquals(1, metrics.getLatency(Metrics.Operation.CLOSE).getCount());
+            assertEquals(1, metrics.getLatency(Metrics.Operation.MKDIR).getCount());
+            assertEquals(1, metrics.getLatency(Metrics.Operation.LIST).getCount());
+            assertEquals(1, metrics.getLatency(Metrics.Operation.RMDIR).getCount());
+            assertTrue(metrics.getLatency(Metrics.Operation.WRITE).getMax() > 0);
+            assertTrue(metrics.getCount(Metrics.Counter.BLOCK_WRITES) >= 2);
+            assertTrue(metrics.getCount(Metrics.Counter.JOURNAL_WRITES) > 0);
+            assertTrue(metrics.getCount(Metrics.Counter.SYNCS) > 0);
+            assertEquals(1L, metrics.getLatencies().get("read.count"));
+
+            metrics.reset();
+            assertEquals(0L, metrics.getCounters().get("blockWrites"));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail("IOException occurred: " + ioe.getMessage());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void percentilesWithinABucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long nanos = 1; nanos <= 100_000; nanos++) {
+            histogram.record(nanos);
+        }
+
+        assertEquals(100_000, histogram.getCount());
+        assertEquals(100_000, histogram.getMax());
+        assertEquals(50_000.5, histogram.getMean(), 0.001);
+        // Each bucket spans at most 1/32 of its values
+        assertEquals(50_000, histogram.getValueAtPercentile(50), 50_000 / 32.0);
+        assertEquals(99_000, histogram.getValueAtPercentile(99), 99_000 / 32.0);
+        assertEquals(100_000, histogram.getValueAtPercentile(100));
+        assertEquals(31, histogram.getValueAtPercentile(0.031));
+    }
+}